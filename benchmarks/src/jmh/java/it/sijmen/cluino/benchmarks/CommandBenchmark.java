@@ -0,0 +1,78 @@
+package it.sijmen.cluino.benchmarks;
+
+import it.sijmen.cluino.ext.ArduinoBuilder;
+import it.sijmen.cluino.ext.AvrDude;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Building the command lines, which happens every time a compile or upload configuration is run.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CommandBenchmark {
+
+    private Path projectDir;
+    private String mainFile;
+    private ArduinoBuilder builder;
+    private AvrDude avrDude;
+
+    @Setup
+    public void setUp() throws IOException {
+        projectDir = Files.createTempDirectory("cluino-benchmark");
+        Path sketch = Files.createDirectories(projectDir.resolve("Blink"));
+        mainFile = Files.write(sketch.resolve("Blink.ino"), "void setup() {}\nvoid loop() {}\n".getBytes()).toString();
+
+        List<String> hardwares = new ArrayList<>(), tools = new ArrayList<>(), libraries = new ArrayList<>();
+        for(String name : Arrays.asList("hardware", "packages"))
+            hardwares.add(Files.createDirectories(projectDir.resolve("arduino").resolve(name)).toString());
+        for(String name : Arrays.asList("tools-builder", "hardware/tools/avr", "packages/arduino/tools"))
+            tools.add(Files.createDirectories(projectDir.resolve("arduino").resolve(name)).toString());
+        libraries.add(Files.createDirectories(projectDir.resolve("libraries")).toString());
+        List<String> prefs = Arrays.asList(
+                "runtime.tools.avr-gcc.path=" + tools.get(1),
+                "runtime.tools.avrdude.path=" + tools.get(1));
+
+        builder = new ArduinoBuilder(ArduinoBuilder.Logger.HUMAN, "arduino:avr:uno", "10819",
+                ArduinoBuilder.Warnings.NONE, true, 5, hardwares, tools, prefs, libraries)
+                .setConfiguration("Compile");
+        builder.prepareDirs(projectDir);
+
+        avrDude = new AvrDude(projectDir.resolve("avrdude.conf").toString(), false, "atmega328p", "arduino",
+                "/dev/ttyUSB0", "115200", true);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        try(Stream<Path> files = Files.walk(projectDir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public List<String> arduinoBuilderCommand() throws IOException {
+        return builder.getCompileCommand(mainFile, projectDir);
+    }
+
+    @Benchmark
+    public List<String> avrDudeCommand() throws IOException {
+        return avrDude.getCompileCommand(mainFile);
+    }
+}
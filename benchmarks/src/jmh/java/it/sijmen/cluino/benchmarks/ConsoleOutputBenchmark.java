@@ -0,0 +1,93 @@
+package it.sijmen.cluino.benchmarks;
+
+import com.intellij.execution.process.ProcessOutputTypes;
+import it.sijmen.cluino.ext.BuildEvent;
+import it.sijmen.cluino.ext.BuildTimer;
+import it.sijmen.cluino.ext.MachineLogParser;
+import it.sijmen.cluino.runconfigurations.BoundedOutput;
+import it.sijmen.cluino.runconfigurations.compile.CompilerCommandFolding;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Handling the complete output of one large build. The output is fed the way the process handler
+ * receives it, in pipe sized chunks for the console and line by line for the parsers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ConsoleOutputBenchmark {
+
+    /**
+     * The size of the build output in bytes.
+     */
+    @Param({"4000000"})
+    public int size;
+
+    private List<String> verboseChunks, verboseLines, machineLines;
+    private Path logFile;
+    private final CompilerCommandFolding folding = new CompilerCommandFolding();
+
+    @Setup
+    public void setUp() throws IOException {
+        String verbose = RecordedLog.load("builder-verbose.log", size);
+        verboseChunks = RecordedLog.chunks(verbose);
+        verboseLines = RecordedLog.lines(verbose);
+        machineLines = RecordedLog.lines(RecordedLog.load("builder-machine.log", size));
+        logFile = Files.createTempFile("cluino-benchmark", ".log");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(logFile);
+    }
+
+    @Benchmark
+    public void compactConsole(Blackhole shown) throws IOException {
+        try(BoundedOutput output = new BoundedOutput(logFile, 200)) {
+            for(String chunk : verboseChunks)
+                output.filter(chunk, ProcessOutputTypes.STDOUT, (text, type) -> shown.consume(text));
+        }
+    }
+
+    @Benchmark
+    public int consoleFolding() {
+        int folded = 0;
+        for(String line : verboseLines)
+            if(folding.shouldFoldLine(line))
+                folded++;
+        return folded;
+    }
+
+    @Benchmark
+    public String buildTimer() {
+        BuildTimer timer = new BuildTimer();
+        long now = 0;
+        for(String line : verboseLines)
+            timer.onLine(line, now += 1000);
+        timer.finish(now);
+        return timer.toJson();
+    }
+
+    @Benchmark
+    public void machineLog(Blackhole events) {
+        for(String line : machineLines) {
+            BuildEvent event = MachineLogParser.parse(line);
+            events.consume(event);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package it.sijmen.cluino.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Output recorded from a real arduino-builder build, repeated until it is as large as the output of
+ * a large verbose build. Every repetition uses other file names, like the output of a sketch with
+ * many source files would.
+ */
+class RecordedLog {
+
+    /**
+     * The size in bytes of the read end of a pipe, which is how much output a process handler
+     * receives at once.
+     */
+    private static final int CHUNK_SIZE = 8192;
+
+    private RecordedLog() {
+    }
+
+    static String load(String name, int size) throws IOException {
+        String recorded = read(name);
+        StringBuilder out = new StringBuilder(size + recorded.length());
+        for(int i = 0; out.length() < size; i++)
+            out.append(recorded.replace("Blink", "Blink" + i));
+        return out.toString();
+    }
+
+    static List<String> lines(String log) {
+        return Arrays.asList(log.split("\n"));
+    }
+
+    static List<String> chunks(String log) {
+        List<String> out = new ArrayList<>();
+        for(int start = 0; start < log.length(); start += CHUNK_SIZE)
+            out.add(log.substring(start, Math.min(log.length(), start + CHUNK_SIZE)));
+        return out;
+    }
+
+    private static String read(String name) throws IOException {
+        try(InputStream in = RecordedLog.class.getResourceAsStream("/" + name)) {
+            if(in == null)
+                throw new IOException("Missing recorded log " + name);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[CHUNK_SIZE];
+            int read;
+            while((read = in.read(buffer)) > 0)
+                out.write(buffer, 0, read);
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package it.sijmen.cluino.benchmarks;
+
+import com.intellij.execution.configurations.ConfigurationFactory;
+import com.intellij.mock.MockApplication;
+import com.intellij.mock.MockProject;
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.util.Disposer;
+import it.sijmen.cluino.ToolchainService;
+import it.sijmen.cluino.runconfigurations.ArduinoRunConfigurationType;
+import it.sijmen.cluino.runconfigurations.compile.CompileRunConfiguration;
+import it.sijmen.cluino.runconfigurations.upload.UploadRunConfiguration;
+import org.jdom.Element;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Saving and loading the run configurations, which the IDE does when a project opens, when the
+ * run configurations dialog is used and for every run. A configuration is created, read from the
+ * stored xml and written back.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RunConfigurationBenchmark {
+
+    private Disposable disposable;
+    private MockProject project;
+    private ConfigurationFactory compileFactory, uploadFactory;
+    private Element compileElement, uploadElement;
+
+    @Setup
+    public void setUp() throws IOException {
+        System.setProperty("idea.system.path", Files.createTempDirectory("cluino-benchmark").toString());
+        disposable = Disposer.newDisposable();
+        MockApplication application = new MockApplication(disposable);
+        ApplicationManager.setApplication(application, disposable);
+        application.registerService(ToolchainService.class, new ToolchainService());
+        project = new MockProject(null, disposable);
+
+        ConfigurationFactory[] factories = new ArduinoRunConfigurationType().getConfigurationFactories();
+        compileFactory = factories[0];
+        uploadFactory = factories[1];
+
+        compileElement = new Element("configuration");
+        new CompileRunConfiguration(project, compileFactory, "Compile").writeExternal(compileElement);
+        compileElement.setAttribute("mainfile", "/home/user/Blink/Blink.ino");
+        compileElement.getChild("matrixfqbns")
+                .addContent(new Element("matrixfqbn").setText("arduino:avr:uno"))
+                .addContent(new Element("matrixfqbn").setText("arduino:avr:nano:cpu=atmega328old"));
+
+        uploadElement = new Element("configuration");
+        new UploadRunConfiguration(project, uploadFactory, "Upload").writeExternal(uploadElement);
+        uploadElement.setAttribute("hexfile", "/home/user/Blink/out/arduino-build/Compile/arduino_avr_uno/Blink.ino.hex");
+        uploadElement.setAttribute("port", "/dev/ttyUSB0");
+    }
+
+    @TearDown
+    public void tearDown() {
+        Disposer.dispose(disposable);
+    }
+
+    @Benchmark
+    public Element compileRoundTrip() {
+        CompileRunConfiguration configuration = new CompileRunConfiguration(project, compileFactory, "Compile");
+        configuration.readExternal(compileElement);
+        Element out = new Element("configuration");
+        configuration.writeExternal(out);
+        return out;
+    }
+
+    @Benchmark
+    public Element uploadRoundTrip() {
+        UploadRunConfiguration configuration = new UploadRunConfiguration(project, uploadFactory, "Upload");
+        configuration.readExternal(uploadElement);
+        Element out = new Element("configuration");
+        configuration.writeExternal(out);
+        return out;
+    }
+}
@@ -0,0 +1,56 @@
+package it.sijmen.cluino;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.components.ServiceManager;
+import it.sijmen.cluino.ext.ArduinoCliDaemon;
+
+import java.io.IOException;
+
+/**
+ * Keeps one arduino-cli daemon for the whole ide session. The daemon is started by the first build
+ * that needs it, started again when it stopped, and stopped when the ide exits.
+ */
+public class ArduinoCliService implements Disposable {
+
+    private final Object lock = new Object();
+    private volatile ArduinoCliDaemon daemon;
+    private volatile boolean disposed;
+
+    public static ArduinoCliService getInstance() {
+        return ServiceManager.getService(ArduinoCliService.class);
+    }
+
+    /**
+     * Starts the daemon, or returns the daemon that is already running.
+     * @throws IOException when the daemon cannot be started or does not answer
+     */
+    public ArduinoCliDaemon getDaemon() throws IOException, InterruptedException {
+        synchronized(lock) {
+            ArduinoCliDaemon current = daemon;
+            if(current != null && current.isAlive())
+                return current;
+            if(current != null)
+                current.stop();
+            daemon = null;
+            if(disposed)
+                throw new IOException("the ide is shutting down");
+            current = ArduinoCliDaemon.start();
+            daemon = current;
+            if(disposed) {
+                // disposed while the daemon started, dispose did not see it
+                current.stop();
+                daemon = null;
+                throw new IOException("the ide is shutting down");
+            }
+            return current;
+        }
+    }
+
+    @Override
+    public void dispose() {
+        disposed = true;
+        ArduinoCliDaemon current = daemon;
+        if(current != null)
+            current.stop();
+    }
+}
@@ -0,0 +1,90 @@
+package it.sijmen.cluino;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.components.ServiceManager;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.ThrowableComputable;
+import com.intellij.openapi.vfs.LocalFileSystem;
+import com.intellij.openapi.vfs.VirtualFileManager;
+import com.intellij.openapi.vfs.newvfs.BulkFileListener;
+import com.intellij.openapi.vfs.newvfs.events.VFileEvent;
+import it.sijmen.cluino.ext.LibraryIndex;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * Keeps the {@link LibraryIndex} of a project up to date. The library folders the index uses are
+ * watched, and every change the ide sees in them makes the index scan that library again.
+ * The includes that no library provides are kept per sketch, so run configurations can warn
+ * about them without scanning on the event dispatch thread.
+ */
+public class LibraryIndexService {
+
+    private final LibraryIndex index = new LibraryIndex();
+    private final Set<Path> watched = ConcurrentHashMap.newKeySet();
+    private final Map<String, Set<String>> unresolved = new ConcurrentHashMap<>();
+    private final Set<String> checking = ConcurrentHashMap.newKeySet();
+
+    public static LibraryIndexService getInstance(Project project) {
+        return ServiceManager.getService(project, LibraryIndexService.class);
+    }
+
+    public LibraryIndexService(Project project) {
+        project.getMessageBus().connect(project).subscribe(VirtualFileManager.VFS_CHANGES, new BulkFileListener() {
+            @Override
+            public void before(@NotNull List<? extends VFileEvent> events) {
+            }
+
+            @Override
+            public void after(@NotNull List<? extends VFileEvent> events) {
+                for(VFileEvent event : events)
+                    index.invalidate(Paths.get(event.getPath()));
+            }
+        });
+    }
+
+    /**
+     * @param libraryFolders the folders that will be resolved with the index. They are watched for changes.
+     */
+    public LibraryIndex getIndex(Collection<Path> libraryFolders) {
+        List<String> added = libraryFolders.stream()
+                .filter(watched::add)
+                .map(Path::toString)
+                .collect(Collectors.toList());
+        if(!added.isEmpty())
+            LocalFileSystem.getInstance().addRootsToWatch(added, true);
+        return index;
+    }
+
+    /**
+     * The includes that no library provided the last time the sketch was checked, without ever
+     * waiting. The sketch is checked again on a pooled thread, so a later call sees the changes.
+     * @param key   the sketch and everything the check depends on
+     * @param check finds the unresolved includes with the index
+     * @return null when the sketch was not checked yet
+     */
+    @Nullable
+    public Set<String> getUnresolvedIfReady(String key, ThrowableComputable<Set<String>, IOException> check) {
+        if(checking.add(key))
+            ApplicationManager.getApplication().executeOnPooledThread(() -> {
+                try {
+                    unresolved.put(key, check.compute());
+                } catch (IOException e) {
+                    unresolved.remove(key);
+                } finally {
+                    checking.remove(key);
+                }
+            });
+        return unresolved.get(key);
+    }
+}
@@ -0,0 +1,155 @@
+package it.sijmen.cluino;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.ModalityState;
+import com.intellij.openapi.components.ServiceManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.Disposer;
+import it.sijmen.cluino.ext.SerialDevice;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Keeps the list of connected serial ports and their usb devices up to date in the background.
+ * Where /dev can be watched the list is updated as soon as a device is plugged in or out,
+ * elsewhere the ports are listed every few seconds. Asking for the ports never waits.
+ */
+public class SerialPortService implements Disposable {
+
+    private static final Logger LOG = Logger.getInstance(SerialPortService.class);
+    private static final Path DEV = Paths.get("/dev");
+    private static final long POLL_INTERVAL_MILLIS = 3000;
+
+    /**
+     * Time udev needs to finish setting up a new device before its sysfs attributes can be read.
+     */
+    private static final long SETTLE_MILLIS = 300;
+
+    private final List<Consumer<List<SerialDevice>>> listeners = new CopyOnWriteArrayList<>();
+    private final Thread watcher;
+    private volatile List<SerialDevice> devices = Collections.emptyList();
+
+    public static SerialPortService getInstance() {
+        return ServiceManager.getService(SerialPortService.class);
+    }
+
+    public SerialPortService() {
+        watcher = new Thread(this::watch, "CLuino serial port watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    /**
+     * The ports that were connected at the last scan.
+     */
+    public List<SerialDevice> getDevices() {
+        return devices;
+    }
+
+    /**
+     * @return the connected device with the usb serial number, or null when it is not connected.
+     */
+    public SerialDevice findBySerialNumber(String serialNumber) {
+        for(SerialDevice device : devices)
+            if(serialNumber.equals(device.getSerialNumber()))
+                return device;
+        return null;
+    }
+
+    /**
+     * @return the connected device on the port, or null when it is not connected.
+     */
+    public SerialDevice findByPort(String port) {
+        for(SerialDevice device : devices)
+            if(device.getPort().equals(port))
+                return device;
+        return null;
+    }
+
+    /**
+     * Calls the listener on the event dispatch thread every time the connected ports change,
+     * until the parent is disposed. Also works while a modal dialog is shown.
+     */
+    public void addListener(Consumer<List<SerialDevice>> listener, Disposable parent) {
+        listeners.add(listener);
+        Disposer.register(parent, () -> listeners.remove(listener));
+    }
+
+    private void watch() {
+        try {
+            scan();
+            if(Files.isDirectory(DEV))
+                watchDev();
+            else
+                poll();
+        } catch (InterruptedException e) {
+            // disposed
+        }
+    }
+
+    /**
+     * Scans only when an entry in /dev is created or removed. Falls back to polling when /dev
+     * can not be watched (any more).
+     */
+    private void watchDev() throws InterruptedException {
+        try(WatchService service = FileSystems.getDefault().newWatchService()) {
+            DEV.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE);
+            while(true) {
+                WatchKey key = service.take();
+                Thread.sleep(SETTLE_MILLIS);
+                key.pollEvents();
+                boolean valid = key.reset();
+                scan();
+                if(!valid)
+                    throw new IOException(DEV + " is no longer watched");
+            }
+        } catch (IOException e) {
+            LOG.info("Could not watch " + DEV + ", listing the serial ports periodically instead", e);
+            poll();
+        }
+    }
+
+    private void poll() throws InterruptedException {
+        while(true) {
+            Thread.sleep(POLL_INTERVAL_MILLIS);
+            scan();
+        }
+    }
+
+    private void scan() {
+        List<SerialDevice> found = new ArrayList<>();
+        try {
+            for(String port : Util.getSerailPorts())
+                found.add(SerialDevice.describe(port));
+        } catch (RuntimeException | LinkageError e) {
+            LOG.info("Could not list the serial ports", e);
+            return;
+        }
+        if(found.equals(devices))
+            return;
+        devices = Collections.unmodifiableList(found);
+        if(!listeners.isEmpty())
+            ApplicationManager.getApplication().invokeLater(() -> {
+                for(Consumer<List<SerialDevice>> listener : listeners)
+                    listener.accept(devices);
+            }, ModalityState.any());
+    }
+
+    @Override
+    public void dispose() {
+        watcher.interrupt();
+    }
+}
@@ -0,0 +1,164 @@
+package it.sijmen.cluino;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.components.ServiceManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.ThrowableComputable;
+import it.sijmen.cluino.ext.BoardsCatalogue;
+import it.sijmen.cluino.ext.ToolchainIndex;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Keeps the {@link ToolchainIndex} of this machine. The stored index is used right away and
+ * checked in the background, so asking for the installed platforms and tools does not wait for
+ * the filesystem. Even the stored index is read in the background, so creating the service does
+ * not touch the filesystem either. The boards of the indexed platforms are kept as well, and read
+ * again with every check.
+ */
+public class ToolchainService {
+
+    private static final Logger LOG = Logger.getInstance(ToolchainService.class);
+    private static final long CHECK_INTERVAL_MILLIS = 30_000;
+
+    private final Path storeFile = Paths.get(PathManager.getSystemPath(), "cluino", "toolchain-index.properties");
+    private final AtomicBoolean checking = new AtomicBoolean(false);
+    private volatile ToolchainIndex index;
+    private volatile BoardsCatalogue catalogue;
+    private volatile long lastCheck;
+
+    public static ToolchainService getInstance() {
+        return ServiceManager.getService(ToolchainService.class);
+    }
+
+    public ToolchainService() {
+        checkInBackground();
+    }
+
+    /**
+     * The last known index. Reads the stored index or scans on the calling thread when that was
+     * not done yet. Otherwise the index is checked in the background when it was not checked recently.
+     */
+    public ToolchainIndex getIndex() {
+        ToolchainIndex current = index;
+        if(current == null)
+            return check();
+        if(System.currentTimeMillis() - lastCheck > CHECK_INTERVAL_MILLIS)
+            checkInBackground();
+        return current;
+    }
+
+    /**
+     * The last known index, without ever waiting for it.
+     * @return null when the index is still being read or made. It is then made in the background.
+     */
+    @Nullable
+    public ToolchainIndex getIndexIfReady() {
+        if(index == null) {
+            checkInBackground();
+            return null;
+        }
+        return getIndex();
+    }
+
+    /**
+     * The boards of the platforms in the index, without ever waiting for them.
+     * @return null when the index or the boards are still being read. They are then read in the background.
+     */
+    @Nullable
+    public BoardsCatalogue getCatalogueIfReady() {
+        return getIndexIfReady() == null ? null : catalogue;
+    }
+
+    /**
+     * Runs the action with the index on a pooled thread, after reading or making the index when
+     * that is needed.
+     */
+    public void whenReady(Consumer<ToolchainIndex> action) {
+        ApplicationManager.getApplication().executeOnPooledThread(() -> action.accept(getIndex()));
+    }
+
+    /**
+     * The index, for when it is really needed, like when starting a build. When the index still
+     * has to be made on the event dispatch thread, it is made under a progress dialog instead of
+     * freezing the IDE.
+     */
+    public ToolchainIndex awaitIndex(@Nullable Project project) {
+        ToolchainIndex current = index;
+        if(current != null || !ApplicationManager.getApplication().isDispatchThread())
+            return getIndex();
+        return ProgressManager.getInstance().runProcessWithProgressSynchronously(
+                (ThrowableComputable<ToolchainIndex, RuntimeException>) this::getIndex,
+                "Looking for Arduino Platforms", false, project);
+    }
+
+    public void checkInBackground() {
+        if(checking.compareAndSet(false, true))
+            ApplicationManager.getApplication().executeOnPooledThread(() -> {
+                try {
+                    check();
+                } finally {
+                    checking.set(false);
+                }
+            });
+    }
+
+    /**
+     * Scans again when the installed platforms or tools changed since the index was made.
+     */
+    private synchronized ToolchainIndex check() {
+        ToolchainIndex current = index;
+        if(current == null) {
+            current = load();
+            index = current;
+        }
+        try {
+            if(current == null || !current.getStamp().equals(ToolchainIndex.computeStamp())) {
+                current = ToolchainIndex.scan();
+                index = current;
+                current.save(storeFile);
+            }
+        } catch (IOException e) {
+            LOG.info("Could not update the toolchain index", e);
+            if(current == null) {
+                current = ToolchainIndex.empty();
+                index = current;
+            }
+        }
+        catalogue = loadCatalogue(current);
+        lastCheck = System.currentTimeMillis();
+        return current;
+    }
+
+    @Nullable
+    private static BoardsCatalogue loadCatalogue(ToolchainIndex index) {
+        Map<String, Path> platforms = new LinkedHashMap<>();
+        index.getPlatformDirs().forEach((platform, dir) -> platforms.put(platform, Paths.get(dir)));
+        try {
+            return BoardsCatalogue.load(index.getHardwares(), platforms);
+        } catch (IOException e) {
+            LOG.info("Could not read the boards of the installed platforms", e);
+            return null;
+        }
+    }
+
+    @Nullable
+    private ToolchainIndex load() {
+        try {
+            return ToolchainIndex.load(storeFile);
+        } catch (IOException e) {
+            LOG.info("Could not read the toolchain index", e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package it.sijmen.cluino.cli;
+
+import it.sijmen.cluino.ext.ArduinoBuilder;
+import it.sijmen.cluino.ext.ArduinoCli;
+import it.sijmen.cluino.ext.BuildFingerprint;
+import it.sijmen.cluino.ext.BuildLock;
+import it.sijmen.cluino.ext.BuildTimer;
+import it.sijmen.cluino.ext.LibraryIndex;
+import it.sijmen.cluino.ext.NativeBuilder;
+import it.sijmen.cluino.ext.SharedBuildCache;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Builds compile configurations without the IDE, the same way CompileJob does: the same command
+ * lines, build folders, fingerprints and locks. So a build skipped here is skipped in the IDE too,
+ * and the other way around.
+ */
+class BatchBuild {
+
+    private final Path projectDir;
+    private final int threads;
+    private final boolean forceSharedCache;
+    private final boolean force;
+    private final PrintStream log;
+    private final LibraryIndex libraryIndex = new LibraryIndex();
+
+    /**
+     * @param forceSharedCache use the shared build cache, also for configurations that do not
+     * @param force build even when nothing changed since the last successful build
+     * @param log receives the output of all builds, every line prefixed with its build
+     */
+    BatchBuild(Path projectDir, int threads, boolean forceSharedCache, boolean force, PrintStream log) {
+        this.projectDir = projectDir;
+        this.threads = threads;
+        this.forceSharedCache = forceSharedCache;
+        this.force = force;
+        this.log = log;
+    }
+
+    static class Result {
+        final String configuration, fqbn, status, message;
+        final Path hexFile;
+        final long millis;
+
+        Result(String configuration, String fqbn, String status, String message, Path hexFile, long millis) {
+            this.configuration = configuration;
+            this.fqbn = fqbn;
+            this.status = status;
+            this.message = message;
+            this.hexFile = hexFile;
+            this.millis = millis;
+        }
+
+        boolean isSuccess() {
+            return !"failed".equals(status);
+        }
+
+        String toJson() {
+            return "{\"configuration\": " + BuildTimer.quote(configuration)
+                    + ", \"fqbn\": " + BuildTimer.quote(fqbn)
+                    + ", \"status\": " + BuildTimer.quote(status)
+                    + ", \"message\": " + BuildTimer.quote(message)
+                    + ", \"hexFile\": " + BuildTimer.quote(hexFile == null ? null : hexFile.toString())
+                    + ", \"millis\": " + millis + "}";
+        }
+    }
+
+    /**
+     * Builds every board of every configuration, at most threads at the same time.
+     * @return the results in the order of the configurations and boards
+     */
+    List<Result> run(List<CompileSettings> configurations) throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+        try {
+            List<Future<Result>> futures = new ArrayList<>();
+            List<String[]> builds = new ArrayList<>();
+            for(CompileSettings settings : configurations)
+                for(String board : settings.getBoards()) {
+                    futures.add(pool.submit(() -> build(settings, board)));
+                    builds.add(new String[]{settings.name, board});
+                }
+
+            List<Result> out = new ArrayList<>();
+            for(int i = 0; i < futures.size(); i++)
+                try {
+                    out.add(futures.get(i).get());
+                } catch (java.util.concurrent.ExecutionException e) {
+                    String[] build = builds.get(i);
+                    String message = e.getCause().getMessage() == null ? e.getCause().toString() : e.getCause().getMessage();
+                    log.println("[" + build[0] + " " + build[1] + "] " + message);
+                    out.add(new Result(build[0], build[1], "failed", message, null, 0));
+                }
+
+            long sharedCacheLimit = 0;
+            for(CompileSettings settings : configurations)
+                if(settings.sharedCache || forceSharedCache)
+                    sharedCacheLimit = Math.max(sharedCacheLimit, settings.sharedCacheLimit * 1024L * 1024L);
+            if(sharedCacheLimit > 0)
+                try {
+                    SharedBuildCache.evict(sharedCacheLimit);
+                } catch (IOException e) {
+                    log.println("Could not clean the shared build cache: " + e.getMessage());
+                }
+            return out;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @SuppressWarnings("try") // the build and cache locks are only held, never used
+    private Result build(CompileSettings settings, String board) throws InterruptedException {
+        String prefix = "[" + settings.name + " " + board + "] ";
+        long start = System.currentTimeMillis();
+        Path hexFile = null;
+        try {
+            ArduinoBuilder builder = settings.createBuilder(board).setLibraryIndex(libraryIndex);
+            if(settings.sharedCache || forceSharedCache)
+                builder.setCacheDir(SharedBuildCache.getEntry(board, builder.getSharedCacheKey()));
+            builder.prepareDirs(projectDir);
+            hexFile = builder.getHexFile(projectDir, settings.mainFile);
+
+            boolean useCli = settings.backend == ArduinoBuilder.Backend.CLI
+                    && ArduinoCli.canBuild(settings.mainFile) && ArduinoCli.isAvailable();
+            List<String> command = useCli
+                    ? builder.getCliCompileCommand(settings.mainFile, projectDir)
+                    : builder.getCompileCommand(settings.mainFile, projectDir);
+            String fingerprint = builder.getFingerprint(settings.mainFile, ArduinoBuilder.withBackend(command, settings.backend));
+
+            Path buildDir = builder.getBuildDir(projectDir);
+            Runnable onWait = () -> log.println(prefix + "Waiting for another build of " + board + " to finish...");
+            try(BuildLock buildLock = BuildLock.acquire(buildDir, onWait);
+                BuildLock cacheLock = BuildLock.acquire(builder.getCacheDir(projectDir), onWait)) {
+                builder.markCacheUsed();
+                if(!force && BuildFingerprint.isUpToDate(buildDir, fingerprint) && Files.exists(hexFile))
+                    return new Result(settings.name, board, "skipped", "Nothing changed since the last successful build",
+                            hexFile, System.currentTimeMillis() - start);
+
+                BuildFingerprint.invalidate(buildDir);
+                int exitCode = settings.backend == ArduinoBuilder.Backend.NATIVE
+                        ? buildNative(builder.getNativeBuilder(settings.mainFile, projectDir), prefix)
+                        : runProcess(command, prefix);
+                if(exitCode != 0)
+                    return new Result(settings.name, board, "failed", "Exit code " + exitCode,
+                            null, System.currentTimeMillis() - start);
+                BuildFingerprint.store(buildDir, fingerprint);
+            }
+            return new Result(settings.name, board, "ok", null, hexFile, System.currentTimeMillis() - start);
+        } catch (IOException e) {
+            log.println(prefix + e.getMessage());
+            return new Result(settings.name, board, "failed", e.getMessage(), null, System.currentTimeMillis() - start);
+        }
+    }
+
+    private int runProcess(List<String> command, String prefix) throws IOException, InterruptedException {
+        log.println(prefix + String.join(" ", command));
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        try(BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while((line = reader.readLine()) != null)
+                log.println(prefix + line);
+        } finally {
+            if(Thread.currentThread().isInterrupted())
+                process.destroy();
+        }
+        return process.waitFor();
+    }
+
+    private int buildNative(NativeBuilder builder, String prefix) throws InterruptedException {
+        try {
+            builder.build(new BuildTimer(), new NativeBuilder.Output() {
+                @Override
+                public void info(String text) {
+                    for(String line : text.split("\r?\n"))
+                        log.println(prefix + line);
+                }
+
+                @Override
+                public void error(String text) {
+                    info(text);
+                }
+            });
+            return 0;
+        } catch (IOException e) {
+            log.println(prefix + e.getMessage());
+            return 1;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package it.sijmen.cluino.cli;
+
+import it.sijmen.cluino.ext.ArduinoBuilder;
+import it.sijmen.cluino.ext.ToolchainIndex;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The settings of one compile run configuration, as stored by the IDE.
+ */
+class CompileSettings {
+
+    String name;
+    String mainFile;
+    ArduinoBuilder.Logger logger = ArduinoBuilder.Logger.HUMAN;
+    ArduinoBuilder.Warnings warnings = ArduinoBuilder.Warnings.NONE;
+    ArduinoBuilder.Backend backend = ArduinoBuilder.Backend.BUILDER;
+    String fqbn;
+    String ideVersion = "";
+    int debugLevel = 5;
+    boolean verbose;
+    boolean sharedCache;
+    int sharedCacheLimit = 2048;
+    /**
+     * Null when the IDE did not store them because it did not know the defaults yet.
+     */
+    List<String> hardwares, tools, prefs;
+    List<String> libraries = new ArrayList<>();
+    List<String> matrixFqbns = new ArrayList<>();
+
+    boolean isDefaultsResolved() {
+        return hardwares != null && tools != null && prefs != null;
+    }
+
+    /**
+     * Fills in the hardware, tools and prefs the IDE did not store, like the run configuration does.
+     */
+    void resolveDefaults(ToolchainIndex index) {
+        if(hardwares == null)
+            hardwares = ArduinoBuilder.getDefaultHardwares(index);
+        if(tools == null)
+            tools = ArduinoBuilder.getDefaultTools(index);
+        if(prefs == null)
+            prefs = ArduinoBuilder.getDefaultPrefs(index);
+    }
+
+    /**
+     * The boards the configuration builds for.
+     */
+    List<String> getBoards() {
+        return matrixFqbns.isEmpty() ? Collections.singletonList(fqbn) : matrixFqbns;
+    }
+
+    ArduinoBuilder createBuilder(String board) {
+        return new ArduinoBuilder(logger, board, ideVersion, warnings, verbose, debugLevel,
+                hardwares, tools, prefs, libraries).setConfiguration(name);
+    }
+}
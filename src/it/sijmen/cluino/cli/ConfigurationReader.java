@@ -0,0 +1,106 @@
+package it.sijmen.cluino.cli;
+
+import it.sijmen.cluino.ext.ArduinoBuilder;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads compile run configurations from the xml files of the IDE: .idea/workspace.xml, the files
+ * in .idea/runConfigurations, or any file containing configuration elements written by
+ * CompileRunConfiguration.writeExternal. The IDE stores paths inside the project and the home
+ * folder with the $PROJECT_DIR$ and $USER_HOME$ macros, these are expanded.
+ */
+class ConfigurationReader {
+
+    private final Path projectDir;
+
+    ConfigurationReader(Path projectDir) {
+        this.projectDir = projectDir;
+    }
+
+    List<CompileSettings> read(Path file) throws IOException {
+        Document document;
+        try {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+            factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+            DocumentBuilder builder = factory.newDocumentBuilder();
+            document = builder.parse(file.toFile());
+        } catch (ParserConfigurationException | SAXException e) {
+            throw new IOException("Could not read " + file + ": " + e.getMessage(), e);
+        }
+
+        List<CompileSettings> out = new ArrayList<>();
+        NodeList configurations = document.getElementsByTagName("configuration");
+        for(int i = 0; i < configurations.getLength(); i++) {
+            Element e = (Element) configurations.item(i);
+            if(e.hasAttribute("mainfile") && e.hasAttribute("fqbn") && !"true".equals(e.getAttribute("default")))
+                out.add(read(e));
+        }
+        return out;
+    }
+
+    /**
+     * The same attributes as CompileRunConfiguration.readExternal.
+     */
+    private CompileSettings read(Element e) {
+        CompileSettings out = new CompileSettings();
+        out.name = e.getAttribute("name");
+        out.mainFile = expand(e.getAttribute("mainfile"));
+
+        out.logger = ArduinoBuilder.Logger.valueOf(e.getAttribute("logger"));
+        out.fqbn = e.getAttribute("fqbn");
+        out.ideVersion = e.getAttribute("ideversion");
+        out.warnings = ArduinoBuilder.Warnings.valueOf(e.getAttribute("warnings"));
+        if(e.hasAttribute("backend"))
+            out.backend = ArduinoBuilder.Backend.valueOf(e.getAttribute("backend"));
+
+        out.debugLevel = Integer.parseInt(e.getAttribute("debuglevel"));
+        out.verbose = "true".equals(e.getAttribute("verbose"));
+        out.sharedCache = "true".equals(e.getAttribute("sharedcache"));
+        if(e.hasAttribute("sharedcachelimit"))
+            out.sharedCacheLimit = Integer.parseInt(e.getAttribute("sharedcachelimit"));
+
+        out.hardwares = hasChild(e, "hardwares") ? getSubitems(e, "hardwares") : null;
+        out.tools = hasChild(e, "tools") ? getSubitems(e, "tools") : null;
+        out.prefs = hasChild(e, "prefs") ? getSubitems(e, "prefs") : null;
+        out.libraries = getSubitems(e, "libs");
+        out.matrixFqbns = getSubitems(e, "matrixfqbns");
+        return out;
+    }
+
+    private boolean hasChild(Element parent, String name) {
+        for(Node child = parent.getFirstChild(); child != null; child = child.getNextSibling())
+            if(child instanceof Element && child.getNodeName().equals(name))
+                return true;
+        return false;
+    }
+
+    private List<String> getSubitems(Element parent, String name) {
+        List<String> out = new ArrayList<>();
+        for(Node child = parent.getFirstChild(); child != null; child = child.getNextSibling())
+            if(child instanceof Element && child.getNodeName().equals(name))
+                for(Node item = child.getFirstChild(); item != null; item = item.getNextSibling())
+                    if(item instanceof Element)
+                        out.add(expand(item.getTextContent()));
+        return out;
+    }
+
+    private String expand(String value) {
+        return value
+                .replace("$PROJECT_DIR$", projectDir.toString())
+                .replace("$USER_HOME$", System.getProperty("user.home"));
+    }
+}
@@ -0,0 +1,158 @@
+package it.sijmen.cluino.cli;
+
+import it.sijmen.cluino.ext.ToolchainIndex;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds the compile run configurations of a project from the command line, for example on a
+ * build server:
+ * <pre>
+ * java -cp CLuino.jar it.sijmen.cluino.cli.Main --project . --configuration Compile --jobs 4
+ * </pre>
+ * The output of the builds goes to stderr, the results go to stdout as json.
+ */
+public class Main {
+
+    private static final String USAGE = String.join("\n",
+            "Usage: cluino [options]",
+            "  --project DIR          the project folder, default the current folder",
+            "  --configuration NAME   build only this compile configuration, can be repeated",
+            "  --jobs N               the number of builds at the same time, default 1",
+            "  --shared-cache         use the shared build cache for all configurations",
+            "  --force                build even when nothing changed",
+            "  --json FILE            also write the results to this file",
+            "Exit codes: 0 all builds succeeded, 1 a build failed, 2 wrong usage or settings.");
+
+    public static void main(String[] args) {
+        System.exit(run(args, System.out, System.err));
+    }
+
+    static int run(String[] args, PrintStream out, PrintStream err) {
+        Path projectDir = Paths.get(".");
+        List<String> names = new ArrayList<>();
+        int jobs = 1;
+        boolean sharedCache = false, force = false;
+        Path json = null;
+        try {
+            for(int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--project": projectDir = Paths.get(value(args, ++i)); break;
+                    case "--configuration": names.add(value(args, ++i)); break;
+                    case "--jobs": jobs = Integer.parseInt(value(args, ++i)); break;
+                    case "--shared-cache": sharedCache = true; break;
+                    case "--force": force = true; break;
+                    case "--json": json = Paths.get(value(args, ++i)); break;
+                    case "--help":
+                        out.println(USAGE);
+                        return 0;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+            if(jobs < 1)
+                throw new IllegalArgumentException("--jobs must be at least 1");
+        } catch (IllegalArgumentException e) {
+            err.println(e.getMessage());
+            err.println(USAGE);
+            return 2;
+        }
+
+        projectDir = projectDir.toAbsolutePath().normalize();
+        List<CompileSettings> configurations;
+        try {
+            configurations = select(readConfigurations(projectDir), names);
+            ToolchainIndex toolchain = null;
+            for(CompileSettings settings : configurations)
+                if(!settings.isDefaultsResolved()) {
+                    if(toolchain == null)
+                        toolchain = ToolchainIndex.scan();
+                    settings.resolveDefaults(toolchain);
+                }
+        } catch (IOException e) {
+            err.println(e.getMessage());
+            return 2;
+        }
+
+        List<BatchBuild.Result> results;
+        try {
+            results = new BatchBuild(projectDir, jobs, sharedCache, force, err).run(configurations);
+        } catch (InterruptedException e) {
+            err.println("Interrupted");
+            return 1;
+        }
+
+        String report = toJson(results);
+        out.println(report);
+        if(json != null)
+            try {
+                Files.write(json, report.getBytes(StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                err.println("Could not write " + json + ": " + e.getMessage());
+                return 1;
+            }
+        for(BatchBuild.Result result : results)
+            if(!result.isSuccess())
+                return 1;
+        return 0;
+    }
+
+    private static String value(String[] args, int i) {
+        if(i >= args.length)
+            throw new IllegalArgumentException(args[i - 1] + " needs a value");
+        return args[i];
+    }
+
+    /**
+     * Reads the compile configurations from .idea/runConfigurations and .idea/workspace.xml. A
+     * shared configuration wins from a workspace configuration with the same name.
+     */
+    private static Map<String, CompileSettings> readConfigurations(Path projectDir) throws IOException {
+        ConfigurationReader reader = new ConfigurationReader(projectDir);
+        Map<String, CompileSettings> out = new LinkedHashMap<>();
+        Path shared = projectDir.resolve(".idea").resolve("runConfigurations");
+        if(Files.isDirectory(shared))
+            try(DirectoryStream<Path> files = Files.newDirectoryStream(shared, "*.xml")) {
+                for(Path file : files)
+                    for(CompileSettings settings : reader.read(file))
+                        out.putIfAbsent(settings.name, settings);
+            }
+        Path workspace = projectDir.resolve(".idea").resolve("workspace.xml");
+        if(Files.isRegularFile(workspace))
+            for(CompileSettings settings : reader.read(workspace))
+                out.putIfAbsent(settings.name, settings);
+        if(out.isEmpty())
+            throw new IOException("No compile configurations found in " + projectDir.resolve(".idea"));
+        return out;
+    }
+
+    private static List<CompileSettings> select(Map<String, CompileSettings> all, List<String> names) throws IOException {
+        if(names.isEmpty())
+            return new ArrayList<>(all.values());
+        List<CompileSettings> out = new ArrayList<>();
+        for(String name : names) {
+            CompileSettings settings = all.get(name);
+            if(settings == null)
+                throw new IOException("No compile configuration named " + name + ". Found: " + String.join(", ", all.keySet()));
+            out.add(settings);
+        }
+        return out;
+    }
+
+    private static String toJson(List<BatchBuild.Result> results) {
+        StringBuilder out = new StringBuilder("[");
+        for(int i = 0; i < results.size(); i++)
+            out.append(i == 0 ? "\n  " : ",\n  ").append(results.get(i).toJson());
+        return out.append(results.isEmpty() ? "]" : "\n]").toString();
+    }
+}
@@ -1,22 +1,32 @@
 package it.sijmen.cluino.ext;
 
-import com.intellij.openapi.project.Project;
-import com.intellij.openapi.vfs.VirtualFile;
-
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
-
-import static it.sijmen.cluino.Util.*;
-
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Assembles the build of a sketch for arduino-builder, arduino-cli or the {@link NativeBuilder}.
+ * Does not depend on the IDE, so the command line build of {@code it.sijmen.cluino.cli.Main}
+ * builds exactly the same.
+ */
 public class ArduinoBuilder {
 
     private static final String OUT_BUILD = "arduino-build", OUT_CACHE = "arduino-cache", OUT = "out";
 
+    /**
+     * Tools whose path is passed as preference by default, pointing to the newest installed version.
+     */
+    private static final String[] DEFAULT_PREF_TOOLS = { "arduinoOTA", "avrdude", "avr-gcc" };
+
     /**
      *  Can be "human", "humantags" or "machine". Defaults to "human".
      *  If "humantags" the messages are qualified with a prefix that indicates
@@ -81,6 +91,24 @@ public class ArduinoBuilder {
      */
     private List<String> libraries;
 
+    /**
+     * Name of the run configuration that builds. Every configuration gets its own build
+     * folder so builds of different configurations do not overwrite each other.
+     */
+    private String configuration;
+
+    /**
+     * Optional. Cache folder to use instead of the cache folder in the project,
+     * for example an entry of the {@link SharedBuildCache}.
+     */
+    private Path cacheDir;
+
+    /**
+     * Optional. When set, only the library folders that contain libraries the sketch uses are
+     * passed to the build.
+     */
+    private LibraryIndex libraryIndex;
+
     public ArduinoBuilder(Logger logger, String fqbn, String ideVersion, Warnings warnings, boolean verbose,
                           int debugLevel, List<String> hardwares, List<String> tools, List<String> prefs, List<String> libraries) {
         this.logger = logger;
@@ -95,21 +123,23 @@ public class ArduinoBuilder {
         this.libraries = libraries;
     }
 
-    public List<String> getCompileCommand(String file, Project project) throws IOException {
+    public List<String> getCompileCommand(String file, Path projectDir) throws IOException {
         List<String> out = new ArrayList<>();
-        VirtualFile outPath = getOrFail(project.getBaseDir(), "out");
 
         out.add("arduino-builder");
         out.add("-compile");
 
+        List<String> libs = getUsedLibraryFolders(file);
+        checkExisting(tools, hardwares, libs);
+
         for(String tool : tools)
-            out.add("-tools="+getFileOrFail(tool).getPath());
+            out.add("-tools="+tool);
 
         for(String hardware : hardwares)
-            out.add("-hardware="+getFileOrFail(hardware).getPath());
+            out.add("-hardware="+hardware);
 
-        for(String lib : libraries)
-            out.add("-libraries="+getFileOrFail(lib).getPath());
+        for(String lib : libs)
+            out.add("-libraries="+lib);
 
         out.add("-logger=" + logger.toString().toLowerCase());
         out.add("-fqbn="+fqbn);
@@ -118,8 +148,8 @@ public class ArduinoBuilder {
         out.add("-warnings="+warnings.toString().toLowerCase());
         out.add("-debug-level="+debugLevel);
 
-        out.add("-build-path=" + getOrFail(outPath, OUT_BUILD).getPath());
-        out.add("-build-cache=" + getOrFail(outPath, OUT_CACHE).getPath());
+        out.add("-build-path=" + existingDir(getBuildDir(projectDir)));
+        out.add("-build-cache=" + existingDir(getCacheDir(projectDir)));
 
         prefs.forEach(p -> out.add("-prefs=" + p));
 
@@ -131,53 +161,247 @@ public class ArduinoBuilder {
         return out;
     }
 
-    public void prepareDirs(Object requestor, Project project) throws IOException {
-        VirtualFile out = getOrCreateDir(requestor, project.getBaseDir(), OUT);
+    /**
+     * The same build as {@link #getCompileCommand(String, Path)} using arduino-cli. Hardware and
+     * tools folders are not passed because arduino-cli uses its own installed platforms.
+     */
+    public List<String> getCliCompileCommand(String file, Path projectDir) throws IOException {
+        List<String> out = new ArrayList<>();
 
-        getOrCreateDir(requestor, out, OUT_BUILD);
-        getOrCreateDir(requestor, out, OUT_CACHE);
-    }
+        out.add(ArduinoCli.getExecutable());
+        out.add("compile");
 
-    public enum Logger { HUMAN, HUMANTAGS, MACHINE;}
+        out.add("--fqbn");
+        out.add(fqbn);
 
-    public enum Warnings { NONE, DEFAUlT, MORE, ALL;}
+        List<String> libs = getUsedLibraryFolders(file);
+        checkExisting(libs);
+        for(String lib : libs) {
+            out.add("--libraries");
+            out.add(lib);
+        }
 
-    public static List<String> getDefaultPrefs() {
-        List<String> out = new ArrayList<>();
+        out.add("--warnings");
+        out.add(warnings.toString().toLowerCase());
 
-        out.add("build.warn_data_percentage=75");
-        Path userdir = getUserHomeArduinoPackages().resolve("arduino/tools");
-        if(Files.exists(userdir)) {
-            String p = userdir.toAbsolutePath().toString();
-            out.add("runtime.tools.arduinoOTA.path=" + p + "/arduinoOTA/1.1.1");
-            out.add("runtime.tools.avrdude.path=" + p + "/avrdude/6.3.0-arduino9");
-            out.add("runtime.tools.avr-gcc.path=" + p + "/avr-gcc/4.9.2-atmel3.5.4-arduino2");
+        out.add("--build-path");
+        out.add(existingDir(getBuildDir(projectDir)));
+        out.add("--build-cache-path");
+        out.add(existingDir(getCacheDir(projectDir)));
+
+        for(String pref : prefs) {
+            out.add("--build-property");
+            out.add(pref);
         }
+
+        if(verbose)
+            out.add("--verbose");
+
+        out.add(file);
+
         return out;
     }
 
-    public static List<String> getDefaultHardwares(){
+    /**
+     * The same build as {@link #getCliCompileCommand(String, Path)}, sent to the {@link ArduinoCliDaemon}.
+     */
+    public ArduinoCliDaemon.Compile getDaemonCompile(String file, Path projectDir) throws IOException {
+        List<String> libs = getUsedLibraryFolders(file);
+        checkExisting(libs);
+        return new ArduinoCliDaemon.Compile(fqbn, Paths.get(file).toAbsolutePath().getParent(),
+                Paths.get(existingDir(getBuildDir(projectDir))), Paths.get(existingDir(getCacheDir(projectDir))),
+                prefs, libs, warnings.toString().toLowerCase(), verbose);
+    }
+
+    /**
+     * The same build as {@link #getCompileCommand(String, Path)}, run by the {@link NativeBuilder}
+     * instead of by arduino-builder.
+     */
+    public NativeBuilder getNativeBuilder(String file, Path projectDir) {
+        NativeBuilder out = new NativeBuilder(fqbn, hardwares, tools, prefs, libraries, warnings, ideVersion, verbose,
+                getBuildDir(projectDir), Paths.get(file));
+        if(libraryIndex != null)
+            out.setLibraryIndex(libraryIndex);
+        return out;
+    }
+
+    /**
+     * The library folders that contain a library the sketch uses. Without a library index these
+     * are all library folders.
+     */
+    private List<String> getUsedLibraryFolders(String file) throws IOException {
+        if(libraryIndex == null || libraries.isEmpty())
+            return libraries;
+        List<Path> folders = libraries.stream().map(Paths::get).collect(Collectors.toList());
+        Set<Path> used = new HashSet<>();
+        for(Path library : getUsedLibraries(file))
+            used.add(library.getParent());
+
         List<String> out = new ArrayList<>();
-        if(!isWindows())
-            out.add("/usr/share/arduino/hardware");
-        Path userdir = getUserHomeArduinoPackages();
-        if(Files.exists(userdir))
-            out.add(userdir.toAbsolutePath().toString());
+        for(int i = 0; i < folders.size(); i++)
+            if(used.contains(folders.get(i)))
+                out.add(libraries.get(i));
+        return out;
+    }
+
+    /**
+     * The folders of the libraries the sketch includes. Without a library index these are the
+     * complete libraries folders.
+     */
+    private List<Path> getUsedLibraries(String file) throws IOException {
+        List<Path> folders = libraries.stream().map(Paths::get).collect(Collectors.toList());
+        if(libraryIndex == null || libraries.isEmpty())
+            return folders;
+        List<Path> out = new ArrayList<>();
+        for(LibraryIndex.Library library : libraryIndex.resolve(folders, LibraryIndex.sketchFiles(Paths.get(file)),
+                Collections.emptySet()).getLibraries())
+            out.add(library.getRoot());
         return out;
     }
 
-    public static List<String> getDefaultTools(){
+    /**
+     * Hashes the sources of the sketch and of the libraries it uses, the command line and the
+     * installed cores and tools. Equal fingerprints produce equal build results.
+     */
+    public String getFingerprint(String file, List<String> command) throws IOException {
+        return BuildFingerprint.compute(file, command, fqbn, hardwares, tools, getUsedLibraries(file));
+    }
+
+    /**
+     * The native backend runs the same build as the arduino-builder command, but its output
+     * must not be mistaken for the output of arduino-builder. Fingerprints are computed over
+     * the command with the backend in front.
+     */
+    public static List<String> withBackend(List<String> command, Backend backend) {
+        List<String> out = new ArrayList<>(command);
+        out.add(0, backend.toString());
+        return out;
+    }
+
+    /**
+     * The out folder of the project, which contains all build and cache folders that are not shared.
+     */
+    public static Path getOutDir(Path projectDir) {
+        return projectDir.resolve(OUT);
+    }
+
+    /**
+     * out/arduino-build/CONFIGURATION/FQBN. Every configuration and board has its own build folder.
+     */
+    public Path getBuildDir(Path projectDir) {
+        return getBuildDir(projectDir, configuration, fqbn);
+    }
+
+    public static Path getBuildDir(Path projectDir, String configuration, String fqbn) {
+        return getOutDir(projectDir).resolve(OUT_BUILD).resolve(toDirName(configuration)).resolve(toDirName(fqbn));
+    }
+
+    /**
+     * out/arduino-cache/FQBN. The cache only depends on the board, so it is shared by
+     * all configurations that build for the same board.
+     */
+    public Path getCacheDir(Path projectDir) {
+        if(cacheDir != null)
+            return cacheDir;
+        return getOutDir(projectDir).resolve(OUT_CACHE).resolve(toDirName(fqbn));
+    }
+
+    /**
+     * Key of the entry in the {@link SharedBuildCache} that this build can use.
+     */
+    public String getSharedCacheKey() throws IOException {
+        return BuildFingerprint.computeCacheKey(fqbn, hardwares, tools, prefs);
+    }
+
+    public Path getHexFile(Path projectDir, String file) {
+        return getBuildDir(projectDir).resolve(Paths.get(file).getFileName() + ".hex");
+    }
+
+    /**
+     * Checks that all paths exist. The paths are checked at the same time, because each check
+     * can take a while when the folders are on a network drive.
+     * @throws IOException naming the first path that does not exist
+     */
+    @SafeVarargs
+    private static void checkExisting(List<String>... paths) throws IOException {
+        List<String> all = new ArrayList<>();
+        for(List<String> list : paths)
+            all.addAll(list);
+        Optional<String> missing = all.parallelStream().filter(path -> !Files.exists(Paths.get(path))).findFirst();
+        if(missing.isPresent())
+            throw new IOException("Could not find file "+missing.get()+".");
+    }
+
+    private static String existingDir(Path dir) throws IOException {
+        if(!Files.isDirectory(dir))
+            throw new IOException("Could not find "+dir+" directory");
+        return dir.toString();
+    }
+
+    /**
+     * Turns a name into something that can be used as folder name, e.g. arduino:avr:uno to arduino_avr_uno.
+     */
+    public static String toDirName(String name) {
+        if(name == null || name.isEmpty())
+            return "default";
+        return name.replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+
+    /**
+     * The folders the build writes to inside the project folder: the build folder and, when no
+     * shared cache entry is used, the cache folder.
+     */
+    public List<Path> getOutputDirs(Path projectDir) {
+        List<Path> out = new ArrayList<>();
+        out.add(getBuildDir(projectDir));
+        if(cacheDir == null)
+            out.add(getCacheDir(projectDir));
+        return out;
+    }
+
+    /**
+     * Creates the folders the build writes to.
+     */
+    public void prepareDirs(Path projectDir) throws IOException {
+        for(Path dir : getOutputDirs(projectDir))
+            Files.createDirectories(dir);
+        if(cacheDir != null)
+            Files.createDirectories(cacheDir);
+    }
+
+    /**
+     * Marks the shared cache entry as used. Call while holding the {@link BuildLock} of the cache
+     * folder, so the entry is not evicted between marking it and building.
+     */
+    public void markCacheUsed() throws IOException {
+        if(cacheDir != null)
+            SharedBuildCache.touch(cacheDir);
+    }
+
+    public enum Logger { HUMAN, HUMANTAGS, MACHINE;}
+
+    public enum Warnings { NONE, DEFAUlT, MORE, ALL;}
+
+    public enum Backend { BUILDER, CLI, NATIVE;}
+
+    public static List<String> getDefaultPrefs(ToolchainIndex index) {
         List<String> out = new ArrayList<>();
-        if(!isWindows())
-            out.add("/usr/share/arduino/tools-builder");
-        Path userdir = getUserHomeArduinoPackages();
-        if(Files.exists(userdir))
-            out.add(userdir.toAbsolutePath().toString());
+
+        out.add("build.warn_data_percentage=75");
+        for(String tool : DEFAULT_PREF_TOOLS) {
+            String path = index.getToolPath(tool);
+            if(path != null)
+                out.add("runtime.tools." + tool + ".path=" + path);
+        }
         return out;
     }
 
-    private static Path getUserHomeArduinoPackages(){
-        return Paths.get(System.getProperty("user.home")).resolve(".arduino15/packages");
+    public static List<String> getDefaultHardwares(ToolchainIndex index){
+        return new ArrayList<>(index.getHardwares());
+    }
+
+    public static List<String> getDefaultTools(ToolchainIndex index){
+        return new ArrayList<>(index.getTools());
     }
 
     public ArduinoBuilder setLogger(Logger logger) {
@@ -185,6 +409,10 @@ public class ArduinoBuilder {
         return this;
     }
 
+    public String getFqbn() {
+        return fqbn;
+    }
+
     public ArduinoBuilder setFqbn(String fqbn) {
         this.fqbn = fqbn;
         return this;
@@ -229,4 +457,19 @@ public class ArduinoBuilder {
         this.libraries = libraries;
         return this;
     }
+
+    public ArduinoBuilder setConfiguration(String configuration) {
+        this.configuration = configuration;
+        return this;
+    }
+
+    public ArduinoBuilder setLibraryIndex(LibraryIndex libraryIndex) {
+        this.libraryIndex = libraryIndex;
+        return this;
+    }
+
+    public ArduinoBuilder setCacheDir(Path cacheDir) {
+        this.cacheDir = cacheDir;
+        return this;
+    }
 }
@@ -0,0 +1,62 @@
+package it.sijmen.cluino.ext;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The arduino-cli backend. arduino-cli resolves platforms and libraries from its own data
+ * directory (~/.arduino15 by default) and only builds real sketches: a folder containing an
+ * .ino file with the same name as the folder. Everything else is built by arduino-builder.
+ */
+public class ArduinoCli {
+
+    private static final String EXECUTABLE = "arduino-cli";
+
+    /**
+     * Whether arduino-cli can be started. Probed once per ide session.
+     */
+    private static volatile Boolean available;
+
+    private ArduinoCli() {
+    }
+
+    public static boolean isAvailable() {
+        Boolean result = available;
+        if(result == null)
+            available = result = probe();
+        return result;
+    }
+
+    /**
+     * arduino-cli only accepts sketches named after their folder, e.g. Blink/Blink.ino.
+     */
+    public static boolean canBuild(String file) {
+        Path path = Paths.get(file).toAbsolutePath();
+        String name = path.getFileName().toString();
+        Path folder = path.getParent();
+        return name.endsWith(".ino") && folder != null
+                && name.equals(folder.getFileName() + ".ino");
+    }
+
+    public static String getExecutable() {
+        return EXECUTABLE;
+    }
+
+    private static boolean probe() {
+        try {
+            Process process = new ProcessBuilder(EXECUTABLE, "version").redirectErrorStream(true).start();
+            if(!process.waitFor(10, TimeUnit.SECONDS)) {
+                process.destroy();
+                return false;
+            }
+            return process.exitValue() == 0;
+        } catch (IOException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
@@ -0,0 +1,381 @@
+package it.sijmen.cluino.ext;
+
+import io.grpc.CallOptions;
+import io.grpc.ClientCall;
+import io.grpc.ManagedChannel;
+import io.grpc.MethodDescriptor;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.netty.shaded.io.grpc.netty.NettyChannelBuilder;
+import io.grpc.stub.ClientCalls;
+import io.grpc.stub.StreamObserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A running arduino-cli daemon, which the ide keeps for the whole session. The daemon loads the
+ * installed platforms and libraries once and keeps them in memory, so a build does not pay for
+ * starting arduino-cli and reading all boards.txt and platform.txt files again.
+ * <p>
+ * The daemon is driven over gRPC. Only the few messages that are needed are encoded, by hand,
+ * following the cc.arduino.cli.commands.v1 protocol of arduino-cli.
+ */
+public class ArduinoCliDaemon {
+
+    private static final String SERVICE = "cc.arduino.cli.commands.v1.ArduinoCoreService";
+    private static final long START_TIMEOUT_MILLIS = 15000;
+    private static final long RETRY_MILLIS = 100;
+    private static final long LIVENESS_MILLIS = 1000;
+
+    private static final MethodDescriptor<byte[], byte[]> CREATE = method("Create", MethodDescriptor.MethodType.UNARY);
+    private static final MethodDescriptor<byte[], byte[]> INIT = method("Init", MethodDescriptor.MethodType.SERVER_STREAMING);
+    private static final MethodDescriptor<byte[], byte[]> COMPILE = method("Compile", MethodDescriptor.MethodType.SERVER_STREAMING);
+
+    private final Process process;
+    private final ManagedChannel channel;
+    private volatile byte[] arduinoInstance;
+
+    /**
+     * Settings of one compile. The same settings as {@link ArduinoBuilder#getCliCompileCommand(String, Path)}.
+     */
+    public static class Compile {
+        private final String fqbn;
+        private final Path sketchDir;
+        private final Path buildDir;
+        private final Path cacheDir;
+        private final List<String> buildProperties;
+        private final List<String> libraries;
+        private final String warnings;
+        private final boolean verbose;
+
+        public Compile(String fqbn, Path sketchDir, Path buildDir, Path cacheDir, List<String> buildProperties,
+                       List<String> libraries, String warnings, boolean verbose) {
+            this.fqbn = fqbn;
+            this.sketchDir = sketchDir;
+            this.buildDir = buildDir;
+            this.cacheDir = cacheDir;
+            this.buildProperties = buildProperties;
+            this.libraries = libraries;
+            this.warnings = warnings;
+            this.verbose = verbose;
+        }
+
+        byte[] toRequest(byte[] instance) {
+            Proto out = new Proto()
+                    .message(1, instance)
+                    .string(2, fqbn)
+                    .string(3, sketchDir.toString())
+                    .string(6, cacheDir.toString())
+                    .string(7, buildDir.toString());
+            for(String property : buildProperties)
+                out.string(8, property);
+            out.string(9, warnings).bool(10, verbose);
+            for(String library : libraries)
+                out.string(15, library);
+            return out.toByteArray();
+        }
+    }
+
+    private ArduinoCliDaemon(Process process, ManagedChannel channel) {
+        this.process = process;
+        this.channel = channel;
+    }
+
+    /**
+     * Starts a daemon and waits until it has loaded the installed platforms. Call {@link #stop()}
+     * when it is no longer needed.
+     * @throws IOException when the daemon cannot be started or does not answer
+     */
+    public static ArduinoCliDaemon start() throws IOException, InterruptedException {
+        int port;
+        try(ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        Path log = Files.createTempFile("arduino-cli-daemon", ".log");
+        log.toFile().deleteOnExit();
+        Process process = new ProcessBuilder(ArduinoCli.getExecutable(), "daemon", "--port", String.valueOf(port))
+                .redirectErrorStream(true)
+                .redirectOutput(log.toFile())
+                .start();
+        ManagedChannel channel = NettyChannelBuilder.forAddress("127.0.0.1", port).usePlaintext().build();
+        ArduinoCliDaemon daemon = new ArduinoCliDaemon(process, channel);
+        try {
+            daemon.connect();
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            daemon.stop();
+            throw e;
+        }
+        return daemon;
+    }
+
+    /**
+     * Waits until the daemon listens, then creates and loads the arduino-cli instance.
+     */
+    private void connect() throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + START_TIMEOUT_MILLIS;
+        byte[] created = null;
+        while(created == null) {
+            if(!process.isAlive())
+                throw new IOException("arduino-cli daemon stopped with exit code " + process.exitValue());
+            try {
+                created = ClientCalls.blockingUnaryCall(channel, CREATE,
+                        CallOptions.DEFAULT.withDeadlineAfter(START_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS), createRequest());
+            } catch (StatusRuntimeException e) {
+                if(e.getStatus().getCode() != Status.Code.UNAVAILABLE)
+                    throw new IOException("arduino-cli daemon: " + e.getStatus().getDescription(), e);
+                if(System.currentTimeMillis() > deadline)
+                    throw new IOException("arduino-cli daemon did not start in time");
+                Thread.sleep(RETRY_MILLIS);
+            }
+        }
+        arduinoInstance = Proto.field(created, 1);
+        if(arduinoInstance == null)
+            throw new IOException("arduino-cli daemon did not create an instance");
+        init();
+    }
+
+    /**
+     * Loads the installed platforms and libraries into the instance.
+     */
+    private void init() throws IOException {
+        try {
+            Iterator<byte[]> responses = ClientCalls.blockingServerStreamingCall(channel, INIT, CallOptions.DEFAULT,
+                    initRequest(arduinoInstance));
+            while(responses.hasNext())
+                responses.next();
+        } catch (StatusRuntimeException e) {
+            throw new IOException("arduino-cli daemon could not load the platforms: " + e.getStatus().getDescription(), e);
+        }
+    }
+
+    /**
+     * Compiles a sketch and sends the output of arduino-cli to the output. When the platform of
+     * the board is not loaded, because it was installed after the daemon started, the platforms
+     * are loaded again and the compile is tried once more.
+     * @return zero when the compile succeeded
+     */
+    public int compile(Compile compile, NativeBuilder.Output output) throws IOException, InterruptedException {
+        Status status = run(compile, output);
+        if(status.getCode() == Status.Code.NOT_FOUND || status.getCode() == Status.Code.FAILED_PRECONDITION) {
+            init();
+            status = run(compile, output);
+        }
+        if(status.isOk())
+            return 0;
+        if(status.getDescription() != null)
+            output.error(status.getDescription());
+        return 1;
+    }
+
+    private Status run(Compile compile, NativeBuilder.Output output) throws InterruptedException {
+        ClientCall<byte[], byte[]> call = channel.newCall(COMPILE, CallOptions.DEFAULT);
+        AtomicReference<Status> result = new AtomicReference<>();
+        CountDownLatch done = new CountDownLatch(1);
+        ClientCalls.asyncServerStreamingCall(call, compile.toRequest(arduinoInstance), new StreamObserver<byte[]>() {
+            @Override
+            public void onNext(byte[] response) {
+                byte[] out = Proto.field(response, 1);
+                if(out != null && out.length > 0)
+                    output.info(stripNewline(new String(out, StandardCharsets.UTF_8)));
+                byte[] err = Proto.field(response, 2);
+                if(err != null && err.length > 0)
+                    output.error(stripNewline(new String(err, StandardCharsets.UTF_8)));
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                result.set(Status.fromThrowable(t));
+                done.countDown();
+            }
+
+            @Override
+            public void onCompleted() {
+                result.set(Status.OK);
+                done.countDown();
+            }
+        });
+        try {
+            while(!done.await(LIVENESS_MILLIS, TimeUnit.MILLISECONDS))
+                if(!process.isAlive()) {
+                    call.cancel("arduino-cli daemon stopped", null);
+                    return Status.UNAVAILABLE.withDescription("arduino-cli daemon stopped with exit code "
+                            + process.exitValue());
+                }
+        } catch (InterruptedException e) {
+            call.cancel("Build cancelled", null);
+            throw e;
+        }
+        return result.get();
+    }
+
+    public boolean isAlive() {
+        return process.isAlive();
+    }
+
+    public void stop() {
+        channel.shutdownNow();
+        process.destroy();
+    }
+
+    /**
+     * CreateRequest has no fields.
+     */
+    static byte[] createRequest() {
+        return new byte[0];
+    }
+
+    /**
+     * InitRequest with the instance made by Create.
+     */
+    static byte[] initRequest(byte[] instance) {
+        return new Proto().message(1, instance).toByteArray();
+    }
+
+    private static String stripNewline(String text) {
+        return text.endsWith("\n") ? text.substring(0, text.length() - 1) : text;
+    }
+
+    private static MethodDescriptor<byte[], byte[]> method(String name, MethodDescriptor.MethodType type) {
+        return MethodDescriptor.newBuilder(Proto.MARSHALLER, Proto.MARSHALLER)
+                .setType(type)
+                .setFullMethodName(MethodDescriptor.generateFullMethodName(SERVICE, name))
+                .build();
+    }
+
+    /**
+     * Writes and reads the protocol buffers wire format, as far as the daemon needs it.
+     */
+    static class Proto {
+
+        static final MethodDescriptor.Marshaller<byte[]> MARSHALLER = new MethodDescriptor.Marshaller<byte[]>() {
+            @Override
+            public InputStream stream(byte[] value) {
+                return new ByteArrayInputStream(value);
+            }
+
+            @Override
+            public byte[] parse(InputStream stream) {
+                try {
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    byte[] buffer = new byte[8192];
+                    int read;
+                    while((read = stream.read(buffer)) > 0)
+                        out.write(buffer, 0, read);
+                    return out.toByteArray();
+                } catch (IOException e) {
+                    throw Status.INTERNAL.withDescription(e.getMessage()).withCause(e).asRuntimeException();
+                }
+            }
+        };
+
+        private static final int VARINT = 0, FIXED64 = 1, LENGTH_DELIMITED = 2, FIXED32 = 5;
+
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        Proto string(int field, String value) {
+            if(value == null || value.isEmpty())
+                return this;
+            return message(field, value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        Proto message(int field, byte[] value) {
+            tag(field, LENGTH_DELIMITED);
+            varint(value.length);
+            out.write(value, 0, value.length);
+            return this;
+        }
+
+        Proto bool(int field, boolean value) {
+            if(!value)
+                return this;
+            tag(field, VARINT);
+            varint(1);
+            return this;
+        }
+
+        byte[] toByteArray() {
+            return out.toByteArray();
+        }
+
+        private void tag(int field, int wireType) {
+            varint((long) field << 3 | wireType);
+        }
+
+        private void varint(long value) {
+            while((value & ~0x7FL) != 0) {
+                out.write((int) (value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            out.write((int) value);
+        }
+
+        /**
+         * @return the bytes of the last length delimited field with the number, or null when
+         * the message does not have it
+         */
+        static byte[] field(byte[] message, int number) {
+            List<byte[]> values = fields(message, number);
+            return values.isEmpty() ? null : values.get(values.size() - 1);
+        }
+
+        static List<byte[]> fields(byte[] message, int number) {
+            List<byte[]> out = new ArrayList<>();
+            int[] position = {0};
+            while(position[0] < message.length) {
+                long tag = readVarint(message, position);
+                int wireType = (int) (tag & 7);
+                switch(wireType) {
+                    case VARINT:
+                        readVarint(message, position);
+                        break;
+                    case FIXED64:
+                        position[0] += 8;
+                        break;
+                    case FIXED32:
+                        position[0] += 4;
+                        break;
+                    case LENGTH_DELIMITED:
+                        int length = (int) readVarint(message, position);
+                        if(length < 0 || position[0] + length > message.length)
+                            throw new IllegalArgumentException("Truncated message");
+                        if(tag >>> 3 == number) {
+                            byte[] value = new byte[length];
+                            System.arraycopy(message, position[0], value, 0, length);
+                            out.add(value);
+                        }
+                        position[0] += length;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unsupported wire type " + wireType);
+                }
+            }
+            return out;
+        }
+
+        private static long readVarint(byte[] message, int[] position) {
+            long value = 0;
+            for(int shift = 0; shift < 64; shift += 7) {
+                if(position[0] >= message.length)
+                    throw new IllegalArgumentException("Truncated message");
+                byte b = message[position[0]++];
+                value |= (long) (b & 0x7F) << shift;
+                if((b & 0x80) == 0)
+                    return value;
+            }
+            throw new IllegalArgumentException("Malformed varint");
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package it.sijmen.cluino.ext;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds installed platforms and tools in hardware and tools folders. Both the layout of the
+ * hardware folder shipped with the ide (VENDOR/ARCH) and the layout of the packages folder of
+ * the boards manager (VENDOR/hardware/ARCH/VERSION and VENDOR/tools/TOOL/VERSION) are supported.
+ */
+public class ArduinoPackages {
+
+    private ArduinoPackages() {
+    }
+
+    /**
+     * @return the folder containing platform.txt of the platform, or null when it is not installed.
+     * If the platform is found in multiple hardware folders, the last one wins.
+     */
+    public static Path findPlatformDir(String vendor, String arch, List<String> hardwares) throws IOException {
+        Path out = null;
+        for(String hardware : hardwares) {
+            Path vendorDir = Paths.get(hardware).resolve(vendor);
+
+            Path ideLayout = vendorDir.resolve(arch);
+            if(Files.isRegularFile(ideLayout.resolve("boards.txt")))
+                out = ideLayout;
+
+            Path newest = newestVersion(vendorDir.resolve("hardware").resolve(arch));
+            if(newest != null && Files.isRegularFile(newest.resolve("boards.txt")))
+                out = newest;
+        }
+        return out;
+    }
+
+    /**
+     * @return all installed platforms as vendor:arch with the folder containing their boards.txt.
+     * If a platform is found in multiple hardware folders, the last one wins.
+     */
+    public static Map<String, Path> findPlatforms(List<String> hardwares) throws IOException {
+        Map<String, Path> out = new LinkedHashMap<>();
+        for(String hardware : hardwares)
+            for(Path vendor : list(Paths.get(hardware))) {
+                for(Path arch : list(vendor))
+                    if(Files.isRegularFile(arch.resolve("boards.txt")))
+                        out.put(vendor.getFileName() + ":" + arch.getFileName(), arch);
+                for(Path arch : list(vendor.resolve("hardware"))) {
+                    Path newest = newestVersion(arch);
+                    if(newest != null && Files.isRegularFile(newest.resolve("boards.txt")))
+                        out.put(vendor.getFileName() + ":" + arch.getFileName(), newest);
+                }
+            }
+        return out;
+    }
+
+    /**
+     * Lists all installed tools as runtime.tools properties: runtime.tools.NAME.path points to the
+     * newest version and runtime.tools.NAME-VERSION.path to every specific version.
+     */
+    public static Map<String, String> findToolProperties(List<String> tools) throws IOException {
+        Map<String, String> out = new LinkedHashMap<>();
+        for(String tool : tools) {
+            Path toolsDir = Paths.get(tool);
+            for(Path vendor : list(toolsDir))
+                for(Path toolDir : list(vendor.resolve("tools"))) {
+                    String name = toolDir.getFileName().toString();
+                    for(Path version : list(toolDir))
+                        out.put("runtime.tools." + name + "-" + version.getFileName() + ".path", version.toString());
+                    Path newest = newestVersion(toolDir);
+                    if(newest != null)
+                        out.put("runtime.tools." + name + ".path", newest.toString());
+                }
+        }
+        return out;
+    }
+
+    /**
+     * @return the subfolder with the highest version number, or null when there are none.
+     */
+    public static Path newestVersion(Path dir) throws IOException {
+        Path out = null;
+        for(Path version : list(dir))
+            if(out == null || compareVersions(version.getFileName().toString(), out.getFileName().toString()) > 0)
+                out = version;
+        return out;
+    }
+
+    /**
+     * Compares versions like 1.6.21 and 4.9.2-atmel3.5.4-arduino2 number by number.
+     */
+    public static int compareVersions(String a, String b) {
+        String[] left = a.split("[^0-9]+"), right = b.split("[^0-9]+");
+        for(int i = 0; i < Math.min(left.length, right.length); i++) {
+            if(left[i].isEmpty() || right[i].isEmpty())
+                continue;
+            int compare = Long.compare(parse(left[i]), parse(right[i]));
+            if(compare != 0)
+                return compare;
+        }
+        return Integer.compare(left.length, right.length);
+    }
+
+    private static long parse(String number) {
+        try {
+            return Long.parseLong(number);
+        } catch (NumberFormatException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    static List<Path> list(Path dir) throws IOException {
+        List<Path> out = new ArrayList<>();
+        if(!Files.isDirectory(dir))
+            return out;
+        try(DirectoryStream<Path> stream = Files.newDirectoryStream(dir, Files::isDirectory)) {
+            stream.forEach(out::add);
+        }
+        return out;
+    }
+}
@@ -1,14 +1,9 @@
 package it.sijmen.cluino.ext;
 
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
 
-import static it.sijmen.cluino.Util.isWindows;
-
 public class AvrDude {
 
     /**
@@ -87,33 +82,11 @@ public class AvrDude {
         return out;
     }
 
-    public static String guessConfigPath(){
-        if(isWindows()){
-            //todo
-        }else{
-            Path userdir = Paths.get(System.getProperty("user.home"));
-            Path avrdude = userdir.resolve(".arduino15/packages/arduino/tools/avrdude/");
-            Path avrdudeinstalldir = null;
-
-            try {
-                for (Path path : Files.newDirectoryStream(avrdude)) {
-                    if (path.getFileName().toString().contains("-arduino")){
-                        path = path.resolve("etc/avrdude.conf");
-                        if(Files.exists(path)) {
-                            avrdudeinstalldir = path;
-                            break;
-                        }
-                    }
-
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-
-            if(avrdudeinstalldir != null)
-                return avrdudeinstalldir.toAbsolutePath().toString();
-        }
-        return "";
+    /**
+     * @return the avrdude.conf of the newest installed avrdude, or "" when avrdude is not installed.
+     */
+    public static String guessConfigPath(ToolchainIndex index){
+        return index.getAvrdudeConfig();
     }
 
     public AvrDude setConfigFile(String configFile) {
@@ -0,0 +1,251 @@
+package it.sijmen.cluino.ext;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * All boards of the platforms in a list of hardware folders, with the menu options (cpu, clock...)
+ * they support. Only the names of boards and options are kept, not all properties of boards.txt.
+ * A boards.txt is read the first time one of its boards is asked for and kept until it changes.
+ * A loaded catalogue reads everything once and never touches the filesystem again.
+ */
+public class BoardsCatalogue {
+
+    private static final Map<Path, Platform> PLATFORMS = new ConcurrentHashMap<>();
+
+    private final List<String> hardwares;
+    private final Map<String, Path> platforms;
+    private final Map<String, List<Board>> boards;
+
+    public BoardsCatalogue(List<String> hardwares) {
+        this(hardwares, null, null);
+    }
+
+    private BoardsCatalogue(List<String> hardwares, Map<String, Path> platforms, Map<String, List<Board>> boards) {
+        this.hardwares = hardwares;
+        this.platforms = platforms;
+        this.boards = boards;
+    }
+
+    /**
+     * Reads the boards of all platforms right away.
+     * @param platforms the installed platforms in the hardware folders, as vendor:arch
+     */
+    public static BoardsCatalogue load(List<String> hardwares, Map<String, Path> platforms) throws IOException {
+        Map<String, List<Board>> boards = new LinkedHashMap<>();
+        for(Map.Entry<String, Path> platform : platforms.entrySet())
+            if(Files.isRegularFile(platform.getValue().resolve("boards.txt")))
+                boards.put(platform.getKey(), getPlatform(platform.getKey(), platform.getValue()).boards);
+        return new BoardsCatalogue(hardwares, Collections.unmodifiableMap(new LinkedHashMap<>(platforms)), boards);
+    }
+
+    public List<String> getHardwares() {
+        return hardwares;
+    }
+
+    /**
+     * @return all installed platforms as vendor:arch. If a platform is found in multiple hardware
+     * folders, the last one wins.
+     */
+    public Map<String, Path> findPlatforms() throws IOException {
+        if(platforms != null)
+            return platforms;
+        return ArduinoPackages.findPlatforms(hardwares);
+    }
+
+    /**
+     * @return the boards of all installed platforms.
+     */
+    public List<Board> getAllBoards() throws IOException {
+        List<Board> out = new ArrayList<>();
+        for(String platform : findPlatforms().keySet())
+            out.addAll(getBoards(platform));
+        return out;
+    }
+
+    /**
+     * @return the boards of the platform, or an empty list when it is not installed.
+     */
+    public List<Board> getBoards(String vendorAndArch) throws IOException {
+        if(boards != null)
+            return boards.getOrDefault(vendorAndArch, Collections.emptyList());
+        Path dir = findPlatforms().get(vendorAndArch);
+        return dir == null ? Collections.emptyList() : getPlatform(vendorAndArch, dir).boards;
+    }
+
+    /**
+     * Checks a fully qualified board name: VENDOR:ARCH:BOARD[:MENU=OPTION,...].
+     * @return what is wrong with it, or null when the board and options are installed.
+     */
+    public String validate(String fqbn) throws IOException {
+        String[] parts = fqbn.split(":");
+        if(parts.length < 3 || parts.length > 4)
+            return "Invalid board code " + fqbn + ". Expected VENDOR:ARCH:BOARD.";
+        String platform = parts[0] + ":" + parts[1];
+        if(!findPlatforms().containsKey(platform))
+            return "Platform " + platform + " is not installed in the hardware folders.";
+        Board board = null;
+        for(Board candidate : getBoards(platform))
+            if(candidate.getId().equals(parts[2]))
+                board = candidate;
+        if(board == null)
+            return "Board " + parts[2] + " does not exist in " + platform + ".";
+        if(parts.length == 4)
+            for(String option : parts[3].split(",")) {
+                int equals = option.indexOf('=');
+                Menu menu = equals < 0 ? null : board.getMenus().get(option.substring(0, equals));
+                if(menu == null || !menu.getOptions().containsKey(option.substring(equals + 1)))
+                    return "Option " + option + " does not exist for " + board.getName() + ".";
+            }
+        return null;
+    }
+
+    private static Platform getPlatform(String vendorAndArch, Path dir) throws IOException {
+        Path boards = dir.resolve("boards.txt");
+        long modified = Files.getLastModifiedTime(boards).toMillis();
+        Platform platform = PLATFORMS.get(boards);
+        if(platform == null || platform.modified != modified) {
+            platform = new Platform(modified, parse(vendorAndArch, boards));
+            PLATFORMS.put(boards, platform);
+        }
+        return platform;
+    }
+
+    /**
+     * Reads the board names (BOARD.name), menu names (menu.MENU) and menu options
+     * (BOARD.menu.MENU.OPTION) of a boards.txt.
+     */
+    static List<Board> parse(String vendorAndArch, Path file) throws IOException {
+        Map<String, String> menuLabels = new LinkedHashMap<>();
+        Map<String, Board> boards = new LinkedHashMap<>();
+        List<String> hidden = new ArrayList<>();
+
+        try(BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while((line = reader.readLine()) != null) {
+                line = line.trim();
+                int equals = line.indexOf('=');
+                if(line.startsWith("#") || equals <= 0)
+                    continue;
+                String key = line.substring(0, equals).trim();
+                String value = line.substring(equals + 1).trim();
+
+                int first = key.indexOf('.');
+                if(first <= 0)
+                    continue;
+                String id = key.substring(0, first).intern();
+                String rest = key.substring(first + 1);
+
+                if(id.equals("menu")) {
+                    if(rest.indexOf('.') < 0)
+                        menuLabels.put(rest.intern(), value);
+                } else if(rest.equals("name")) {
+                    boards.computeIfAbsent(id, k -> new Board(vendorAndArch, k)).name = value;
+                } else if(rest.equals("hide")) {
+                    hidden.add(id);
+                } else if(rest.startsWith("menu.")) {
+                    int dot = rest.indexOf('.', "menu.".length());
+                    if(dot < 0 || rest.indexOf('.', dot + 1) >= 0)
+                        continue;
+                    String menu = rest.substring("menu.".length(), dot).intern();
+                    String option = rest.substring(dot + 1).intern();
+                    boards.computeIfAbsent(id, k -> new Board(vendorAndArch, k)).menus
+                            .computeIfAbsent(menu, Menu::new).options.put(option, value);
+                }
+            }
+        }
+
+        List<Board> out = new ArrayList<>();
+        for(Board board : boards.values()) {
+            if(board.name == null || hidden.contains(board.id))
+                continue;
+            board.menus.values().forEach(menu -> menu.label = menuLabels.getOrDefault(menu.id, menu.id));
+            out.add(board);
+        }
+        return Collections.unmodifiableList(out);
+    }
+
+    private static class Platform {
+        private final long modified;
+        private final List<Board> boards;
+
+        private Platform(long modified, List<Board> boards) {
+            this.modified = modified;
+            this.boards = boards;
+        }
+    }
+
+    public static class Board {
+        private final String platform;
+        private final String id;
+        private String name;
+        private final Map<String, Menu> menus = new LinkedHashMap<>();
+
+        private Board(String platform, String id) {
+            this.platform = platform;
+            this.id = id;
+        }
+
+        /**
+         * @return vendor:arch
+         */
+        public String getPlatform() {
+            return platform;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getFqbn() {
+            return platform + ":" + id;
+        }
+
+        public Map<String, Menu> getMenus() {
+            return menus;
+        }
+
+        @Override
+        public String toString() {
+            return name + " (" + getFqbn() + ")";
+        }
+    }
+
+    public static class Menu {
+        private final String id;
+        private String label;
+        private final Map<String, String> options = new LinkedHashMap<>();
+
+        private Menu(String id) {
+            this.id = id;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+
+        /**
+         * @return option id to label, in the order of boards.txt. The first option is the default.
+         */
+        public Map<String, String> getOptions() {
+            return options;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package it.sijmen.cluino.ext;
+
+/**
+ * One thing that happened during a build, parsed from a line of build output by the
+ * {@link MachineLogParser}.
+ */
+public class BuildEvent {
+
+    public enum Kind { PROGRESS, STEP, MESSAGE, DIAGNOSTIC, OUTPUT }
+
+    public enum Severity { INFO, WARNING, ERROR }
+
+    private final Kind kind;
+    private final Severity severity;
+    private final String text;
+    private final double progress;
+    private final String file;
+    private final int line, column;
+
+    private BuildEvent(Kind kind, Severity severity, String text, double progress, String file, int line, int column) {
+        this.kind = kind;
+        this.severity = severity;
+        this.text = text;
+        this.progress = progress;
+        this.file = file;
+        this.line = line;
+        this.column = column;
+    }
+
+    static BuildEvent progress(double percentage) {
+        return new BuildEvent(Kind.PROGRESS, Severity.INFO, null, percentage, null, 0, 0);
+    }
+
+    static BuildEvent step(String text) {
+        return new BuildEvent(Kind.STEP, Severity.INFO, text, -1, null, 0, 0);
+    }
+
+    static BuildEvent message(Severity severity, String text) {
+        return new BuildEvent(Kind.MESSAGE, severity, text, -1, null, 0, 0);
+    }
+
+    static BuildEvent diagnostic(Severity severity, String text, String file, int line, int column) {
+        return new BuildEvent(Kind.DIAGNOSTIC, severity, text, -1, file, line, column);
+    }
+
+    static BuildEvent output(String text) {
+        return new BuildEvent(Kind.OUTPUT, Severity.INFO, text, -1, null, 0, 0);
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public Severity getSeverity() {
+        return severity;
+    }
+
+    /**
+     * The message to show. For diagnostics and output this is the complete line.
+     */
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * @return the percentage of the build that is done, only for progress events.
+     */
+    public double getProgress() {
+        return progress;
+    }
+
+    /**
+     * @return the source file of a diagnostic.
+     */
+    public String getFile() {
+        return file;
+    }
+
+    /**
+     * @return the line of a diagnostic, starting at 1.
+     */
+    public int getLine() {
+        return line;
+    }
+
+    /**
+     * @return the column of a diagnostic starting at 1, or 0 when the compiler did not report it.
+     */
+    public int getColumn() {
+        return column;
+    }
+}
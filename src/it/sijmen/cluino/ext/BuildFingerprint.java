@@ -0,0 +1,260 @@
+package it.sijmen.cluino.ext;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Hash of everything that influences the output of a build: the sketch sources, the sources of
+ * the used libraries, the full builder command line and the versions of the installed cores and
+ * tools. When the fingerprint of a new build equals the fingerprint of the last successful build,
+ * the build can be skipped.
+ */
+public class BuildFingerprint {
+
+    private static final String FILE_NAME = ".cluino-fingerprint";
+
+    /**
+     * Files that arduino-builder copies from the sketch folder into the build.
+     */
+    private static final Set<String> SOURCE_EXTENSIONS = new HashSet<>(Arrays.asList(
+            "ino", "pde", "c", "cpp", "cc", "cxx", "h", "hh", "hpp", "s"
+    ));
+
+    private BuildFingerprint() {
+    }
+
+    /**
+     * @param file    the main sketch file
+     * @param command the complete builder command line
+     * @param fqbn    the board that is compiled for, used to find the core that is used
+     * @param hardwares folders containing arduino platforms
+     * @param tools   folders containing arduino tools
+     * @param libraries folders of the libraries the sketch uses
+     */
+    public static String compute(String file, List<String> command, String fqbn, List<String> hardwares,
+                                 List<String> tools, List<Path> libraries) throws IOException {
+        MessageDigest digest = newDigest();
+
+        for(String part : command)
+            update(digest, part);
+
+        Path sketchDir = Paths.get(file).toAbsolutePath().getParent();
+        for(Path source : listSources(sketchDir)) {
+            update(digest, sketchDir.relativize(source).toString());
+            digest.update(Files.readAllBytes(source));
+        }
+
+        for(Path library : libraries)
+            for(Path libraryFile : listFiles(library))
+                updateWithStamp(digest, libraryFile);
+
+        for(Path platformFile : findPlatformFiles(fqbn, hardwares))
+            updateWithStamp(digest, platformFile);
+
+        for(String tool : tools)
+            for(String version : listToolVersions(Paths.get(tool)))
+                update(digest, version);
+
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Hash of everything that makes compiled core and library objects different: the board, the
+     * installed cores and tools and the build preferences. Builds with the same key can share
+     * their build cache.
+     */
+    public static String computeCacheKey(String fqbn, List<String> hardwares, List<String> tools,
+                                         List<String> prefs) throws IOException {
+        MessageDigest digest = newDigest();
+        update(digest, fqbn);
+
+        for(Path platformFile : findPlatformFiles(fqbn, hardwares))
+            updateWithStamp(digest, platformFile);
+
+        for(String tool : tools)
+            for(String version : listToolVersions(Paths.get(tool)))
+                update(digest, version);
+
+        for(String pref : prefs)
+            update(digest, pref);
+
+        return toHex(digest.digest()).substring(0, 16);
+    }
+
+    /**
+     * Hash of the expanded build properties of a native build. They contain the board options,
+     * the build preferences and the paths of the core and the tools, which include their versions.
+     * The build time properties are left out.
+     */
+    public static String computeOptions(PlatformProperties props) {
+        MessageDigest digest = newDigest();
+        for(Map.Entry<String, String> entry : props.toSortedMap().entrySet()) {
+            if(entry.getKey().startsWith("extra.time."))
+                continue;
+            update(digest, entry.getKey());
+            update(digest, entry.getValue());
+        }
+        return toHex(digest.digest());
+    }
+
+    public static boolean isUpToDate(Path buildDir, String fingerprint) {
+        Path file = buildDir.resolve(FILE_NAME);
+        try {
+            return Files.exists(file)
+                    && fingerprint.equals(new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    public static void store(Path buildDir, String fingerprint) throws IOException {
+        Files.write(buildDir.resolve(FILE_NAME), fingerprint.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static void invalidate(Path buildDir) throws IOException {
+        Files.deleteIfExists(buildDir.resolve(FILE_NAME));
+    }
+
+    /**
+     * The same files arduino-builder takes from the sketch folder: the source files next to the
+     * main file and everything in the src subfolder.
+     */
+    private static List<Path> listSources(Path sketchDir) throws IOException {
+        List<Path> out = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(sketchDir)) {
+            for(Path path : stream)
+                if(Files.isRegularFile(path) && isSource(path))
+                    out.add(path);
+        }
+
+        Path src = sketchDir.resolve("src");
+        if(Files.isDirectory(src))
+            try (Stream<Path> stream = Files.walk(src)) {
+                out.addAll(stream.filter(Files::isRegularFile).filter(BuildFingerprint::isSource)
+                        .collect(Collectors.toList()));
+            }
+
+        Collections.sort(out);
+        return out;
+    }
+
+    /**
+     * All files in the folder and its subfolders. Libraries are hashed by path, size and
+     * modification time, reading all their sources for every build would take too long.
+     */
+    private static List<Path> listFiles(Path dir) throws IOException {
+        if(!Files.isDirectory(dir))
+            return Collections.emptyList();
+        try (Stream<Path> stream = Files.walk(dir)) {
+            return stream.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+        }
+    }
+
+    private static boolean isSource(Path path) {
+        String name = path.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return dot >= 0 && SOURCE_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase());
+    }
+
+    /**
+     * Finds the platform.txt and boards.txt of the core used by the fqbn. Supports both the
+     * layout of the ide hardware folder (vendor/arch) and of the boards manager packages
+     * folder (vendor/hardware/arch/version).
+     */
+    private static List<Path> findPlatformFiles(String fqbn, List<String> hardwares) throws IOException {
+        List<Path> out = new ArrayList<>();
+        String[] parts = fqbn.split(":");
+        if(parts.length < 2)
+            return out;
+
+        for(String hardware : hardwares) {
+            Path vendor = Paths.get(hardware).resolve(parts[0]);
+            List<Path> platformDirs = new ArrayList<>();
+            platformDirs.add(vendor.resolve(parts[1]));
+
+            Path versions = vendor.resolve("hardware").resolve(parts[1]);
+            if(Files.isDirectory(versions))
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(versions)) {
+                    stream.forEach(platformDirs::add);
+                }
+
+            for(Path platformDir : platformDirs)
+                for(String name : new String[]{"platform.txt", "boards.txt"})
+                    if(Files.isRegularFile(platformDir.resolve(name)))
+                        out.add(platformDir.resolve(name));
+        }
+        Collections.sort(out);
+        return out;
+    }
+
+    /**
+     * Lists the installed versions of all tools in a boards manager packages folder,
+     * for example arduino/avr-gcc/4.9.2-atmel3.5.4-arduino2.
+     */
+    private static List<String> listToolVersions(Path toolsDir) throws IOException {
+        List<String> out = new ArrayList<>();
+        if(!Files.isDirectory(toolsDir))
+            return out;
+
+        try (DirectoryStream<Path> vendors = Files.newDirectoryStream(toolsDir)) {
+            for(Path vendor : vendors) {
+                Path tools = vendor.resolve("tools");
+                if(!Files.isDirectory(tools))
+                    continue;
+                try (DirectoryStream<Path> toolStream = Files.newDirectoryStream(tools)) {
+                    for(Path tool : toolStream) {
+                        if(!Files.isDirectory(tool))
+                            continue;
+                        try (DirectoryStream<Path> versionStream = Files.newDirectoryStream(tool)) {
+                            for(Path version : versionStream)
+                                out.add(toolsDir.relativize(version).toString());
+                        }
+                    }
+                }
+            }
+        }
+        Collections.sort(out);
+        return out;
+    }
+
+    private static void updateWithStamp(MessageDigest digest, Path file) throws IOException {
+        update(digest, file.toString());
+        update(digest, String.valueOf(Files.size(file)));
+        update(digest, String.valueOf(Files.getLastModifiedTime(file).toMillis()));
+    }
+
+    private static void update(MessageDigest digest, String value) {
+        digest.update(value.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder out = new StringBuilder(bytes.length * 2);
+        for(byte b : bytes)
+            out.append(String.format("%02x", b));
+        return out.toString();
+    }
+}
@@ -0,0 +1,86 @@
+package it.sijmen.cluino.ext;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Exclusive lock on a build or cache folder. Holds a lock file in the folder so builds in other
+ * ide windows and other processes wait as well. Builds in this ide are tracked separately
+ * because a file lock is held by the whole jvm.
+ */
+public class BuildLock implements AutoCloseable {
+
+    static final String FILE_NAME = ".cluino-lock";
+    private static final long POLL_MILLIS = 200;
+
+    private static final Set<Path> HELD = ConcurrentHashMap.newKeySet();
+
+    private final Path dir;
+    private final FileChannel channel;
+    private final FileLock lock;
+
+    private BuildLock(Path dir, FileChannel channel, FileLock lock) {
+        this.dir = dir;
+        this.channel = channel;
+        this.lock = lock;
+    }
+
+    /**
+     * Blocks until the folder is not used by another build.
+     * @param onWait called once when the lock is not available right away.
+     */
+    public static BuildLock acquire(Path dir, Runnable onWait) throws IOException, InterruptedException {
+        Path key = dir.toAbsolutePath().normalize();
+        boolean waiting = false;
+        while(true) {
+            BuildLock lock = tryAcquire(key);
+            if(lock != null)
+                return lock;
+            if(!waiting) {
+                onWait.run();
+                waiting = true;
+            }
+            Thread.sleep(POLL_MILLIS);
+        }
+    }
+
+    /**
+     * @return the lock, or null when another build uses the folder.
+     */
+    public static BuildLock tryAcquire(Path dir) throws IOException {
+        Path key = dir.toAbsolutePath().normalize();
+        if(!HELD.add(key))
+            return null;
+
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(key.resolve(FILE_NAME), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            FileLock lock = channel.tryLock();
+            if(lock != null)
+                return new BuildLock(key, channel, lock);
+        } catch (IOException | RuntimeException e) {
+            HELD.remove(key);
+            if(channel != null)
+                channel.close();
+            throw e;
+        }
+        channel.close();
+        HELD.remove(key);
+        return null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            lock.release();
+            channel.close();
+        } finally {
+            HELD.remove(dir);
+        }
+    }
+}
@@ -0,0 +1,293 @@
+package it.sijmen.cluino.ext;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Measures how long every step of a build takes. Steps are either recorded directly, or found in
+ * the verbose output of arduino-builder: every compiler, archiver or linker invocation it prints
+ * starts a step that ends when the next step starts.
+ */
+public class BuildTimer {
+
+    public enum Kind { PREPROCESS, COMPILE, ARCHIVE, LINK, OBJCOPY, SIZE }
+
+    private final List<Step> steps = new ArrayList<>();
+    private final long startNanos;
+
+    private Step open;
+
+    public BuildTimer() {
+        this.startNanos = System.nanoTime();
+    }
+
+    /**
+     * Feeds one line of builder output, printed at the given time.
+     */
+    public synchronized void onLine(String line, long nanos) {
+        String trimmed = line.trim();
+        if(trimmed.isEmpty())
+            return;
+
+        if(isPhaseMarker(trimmed)) {
+            closeOpen(nanos);
+            return;
+        }
+
+        Step step = parseInvocation(trimmed, nanos);
+        if(step != null) {
+            closeOpen(nanos);
+            open = step;
+        }
+    }
+
+    /**
+     * Ends the step that is still running. Call when the build has finished.
+     */
+    public synchronized void finish(long nanos) {
+        closeOpen(nanos);
+    }
+
+    /**
+     * Records a step with a known start and end.
+     */
+    public synchronized void record(Kind kind, String source, String object, long startNanos, long endNanos) {
+        Step step = new Step(kind, source, object, startNanos);
+        step.endNanos = endNanos;
+        steps.add(step);
+    }
+
+    public synchronized boolean isEmpty() {
+        return steps.isEmpty();
+    }
+
+    /**
+     * A table of the time spent per phase and library, and the slowest translation units.
+     */
+    public synchronized String report(int limit) {
+        StringBuilder out = new StringBuilder();
+        out.append(String.format("Build timing (%.1f s measured in %d steps)%n", seconds(totalNanos()), steps.size()));
+
+        out.append(String.format("%n  %-40s %9s%n", "Phase", "Time"));
+        totalsBy(s -> s.group).forEach((group, nanos) ->
+                out.append(String.format("  %-40s %9s%n", group, format(nanos))));
+
+        Map<String, Long> libraries = totalsBy(s -> s.library);
+        libraries.remove(null);
+        if(!libraries.isEmpty()) {
+            out.append(String.format("%n  %-40s %9s%n", "Library", "Time"));
+            libraries.forEach((library, nanos) -> out.append(String.format("  %-40s %9s%n", library, format(nanos))));
+        }
+
+        out.append(String.format("%n  %-40s %9s%n", "Slowest translation units", "Time"));
+        steps.stream()
+                .filter(s -> s.kind == Kind.COMPILE)
+                .sorted(Comparator.comparingLong(Step::duration).reversed())
+                .limit(limit)
+                .forEach(s -> out.append(String.format("  %-40s %9s%n", shorten(s.unit), format(s.duration()))));
+        return out.toString();
+    }
+
+    public synchronized String toJson() {
+        StringBuilder out = new StringBuilder("{\n");
+        out.append("  \"totalMillis\": ").append(millis(totalNanos())).append(",\n");
+        out.append("  \"phases\": ").append(toJson(totalsBy(s -> s.group))).append(",\n");
+        Map<String, Long> libraries = totalsBy(s -> s.library);
+        libraries.remove(null);
+        out.append("  \"libraries\": ").append(toJson(libraries)).append(",\n");
+        out.append("  \"steps\": [");
+        for(int i = 0; i < steps.size(); i++) {
+            Step step = steps.get(i);
+            out.append(i == 0 ? "\n" : ",\n");
+            out.append("    {\"kind\": ").append(quote(step.kind.toString().toLowerCase()))
+                    .append(", \"group\": ").append(quote(step.group))
+                    .append(", \"library\": ").append(quote(step.library))
+                    .append(", \"unit\": ").append(quote(step.unit))
+                    .append(", \"startMillis\": ").append(millis(step.startNanos - startNanos))
+                    .append(", \"durationMillis\": ").append(millis(step.duration()))
+                    .append("}");
+        }
+        out.append(steps.isEmpty() ? "]\n" : "\n  ]\n");
+        return out.append("}\n").toString();
+    }
+
+    private void closeOpen(long nanos) {
+        if(open == null)
+            return;
+        open.endNanos = nanos;
+        steps.add(open);
+        open = null;
+    }
+
+    private long totalNanos() {
+        long first = Long.MAX_VALUE, last = Long.MIN_VALUE;
+        for(Step step : steps) {
+            first = Math.min(first, step.startNanos);
+            last = Math.max(last, step.endNanos);
+        }
+        return steps.isEmpty() ? 0 : last - first;
+    }
+
+    /**
+     * Sums the duration of all steps per key, largest first.
+     */
+    private Map<String, Long> totalsBy(Function<Step, String> key) {
+        Map<String, Long> out = new LinkedHashMap<>();
+        for(Step step : steps)
+            out.merge(key.apply(step), step.duration(), Long::sum);
+
+        List<Map.Entry<String, Long>> sorted = new ArrayList<>(out.entrySet());
+        sorted.sort(Map.Entry.<String, Long>comparingByValue().reversed());
+        Map<String, Long> result = new LinkedHashMap<>();
+        sorted.forEach(e -> result.put(e.getKey(), e.getValue()));
+        return result;
+    }
+
+    /**
+     * @return whether the line is a compiler, archiver, objcopy or size command printed by the builder.
+     */
+    public static boolean isInvocation(String line) {
+        return parseInvocation(line.trim(), 0) != null;
+    }
+
+    static boolean isPhaseMarker(String line) {
+        return line.startsWith("Detecting libraries used") || line.startsWith("Generating function prototypes")
+                || line.startsWith("Compiling sketch") || line.startsWith("Compiling libraries")
+                || line.startsWith("Compiling library") || line.startsWith("Compiling core")
+                || line.startsWith("Linking everything together");
+    }
+
+    /**
+     * @return the step started by a compiler, archiver, objcopy or size invocation, or null when the
+     * line is something else.
+     */
+    private static Step parseInvocation(String line, long nanos) {
+        List<String> tokens = PlatformProperties.splitCommand(line);
+        if(tokens.isEmpty())
+            return null;
+        String tool = tokens.get(0).replace('\\', '/');
+        tool = tool.substring(tool.lastIndexOf('/') + 1).toLowerCase();
+        if(tool.endsWith(".exe"))
+            tool = tool.substring(0, tool.length() - 4);
+
+        Kind kind;
+        if(tool.endsWith("gcc-ar") || tool.endsWith("-ar") || tool.equals("ar"))
+            kind = Kind.ARCHIVE;
+        else if(tool.endsWith("objcopy"))
+            kind = Kind.OBJCOPY;
+        else if(tool.endsWith("-size") || tool.equals("size"))
+            kind = Kind.SIZE;
+        else if(tool.matches("(.*-)?(gcc|g\\+\\+|cc|c\\+\\+|clang|clang\\+\\+)"))
+            kind = tokens.contains("-E") ? Kind.PREPROCESS : tokens.contains("-c") ? Kind.COMPILE : Kind.LINK;
+        else
+            return null;
+
+        String source = null, object = null;
+        for(int i = 1; i < tokens.size(); i++) {
+            String token = tokens.get(i);
+            if(token.equals("-o") && i + 1 < tokens.size())
+                object = tokens.get(++i);
+            else if(source == null && !token.startsWith("-") && isUnit(token, kind))
+                source = token;
+        }
+        return new Step(kind, source, object, nanos);
+    }
+
+    private static boolean isUnit(String token, Kind kind) {
+        String lower = token.toLowerCase();
+        if(kind == Kind.ARCHIVE)
+            return lower.endsWith(".a");
+        if(kind == Kind.OBJCOPY || kind == Kind.SIZE || kind == Kind.LINK)
+            return lower.endsWith(".elf") || lower.endsWith(".o");
+        return lower.endsWith(".c") || lower.endsWith(".cpp") || lower.endsWith(".cc") || lower.endsWith(".cxx")
+                || lower.endsWith(".s") || lower.endsWith(".ino");
+    }
+
+    private static String shorten(String path) {
+        if(path == null)
+            return "?";
+        String normalized = path.replace('\\', '/');
+        int slash = normalized.lastIndexOf('/', normalized.lastIndexOf('/') - 1);
+        return slash < 0 ? normalized : normalized.substring(slash + 1);
+    }
+
+    private static String format(long nanos) {
+        return String.format("%.2f s", seconds(nanos));
+    }
+
+    private static double seconds(long nanos) {
+        return nanos / 1e9;
+    }
+
+    private static long millis(long nanos) {
+        return nanos / 1000000;
+    }
+
+    private static String toJson(Map<String, Long> totals) {
+        StringBuilder out = new StringBuilder("{");
+        boolean first = true;
+        for(Map.Entry<String, Long> entry : totals.entrySet()) {
+            out.append(first ? "" : ", ").append(quote(entry.getKey())).append(": ").append(millis(entry.getValue()));
+            first = false;
+        }
+        return out.append("}").toString();
+    }
+
+    public static String quote(String value) {
+        if(value == null)
+            return "null";
+        StringBuilder out = new StringBuilder("\"");
+        for(char c : value.toCharArray()) {
+            if(c == '"' || c == '\\')
+                out.append('\\').append(c);
+            else if(c < 0x20)
+                out.append(String.format("\\u%04x", (int) c));
+            else
+                out.append(c);
+        }
+        return out.append('"').toString();
+    }
+
+    private static class Step {
+        private final Kind kind;
+        private final String unit;
+        private final String group;
+        private final String library;
+        private final long startNanos;
+        private long endNanos;
+
+        private Step(Kind kind, String source, String object, long startNanos) {
+            this.kind = kind;
+            this.unit = source != null ? source : object;
+            this.startNanos = startNanos;
+
+            String path = object == null ? "" : object.replace('\\', '/');
+            int libraries = path.indexOf("/libraries/");
+            if(kind == Kind.PREPROCESS) {
+                group = "detect libraries";
+                library = null;
+            } else if(kind == Kind.LINK || kind == Kind.OBJCOPY || kind == Kind.SIZE) {
+                group = "link";
+                library = null;
+            } else if(kind == Kind.ARCHIVE || path.contains("/core/")) {
+                group = "core";
+                library = null;
+            } else if(libraries >= 0) {
+                group = "libraries";
+                String rest = path.substring(libraries + "/libraries/".length());
+                library = rest.contains("/") ? rest.substring(0, rest.indexOf('/')) : rest;
+            } else {
+                group = "sketch";
+                library = null;
+            }
+        }
+
+        private long duration() {
+            return endNanos - startNanos;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package it.sijmen.cluino.ext;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Remembers the flash contents of the devices the plugin uploaded to, and the hash of the last
+ * image uploaded to every device. A device is a key chosen by the caller, usually its usb serial
+ * number, so the records follow a board to another port and another board on the same port does
+ * not get them. Boards without a serial number are keyed by their port. Only successful uploads
+ * are remembered. When the contents are not known, for example because an upload failed or
+ * another tool uploaded, there is no entry.
+ */
+public class FlashImageStore {
+
+    private static final String LAST_UPLOAD = "last-upload.sha256";
+
+    private FlashImageStore() {
+    }
+
+    public static Path getRoot() {
+        return Paths.get(System.getProperty("user.home")).resolve(".cluino/flash-images");
+    }
+
+    private static Path getDir(String device) {
+        return getRoot().resolve(ArduinoBuilder.toDirName(device));
+    }
+
+    private static Path getFile(String device, byte[] signature) {
+        return getDir(device).resolve(toHex(signature) + ".bin");
+    }
+
+    /**
+     * @param device the key of the device, see the class comment
+     * @return the flash contents of the device, or null when they are not known.
+     */
+    public static byte[] load(String device, byte[] signature) {
+        try {
+            Path file = getFile(device, signature);
+            return Files.isRegularFile(file) ? Files.readAllBytes(file) : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Remembers the flash contents of the device after a verified upload.
+     */
+    public static void save(String device, byte[] signature, byte[] flash) throws IOException {
+        Path file = getFile(device, signature);
+        Files.createDirectories(file.getParent());
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(temp, flash);
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Forgets everything about the device. Called before uploading, so a failed or cancelled
+     * upload leaves the contents unknown.
+     */
+    public static void forget(String device) throws IOException {
+        Path dir = getDir(device);
+        if(!Files.isDirectory(dir))
+            return;
+        try(DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for(Path file : stream)
+                Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * @return the hash of the last image that was uploaded to the device, or null when it is not known.
+     */
+    public static String getLastUpload(String device) {
+        try {
+            Path file = getDir(device).resolve(LAST_UPLOAD);
+            return Files.isRegularFile(file) ? new String(Files.readAllBytes(file), StandardCharsets.UTF_8) : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Remembers the hash of the image after it was uploaded to the device successfully.
+     */
+    public static void setLastUpload(String device, String hash) throws IOException {
+        Path file = getDir(device).resolve(LAST_UPLOAD);
+        Files.createDirectories(file.getParent());
+        Files.write(file, hash.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static String hash(byte[] image) {
+        try {
+            return toHex(MessageDigest.getInstance("SHA-256").digest(image));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * The flash contents after writing the image over the previous contents. The last page of
+     * the image is filled up with 0xFF. Pages of the previous contents behind the image are not
+     * erased by an upload and stay.
+     */
+    public static byte[] merge(byte[] previous, byte[] image, int pageSize) {
+        int written = (image.length + pageSize - 1) / pageSize * pageSize;
+        byte[] out = new byte[Math.max(written, previous == null ? 0 : previous.length)];
+        if(previous != null)
+            System.arraycopy(previous, 0, out, 0, previous.length);
+        Arrays.fill(out, image.length, written, (byte) 0xFF);
+        System.arraycopy(image, 0, out, 0, image.length);
+        return out;
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder out = new StringBuilder(bytes.length * 2);
+        for(byte b : bytes)
+            out.append(String.format("%02x", b));
+        return out.toString();
+    }
+}
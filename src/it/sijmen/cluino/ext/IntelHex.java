@@ -0,0 +1,97 @@
+package it.sijmen.cluino.ext;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * A flash image read from an intel hex file. Bytes that the file does not set are 0xFF, the value
+ * of erased flash.
+ */
+public class IntelHex {
+
+    private static final int DATA = 0x00, END = 0x01, EXTENDED_SEGMENT = 0x02, EXTENDED_LINEAR = 0x04;
+
+    private final byte[] data;
+
+    IntelHex(byte[] data) {
+        this.data = data;
+    }
+
+    public static IntelHex read(Path file) throws IOException {
+        byte[] out = new byte[0];
+        int size = 0;
+        long base = 0;
+        try(BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.US_ASCII)) {
+            String line;
+            int lineNumber = 0;
+            while((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if(line.isEmpty())
+                    continue;
+                byte[] record = parseRecord(line, file, lineNumber);
+                int length = record[0] & 0xFF;
+                int address = (record[1] & 0xFF) << 8 | record[2] & 0xFF;
+                int type = record[3] & 0xFF;
+
+                if(type == END)
+                    break;
+                if(type == EXTENDED_SEGMENT)
+                    base = ((record[4] & 0xFF) << 8 | record[5] & 0xFF) << 4;
+                else if(type == EXTENDED_LINEAR)
+                    base = ((long) (record[4] & 0xFF) << 8 | record[5] & 0xFF) << 16;
+                else if(type == DATA) {
+                    long start = base + address;
+                    if(start + length > Integer.MAX_VALUE)
+                        throw new IOException(file + ":" + lineNumber + ": address out of range");
+                    int end = (int) start + length;
+                    if(end > out.length) {
+                        int old = out.length;
+                        out = Arrays.copyOf(out, Math.max(end, out.length * 2));
+                        Arrays.fill(out, old, out.length, (byte) 0xFF);
+                    }
+                    System.arraycopy(record, 4, out, (int) start, length);
+                    size = Math.max(size, end);
+                }
+            }
+        }
+        return new IntelHex(Arrays.copyOf(out, size));
+    }
+
+    /**
+     * @return the bytes of the record: length, address, type, data and checksum.
+     */
+    private static byte[] parseRecord(String line, Path file, int lineNumber) throws IOException {
+        if(line.charAt(0) != ':' || line.length() < 11 || line.length() % 2 != 1)
+            throw new IOException(file + ":" + lineNumber + ": not an intel hex record");
+        byte[] out = new byte[(line.length() - 1) / 2];
+        int sum = 0;
+        for(int i = 0; i < out.length; i++) {
+            int high = Character.digit(line.charAt(1 + 2 * i), 16), low = Character.digit(line.charAt(2 + 2 * i), 16);
+            if(high < 0 || low < 0)
+                throw new IOException(file + ":" + lineNumber + ": invalid hex digit");
+            out[i] = (byte) (high << 4 | low);
+            sum += out[i] & 0xFF;
+        }
+        if((out[0] & 0xFF) + 5 != out.length)
+            throw new IOException(file + ":" + lineNumber + ": wrong record length");
+        if((sum & 0xFF) != 0)
+            throw new IOException(file + ":" + lineNumber + ": wrong checksum");
+        return out;
+    }
+
+    /**
+     * @return the image, starting at address 0 and ending after the last byte the file sets.
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    public int getSize() {
+        return data.length;
+    }
+}
@@ -0,0 +1,285 @@
+package it.sijmen.cluino.ext;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Knows which library of a libraries folder provides which header, so the libraries a sketch
+ * uses can be found without preprocessing it. A folder is scanned the first time it is used.
+ * After that only libraries that are reported as changed are scanned again.
+ */
+public class LibraryIndex {
+
+    private static final Set<String> SKETCH_EXTENSIONS = new HashSet<>(
+            Arrays.asList("ino", "pde", "c", "cpp", "cc", "cxx", "h", "hh", "hpp"));
+
+    private static final Set<String> STANDARD_HEADERS = new HashSet<>(Arrays.asList(
+            "assert.h", "ctype.h", "errno.h", "float.h", "inttypes.h", "limits.h", "locale.h", "math.h", "setjmp.h",
+            "signal.h", "stdarg.h", "stdbool.h", "stddef.h", "stdint.h", "stdio.h", "stdlib.h", "string.h", "time.h"));
+
+    private final Map<Path, Folder> folders = new ConcurrentHashMap<>();
+    private final Map<Path, Includes> includes = new ConcurrentHashMap<>();
+
+    /**
+     * The libraries the sources use and the headers that no library provides.
+     */
+    public static class Resolution {
+        private final List<Library> libraries;
+        private final Set<String> unresolved;
+
+        private Resolution(List<Library> libraries, Set<String> unresolved) {
+            this.libraries = libraries;
+            this.unresolved = unresolved;
+        }
+
+        /**
+         * @return the used libraries, including the libraries used by other libraries.
+         */
+        public List<Library> getLibraries() {
+            return libraries;
+        }
+
+        /**
+         * @return the names of included headers that are not known and are not provided by any library.
+         * Includes of a path (avr/io.h), c++ headers without extension and the headers of the c
+         * standard library are never reported because they come from the compiler.
+         */
+        public Set<String> getUnresolved() {
+            return unresolved;
+        }
+    }
+
+    /**
+     * Finds the libraries the sources include, and the libraries those libraries include.
+     * @param libraryFolders folders containing libraries. If multiple libraries provide the same
+     *                       header, the one in the last folder wins.
+     * @param knownHeaders   headers that do not need a library, for example those of the core.
+     */
+    public Resolution resolve(List<Path> libraryFolders, Collection<Path> sources, Set<String> knownHeaders)
+            throws IOException {
+        Map<String, Library> byHeader = new HashMap<>();
+        for(Path folder : libraryFolders)
+            byHeader.putAll(getFolder(folder).byHeader);
+
+        Map<Path, Library> used = new LinkedHashMap<>();
+        Set<String> unresolved = new LinkedHashSet<>();
+        List<Path> toScan = new ArrayList<>(sources);
+        Set<Path> scanned = new HashSet<>();
+        while(!toScan.isEmpty()) {
+            Path file = toScan.remove(toScan.size() - 1);
+            if(!scanned.add(file))
+                continue;
+            for(String include : findIncludes(file)) {
+                String header = Paths.get(include).getFileName().toString();
+                if(knownHeaders.contains(header) || Files.exists(file.getParent().resolve(include)))
+                    continue;
+                Library library = byHeader.get(header);
+                if(library == null) {
+                    if(include.indexOf('/') < 0 && include.indexOf('.') > 0 && !STANDARD_HEADERS.contains(include))
+                        unresolved.add(include);
+                } else if(!used.containsKey(library.root)) {
+                    used.put(library.root, library);
+                    toScan.addAll(library.sources());
+                    toScan.addAll(library.headerFiles());
+                }
+            }
+        }
+        return new Resolution(new ArrayList<>(used.values()), unresolved);
+    }
+
+    /**
+     * The files of a sketch that can include libraries: the sources and headers next to the main
+     * file and everything in its src folder.
+     */
+    public static List<Path> sketchFiles(Path mainFile) throws IOException {
+        Path dir = mainFile.toAbsolutePath().getParent();
+        List<Path> out = new ArrayList<>();
+        for(Path file : NativeBuilder.listFiles(dir, false))
+            if(SKETCH_EXTENSIONS.contains(NativeBuilder.extension(file)))
+                out.add(file);
+        for(Path file : NativeBuilder.listFiles(dir.resolve("src"), true))
+            if(SKETCH_EXTENSIONS.contains(NativeBuilder.extension(file)))
+                out.add(file);
+        return out;
+    }
+
+    /**
+     * @return the names of the headers in the folder and its subfolders, up to the given depth.
+     */
+    public static Set<String> listHeaders(Path dir, int depth) throws IOException {
+        Set<String> out = new HashSet<>();
+        if(!Files.isDirectory(dir))
+            return out;
+        try(Stream<Path> stream = Files.walk(dir, depth)) {
+            stream.filter(Files::isRegularFile)
+                    .filter(f -> NativeBuilder.HEADER_EXTENSIONS.contains(NativeBuilder.extension(f)))
+                    .forEach(f -> out.add(f.getFileName().toString()));
+        }
+        return out;
+    }
+
+    /**
+     * Reports that a file or folder changed. The library it belongs to is scanned again the next
+     * time it is used.
+     */
+    public void invalidate(Path changed) {
+        includes.remove(changed);
+        for(Map.Entry<Path, Folder> entry : folders.entrySet()) {
+            Path folder = entry.getKey();
+            if(folder.startsWith(changed)) {
+                folders.remove(folder);
+            } else if(changed.startsWith(folder) && !changed.equals(folder)) {
+                entry.getValue().stale.add(folder.resolve(folder.relativize(changed).getName(0)));
+            }
+        }
+    }
+
+    /**
+     * @return the folders that were scanned so far.
+     */
+    public Set<Path> getFolders() {
+        return Collections.unmodifiableSet(folders.keySet());
+    }
+
+    private Folder getFolder(Path folder) throws IOException {
+        Folder out = folders.get(folder);
+        if(out == null) {
+            out = new Folder();
+            for(Path dir : ArduinoPackages.list(folder))
+                out.put(new Library(dir));
+            out.rebuildHeaders();
+            folders.put(folder, out);
+        } else if(!out.stale.isEmpty()) {
+            synchronized(out) {
+                for(Path dir : new ArrayList<>(out.stale)) {
+                    out.stale.remove(dir);
+                    out.libraries.remove(dir);
+                    if(Files.isDirectory(dir))
+                        out.put(new Library(dir));
+                }
+                out.rebuildHeaders();
+            }
+        }
+        return out;
+    }
+
+    /**
+     * The includes of a file, read again only when the file changed.
+     */
+    private List<String> findIncludes(Path file) throws IOException {
+        long modified = Files.getLastModifiedTime(file).toMillis();
+        Includes cached = includes.get(file);
+        if(cached == null || cached.modified != modified) {
+            cached = new Includes(modified, NativeBuilder.findIncludes(file));
+            includes.put(file, cached);
+        }
+        return cached.names;
+    }
+
+    private static class Folder {
+        private final Map<Path, Library> libraries = new LinkedHashMap<>();
+        private final Set<Path> stale = ConcurrentHashMap.newKeySet();
+        private volatile Map<String, Library> byHeader = Collections.emptyMap();
+
+        private void put(Library library) {
+            libraries.put(library.root, library);
+        }
+
+        private void rebuildHeaders() {
+            Map<String, Library> out = new HashMap<>();
+            for(Library library : libraries.values())
+                for(String header : library.headers())
+                    out.put(header, library);
+            byHeader = out;
+        }
+    }
+
+    private static class Includes {
+        private final long modified;
+        private final List<String> names;
+
+        private Includes(long modified, List<String> names) {
+            this.modified = modified;
+            this.names = names;
+        }
+    }
+
+    /**
+     * A library folder. Libraries with a library.properties file and a src folder use the 1.5
+     * layout where everything in src is compiled, older libraries only compile the files in
+     * their root and utility folders.
+     */
+    public static class Library {
+        private final String name;
+        private final Path root;
+        private final Path dir;
+        private final boolean recursive;
+        private final List<Path> headerFiles;
+
+        Library(Path root) throws IOException {
+            this.name = root.getFileName().toString();
+            this.root = root;
+            this.recursive = Files.exists(root.resolve("library.properties")) && Files.isDirectory(root.resolve("src"));
+            this.dir = recursive ? root.resolve("src") : root;
+            this.headerFiles = NativeBuilder.listFiles(dir, false).stream()
+                    .filter(f -> NativeBuilder.HEADER_EXTENSIONS.contains(NativeBuilder.extension(f)))
+                    .collect(Collectors.toList());
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the folder of the library, in a libraries folder.
+         */
+        public Path getRoot() {
+            return root;
+        }
+
+        /**
+         * @return the folder with the sources of the library.
+         */
+        Path getDir() {
+            return dir;
+        }
+
+        List<Path> includeDirs() {
+            if(recursive || !Files.isDirectory(dir.resolve("utility")))
+                return Collections.singletonList(dir);
+            return Arrays.asList(dir, dir.resolve("utility"));
+        }
+
+        List<String> headers() {
+            return headerFiles.stream().map(f -> f.getFileName().toString()).collect(Collectors.toList());
+        }
+
+        List<Path> headerFiles() {
+            return headerFiles;
+        }
+
+        List<Path> sources() throws IOException {
+            if(recursive)
+                return NativeBuilder.listSources(dir, true);
+            List<Path> out = NativeBuilder.listSources(dir, false);
+            out.addAll(NativeBuilder.listSources(dir.resolve("utility"), false));
+            return out;
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package it.sijmen.cluino.ext;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parses the output of arduino-builder -logger=machine one line at a time. Builder messages look
+ * like ===LEVEL ||| FORMAT ||| [ARG ARG], where the arguments are url encoded and fill the {0}
+ * placeholders of the format. All other lines are compiler output, in which gcc diagnostics
+ * (FILE:LINE:COLUMN: error: MESSAGE) are recognised.
+ * Lines are scanned with indexOf, only the parts that end up in the event are copied.
+ */
+public class MachineLogParser {
+
+    private static final String START = "===", SEPARATOR = " ||| ";
+    private static final String PROGRESS_FORMAT = "Progress {0}";
+
+    private static final String[] DIAGNOSTIC_MARKERS = { ": fatal error: ", ": error: ", ": warning: ", ": note: " };
+    private static final BuildEvent.Severity[] DIAGNOSTIC_SEVERITIES = {
+            BuildEvent.Severity.ERROR, BuildEvent.Severity.ERROR, BuildEvent.Severity.WARNING, BuildEvent.Severity.INFO };
+
+    private MachineLogParser() {
+    }
+
+    /**
+     * @param line one line of output, without the line separator.
+     */
+    public static BuildEvent parse(String line) {
+        int end = line.length();
+        while(end > 0 && (line.charAt(end - 1) == '\r' || line.charAt(end - 1) == '\n'))
+            end--;
+        if(end != line.length())
+            line = line.substring(0, end);
+
+        if(line.startsWith(START)) {
+            BuildEvent event = parseMessage(line);
+            if(event != null)
+                return event;
+        }
+        BuildEvent diagnostic = parseDiagnostic(line);
+        return diagnostic != null ? diagnostic : BuildEvent.output(line);
+    }
+
+    private static BuildEvent parseMessage(String line) {
+        int first = line.indexOf(SEPARATOR, START.length());
+        if(first < 0)
+            return null;
+        int second = line.indexOf(SEPARATOR, first + SEPARATOR.length());
+        if(second < 0)
+            return null;
+
+        String level = line.substring(START.length(), first);
+        String format = line.substring(first + SEPARATOR.length(), second);
+        List<String> args = parseArguments(line, second + SEPARATOR.length());
+
+        if(format.equals(PROGRESS_FORMAT)) {
+            if(args.isEmpty())
+                return null;
+            try {
+                return BuildEvent.progress(Double.parseDouble(args.get(0)));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        String text = format(format, args);
+        if(BuildTimer.isPhaseMarker(text))
+            return BuildEvent.step(text);
+        return BuildEvent.message(toSeverity(level), text);
+    }
+
+    /**
+     * The arguments between [ and ] at the end of the line, separated by spaces.
+     */
+    private static List<String> parseArguments(String line, int from) {
+        List<String> out = new ArrayList<>();
+        int open = line.indexOf('[', from);
+        int close = line.lastIndexOf(']');
+        if(open < 0 || close < open)
+            return out;
+        int start = open + 1;
+        while(start < close) {
+            int space = line.indexOf(' ', start);
+            int stop = space < 0 || space > close ? close : space;
+            if(stop > start)
+                out.add(decode(line.substring(start, stop)));
+            start = stop + 1;
+        }
+        return out;
+    }
+
+    private static String decode(String argument) {
+        if(argument.indexOf('%') < 0 && argument.indexOf('+') < 0)
+            return argument;
+        try {
+            return URLDecoder.decode(argument, "UTF-8");
+        } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+            return argument;
+        }
+    }
+
+    /**
+     * Replaces {0}, {1}... in the format by the arguments.
+     */
+    static String format(String format, List<String> args) {
+        if(args.isEmpty() || format.indexOf('{') < 0)
+            return format;
+        StringBuilder out = new StringBuilder(format.length() + 32);
+        int pos = 0;
+        while(pos < format.length()) {
+            int open = format.indexOf('{', pos);
+            int close = open < 0 ? -1 : format.indexOf('}', open);
+            int index = close < 0 ? -1 : parseNumber(format, open + 1, close);
+            if(close < 0) {
+                out.append(format, pos, format.length());
+                break;
+            }
+            out.append(format, pos, open);
+            if(index >= 0 && index < args.size())
+                out.append(args.get(index));
+            else
+                out.append(format, open, close + 1);
+            pos = close + 1;
+        }
+        return out.toString();
+    }
+
+    /**
+     * Recognises FILE:LINE:COLUMN: SEVERITY: MESSAGE and FILE:LINE: SEVERITY: MESSAGE.
+     * @return the diagnostic, or null when the line is something else.
+     */
+    static BuildEvent parseDiagnostic(String line) {
+        for(int i = 0; i < DIAGNOSTIC_MARKERS.length; i++) {
+            int marker = line.indexOf(DIAGNOSTIC_MARKERS[i]);
+            if(marker <= 0)
+                continue;
+
+            int lastColon = line.lastIndexOf(':', marker - 1);
+            if(lastColon <= 0)
+                return null;
+            int last = parseNumber(line, lastColon + 1, marker);
+            if(last < 0)
+                return null;
+
+            int previousColon = line.lastIndexOf(':', lastColon - 1);
+            int previous = previousColon <= 0 ? -1 : parseNumber(line, previousColon + 1, lastColon);
+            String file = previous < 0 ? line.substring(0, lastColon) : line.substring(0, previousColon);
+            if(file.trim().isEmpty())
+                return null;
+            return previous < 0
+                    ? BuildEvent.diagnostic(DIAGNOSTIC_SEVERITIES[i], line, file, last, 0)
+                    : BuildEvent.diagnostic(DIAGNOSTIC_SEVERITIES[i], line, file, previous, last);
+        }
+        return null;
+    }
+
+    /**
+     * @return the number between start and end, or -1 when that part is not a number.
+     */
+    private static int parseNumber(CharSequence text, int start, int end) {
+        if(start >= end || end - start > 9)
+            return -1;
+        int out = 0;
+        for(int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if(c < '0' || c > '9')
+                return -1;
+            out = out * 10 + (c - '0');
+        }
+        return out;
+    }
+
+    private static BuildEvent.Severity toSeverity(String level) {
+        switch (level.toLowerCase()) {
+            case "error":
+                return BuildEvent.Severity.ERROR;
+            case "warn":
+            case "warning":
+                return BuildEvent.Severity.WARNING;
+            default:
+                return BuildEvent.Severity.INFO;
+        }
+    }
+}
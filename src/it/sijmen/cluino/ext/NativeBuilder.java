@@ -0,0 +1,575 @@
+package it.sijmen.cluino.ext;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Builds a sketch without arduino-builder. The recipes of platform.txt are expanded here and
+ * every source file is compiled in its own task on a fork-join pool, so a build uses all cores.
+ * Archiving the core waits for the core to be compiled and linking waits for everything else.
+ * Object files are only rebuilt when their source or one of its headers changed, and all objects
+ * are removed when the build options changed since the last build.
+ *
+ * This is not a drop-in replacement of arduino-builder: .ino files are merged and get an include
+ * of Arduino.h and prototypes of the functions a simple scanner finds (see {@link Prototypes}),
+ * not ctags. Libraries are found by scanning #include lines instead of by running the
+ * preprocessor. Recipe hooks are not run.
+ */
+public class NativeBuilder {
+
+    private static final String OPTIONS_FILE = ".cluino-build-options";
+    private static final Pattern INCLUDE = Pattern.compile("^\\s*#\\s*include\\s*[<\"]([^>\"]+)[>\"]", Pattern.MULTILINE);
+    private static final Set<String> SOURCE_EXTENSIONS = new HashSet<>(Arrays.asList("c", "cpp", "cc", "cxx", "s"));
+    static final Set<String> HEADER_EXTENSIONS = new HashSet<>(Arrays.asList("h", "hh", "hpp"));
+
+    public interface Output {
+        void info(String text);
+
+        void error(String text);
+    }
+
+    private final String fqbn;
+    private final List<String> hardwares;
+    private final List<String> tools;
+    private final List<String> prefs;
+    private final List<String> libraries;
+    private final ArduinoBuilder.Warnings warnings;
+    private final String ideVersion;
+    private final boolean verbose;
+    private final Path buildDir;
+    private final Path mainFile;
+    private LibraryIndex libraryIndex = new LibraryIndex();
+
+    private final Set<Process> running = ConcurrentHashMap.newKeySet();
+    private volatile boolean cancelled;
+
+    public NativeBuilder(String fqbn, List<String> hardwares, List<String> tools, List<String> prefs,
+                         List<String> libraries, ArduinoBuilder.Warnings warnings, String ideVersion,
+                         boolean verbose, Path buildDir, Path mainFile) {
+        this.fqbn = fqbn;
+        this.hardwares = hardwares;
+        this.tools = tools;
+        this.prefs = prefs;
+        this.libraries = libraries;
+        this.warnings = warnings;
+        this.ideVersion = ideVersion;
+        this.verbose = verbose;
+        this.buildDir = buildDir;
+        this.mainFile = mainFile.toAbsolutePath();
+    }
+
+    /**
+     * Builds the sketch into the build folder. Blocks until the hex file is written.
+     * @param timer records how long every compile, archive and link step takes
+     * @throws IOException when a step of the build fails
+     */
+    public void build(BuildTimer timer, Output output) throws IOException, InterruptedException {
+        PlatformProperties props = loadProperties();
+        Path coreDir = Paths.get(props.get("build.core.path"));
+        String variantPath = props.get("build.variant.path");
+        checkBuildOptions(props, output);
+
+        Path sketchDir = buildDir.resolve("sketch");
+        List<Path> sketchSources = prepareSketch(sketchDir);
+
+        List<Path> includeDirs = new ArrayList<>();
+        includeDirs.add(coreDir);
+        if(!variantPath.isEmpty())
+            includeDirs.add(Paths.get(variantPath));
+        List<LibraryIndex.Library> usedLibraries = resolveLibraries(sketchSources, includeDirs, props);
+        for(LibraryIndex.Library library : usedLibraries)
+            includeDirs.addAll(library.includeDirs());
+        String includes = includeDirs.stream().map(dir -> "\"-I" + dir + "\"").collect(Collectors.joining(" "));
+
+        if(!usedLibraries.isEmpty())
+            output.info("Using libraries: " + usedLibraries.stream().map(LibraryIndex.Library::getName).collect(Collectors.joining(", ")));
+
+        Map<Path, Path> coreObjects = objectsFor(listSources(coreDir, true), coreDir, buildDir.resolve("core"));
+
+        Map<Path, Path> otherObjects = objectsFor(sketchSources, sketchDir, sketchDir);
+        if(!variantPath.isEmpty())
+            otherObjects.putAll(objectsFor(listSources(Paths.get(variantPath), false), Paths.get(variantPath),
+                    buildDir.resolve("core").resolve("variant")));
+        for(LibraryIndex.Library library : usedLibraries)
+            otherObjects.putAll(objectsFor(library.sources(), library.getDir(), buildDir.resolve("libraries").resolve(library.getName())));
+
+        ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        try {
+            List<CompletableFuture<Boolean>> coreTasks = compileAll(pool, coreObjects, props, includes, timer, output);
+            List<CompletableFuture<Boolean>> otherTasks = compileAll(pool, otherObjects, props, includes, timer, output);
+
+            Path archive = buildDir.resolve("core").resolve("core.a");
+            CompletableFuture<Void> archiveTask = allOf(coreTasks).thenRunAsync(() -> unchecked(() -> {
+                List<Path> changed = new ArrayList<>();
+                Iterator<Path> objects = coreObjects.values().iterator();
+                for(CompletableFuture<Boolean> task : coreTasks) {
+                    Path object = objects.next();
+                    if(task.join())
+                        changed.add(object);
+                }
+                if(!Files.exists(archive))
+                    archive(archive, coreObjects.values(), props, timer, output);
+                else if(!changed.isEmpty())
+                    archive(archive, changed, props, timer, output);
+            }), pool);
+
+            CompletableFuture<Void> linkTask = CompletableFuture.allOf(archiveTask, allOf(otherTasks))
+                    .thenRunAsync(() -> unchecked(() -> link(archive, otherObjects.values(), props, timer, output)), pool);
+
+            linkTask.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            while(cause != null && cause.getCause() != null && !(cause instanceof IOException))
+                cause = cause.getCause();
+            if(cause instanceof IOException)
+                throw (IOException) cause;
+            throw new IOException(e.getMessage(), e);
+        } catch (InterruptedException e) {
+            cancel();
+            throw e;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Uses an index that already knows the libraries instead of scanning all library folders.
+     */
+    public NativeBuilder setLibraryIndex(LibraryIndex libraryIndex) {
+        this.libraryIndex = libraryIndex;
+        return this;
+    }
+
+    /**
+     * Stops all running compiler processes.
+     */
+    public void cancel() {
+        cancelled = true;
+        running.forEach(Process::destroy);
+    }
+
+    /**
+     * Objects are only checked against the times of their sources, so when the board options,
+     * preferences, core or tools changed since the last build all objects are removed.
+     */
+    private void checkBuildOptions(PlatformProperties props, Output output) throws IOException {
+        String options = BuildFingerprint.computeOptions(props);
+        Path file = buildDir.resolve(OPTIONS_FILE);
+        if(Files.exists(file) && options.equals(new String(Files.readAllBytes(file), StandardCharsets.UTF_8)))
+            return;
+
+        if(Files.exists(file))
+            output.info("The build options changed, rebuilding everything");
+        for(String dir : new String[]{"core", "sketch", "libraries"})
+            deleteTree(buildDir.resolve(dir));
+        for(String ext : new String[]{".elf", ".hex", ".eep"})
+            Files.deleteIfExists(buildDir.resolve(mainFile.getFileName() + ext));
+        Files.createDirectories(buildDir);
+        Files.write(file, options.getBytes(StandardCharsets.UTF_8));
+    }
+
+    PlatformProperties loadProperties() throws IOException {
+        String[] parts = fqbn.split(":");
+        if(parts.length < 3)
+            throw new IOException("Invalid board code " + fqbn + ". Expected VENDOR:ARCH:BOARD.");
+        String vendor = parts[0], arch = parts[1], board = parts[2];
+
+        Path platformDir = ArduinoPackages.findPlatformDir(vendor, arch, hardwares);
+        if(platformDir == null)
+            throw new IOException(vendor + ":" + arch + " is not installed in any of the hardware folders.");
+
+        PlatformProperties boards = PlatformProperties.load(platformDir.resolve("boards.txt"));
+        PlatformProperties boardProps = boards.subTree(board);
+        if(!boardProps.contains("name") && !boardProps.contains("build.board"))
+            throw new IOException("Board " + board + " is not defined in " + platformDir.resolve("boards.txt"));
+        if(parts.length > 3)
+            for(String option : parts[3].split(",")) {
+                String[] keyValue = option.split("=", 2);
+                if(keyValue.length == 2)
+                    boardProps.putAll(boardProps.subTree("menu." + keyValue[0] + "." + keyValue[1]));
+            }
+
+        PlatformProperties props = new PlatformProperties();
+        Path platformTxt = platformDir.resolve("platform.txt");
+        if(Files.exists(platformTxt))
+            props.putAll(PlatformProperties.load(platformTxt));
+        props.putAll(boardProps);
+
+        String core = props.get("build.core", "arduino");
+        Path corePlatform = platformDir;
+        if(core.contains(":")) {
+            corePlatform = ArduinoPackages.findPlatformDir(core.substring(0, core.indexOf(':')), arch, hardwares);
+            if(corePlatform == null)
+                throw new IOException("Core " + core + " is not installed in any of the hardware folders.");
+            core = core.substring(core.indexOf(':') + 1);
+        }
+        String variant = props.get("build.variant", "");
+        Path variantPlatform = platformDir;
+        if(variant.contains(":")) {
+            variantPlatform = ArduinoPackages.findPlatformDir(variant.substring(0, variant.indexOf(':')), arch, hardwares);
+            variant = variant.substring(variant.indexOf(':') + 1);
+        }
+
+        String version = ideVersion == null || ideVersion.isEmpty() ? "10807" : ideVersion;
+        props.put("build.path", buildDir.toString())
+                .put("build.project_name", mainFile.getFileName().toString())
+                .put("build.arch", arch.toUpperCase())
+                .put("build.fqbn", fqbn)
+                .put("build.source.path", mainFile.getParent().toString())
+                .put("build.core.path", corePlatform.resolve("cores").resolve(core).toString())
+                .put("build.variant.path", variant.isEmpty() || variantPlatform == null ? ""
+                        : variantPlatform.resolve("variants").resolve(variant).toString())
+                .put("build.system.path", platformDir.resolve("system").toString())
+                .put("runtime.platform.path", platformDir.toString())
+                .put("runtime.hardware.path", platformDir.getParent().toString())
+                .put("runtime.ide.version", version)
+                .put("ide_version", version)
+                .put("runtime.os", PlatformProperties.currentOs())
+                .put("software", "ARDUINO");
+
+        String level = warnings == null ? "none" : warnings.toString().toLowerCase();
+        props.put("compiler.warning_flags", props.get("compiler.warning_flags." + level, ""));
+
+        long now = System.currentTimeMillis();
+        TimeZone zone = TimeZone.getDefault();
+        props.put("extra.time.utc", String.valueOf(now / 1000))
+                .put("extra.time.local", String.valueOf((now + zone.getOffset(now)) / 1000))
+                .put("extra.time.zone", String.valueOf(zone.getRawOffset() / 1000))
+                .put("extra.time.dst", String.valueOf(zone.inDaylightTime(new Date(now)) ? zone.getDSTSavings() / 1000 : 0));
+
+        ArduinoPackages.findToolProperties(tools).forEach(props::put);
+        for(String pref : prefs) {
+            int equals = pref.indexOf('=');
+            if(equals > 0)
+                props.put(pref.substring(0, equals), pref.substring(equals + 1));
+        }
+        return props;
+    }
+
+    /**
+     * Copies the sketch into the build folder. All .ino files are merged into one .cpp file,
+     * main file first. Files are only written when they changed, so their objects stay valid.
+     * @return the sources to compile
+     */
+    private List<Path> prepareSketch(Path sketchDir) throws IOException {
+        Path sourceDir = mainFile.getParent();
+        Files.createDirectories(sketchDir);
+        List<Path> out = new ArrayList<>();
+
+        List<Path> inoFiles = new ArrayList<>();
+        List<Path> files = new ArrayList<>();
+        for(Path file : listFiles(sourceDir, false)) {
+            String ext = extension(file);
+            if(ext.equals("ino") || ext.equals("pde"))
+                inoFiles.add(file);
+            else if(SOURCE_EXTENSIONS.contains(ext) || HEADER_EXTENSIONS.contains(ext))
+                files.add(file);
+        }
+        Path src = sourceDir.resolve("src");
+        for(Path file : listFiles(src, true))
+            if(SOURCE_EXTENSIONS.contains(extension(file)) || HEADER_EXTENSIONS.contains(extension(file)))
+                files.add(file);
+
+        if(!inoFiles.isEmpty()) {
+            inoFiles.sort((a, b) -> a.equals(mainFile) ? -1 : b.equals(mainFile) ? 1 : a.compareTo(b));
+            StringBuilder merged = new StringBuilder("#include <Arduino.h>\n");
+            for(Path ino : inoFiles) {
+                merged.append("#line 1 \"").append(ino.toString().replace("\\", "\\\\")).append("\"\n");
+                merged.append(new String(Files.readAllBytes(ino), StandardCharsets.UTF_8)).append('\n');
+            }
+            Path target = sketchDir.resolve(mainFile.getFileName() + ".cpp");
+            writeIfChanged(target, Prototypes.insert(merged.toString()).getBytes(StandardCharsets.UTF_8));
+            out.add(target);
+        }
+
+        for(Path file : files) {
+            Path target = sketchDir.resolve(sourceDir.relativize(file).toString());
+            if(!Files.exists(target) || Files.getLastModifiedTime(target).compareTo(Files.getLastModifiedTime(file)) < 0
+                    || Files.size(target) != Files.size(file)) {
+                Files.createDirectories(target.getParent());
+                Files.copy(file, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+            }
+            if(SOURCE_EXTENSIONS.contains(extension(file)))
+                out.add(target);
+        }
+        return out;
+    }
+
+    /**
+     * Finds the libraries that the sources include, and the libraries those libraries include.
+     */
+    private List<LibraryIndex.Library> resolveLibraries(List<Path> sources, List<Path> includeDirs,
+                                                        PlatformProperties props) throws IOException {
+        List<Path> libraryFolders = new ArrayList<>();
+        libraryFolders.add(Paths.get(props.get("runtime.platform.path")).resolve("libraries"));
+        for(String library : libraries)
+            libraryFolders.add(Paths.get(library));
+
+        Set<String> known = new HashSet<>();
+        for(Path dir : includeDirs)
+            for(Path file : listFiles(dir, false))
+                known.add(file.getFileName().toString());
+
+        return libraryIndex.resolve(libraryFolders, sources, known).getLibraries();
+    }
+
+    static List<String> findIncludes(Path file) throws IOException {
+        List<String> out = new ArrayList<>();
+        Matcher matcher = INCLUDE.matcher(new String(Files.readAllBytes(file), StandardCharsets.ISO_8859_1));
+        while(matcher.find())
+            out.add(matcher.group(1));
+        return out;
+    }
+
+    private List<CompletableFuture<Boolean>> compileAll(ForkJoinPool pool, Map<Path, Path> objects,
+                                                        PlatformProperties props, String includes,
+                                                        BuildTimer timer, Output output) {
+        List<CompletableFuture<Boolean>> out = new ArrayList<>();
+        objects.forEach((source, object) -> out.add(CompletableFuture.supplyAsync(() -> {
+            try {
+                return compile(source, object, props, includes, timer, output);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new UncheckedIOException(new IOException("Cancelled", e));
+            }
+        }, pool)));
+        return out;
+    }
+
+    /**
+     * @return whether the object file was rebuilt
+     */
+    private boolean compile(Path source, Path object, PlatformProperties props, String includes,
+                            BuildTimer timer, Output output) throws IOException, InterruptedException {
+        if(isUpToDate(source, object))
+            return false;
+
+        String ext = extension(source);
+        String recipe = ext.equals("c") ? "recipe.c.o.pattern" : ext.equals("s") ? "recipe.S.o.pattern" : "recipe.cpp.o.pattern";
+        Map<String, String> extra = new HashMap<>();
+        extra.put("source_file", source.toString());
+        extra.put("object_file", object.toString());
+        extra.put("includes", includes);
+
+        Files.createDirectories(object.getParent());
+        long start = System.nanoTime();
+        run(props, recipe, extra, output);
+        timer.record(BuildTimer.Kind.COMPILE, source.toString(), object.toString(), start, System.nanoTime());
+        return true;
+    }
+
+    /**
+     * Adds the objects to the archive, or replaces them when they are already in it. The recipe
+     * takes one object_file, so the other objects are added to the command after it. When the
+     * recipe does not have the object as a separate argument it is run once per object.
+     */
+    private void archive(Path archive, Collection<Path> objects, PlatformProperties props, BuildTimer timer,
+                         Output output) throws IOException, InterruptedException {
+        String pattern = props.get("recipe.ar.pattern");
+        if(pattern == null)
+            throw new IOException("The platform does not define recipe.ar.pattern");
+
+        long start = System.nanoTime();
+        Map<String, String> extra = new HashMap<>();
+        extra.put("archive_file", archive.getFileName().toString());
+        extra.put("archive_file_path", archive.toString());
+        List<String> objectFiles = objects.stream().map(Path::toString).collect(Collectors.toList());
+        extra.put("object_file", objectFiles.get(0));
+
+        List<String> command = PlatformProperties.splitCommand(props.expand(pattern, extra));
+        int position = command.indexOf(objectFiles.get(0));
+        if(position >= 0) {
+            command.addAll(position + 1, objectFiles.subList(1, objectFiles.size()));
+            run(command, output);
+        } else {
+            for(String object : objectFiles) {
+                extra.put("object_file", object);
+                run(props, "recipe.ar.pattern", extra, output);
+            }
+        }
+        timer.record(BuildTimer.Kind.ARCHIVE, archive.toString(), archive.toString(), start, System.nanoTime());
+    }
+
+    private void link(Path archive, Iterable<Path> objects, PlatformProperties props, BuildTimer timer,
+                      Output output) throws IOException, InterruptedException {
+        StringBuilder objectFiles = new StringBuilder();
+        for(Path object : objects)
+            objectFiles.append(" \"").append(object).append('"');
+
+        Map<String, String> extra = new HashMap<>();
+        extra.put("object_files", objectFiles.toString().trim());
+        extra.put("archive_file", buildDir.relativize(archive).toString());
+        extra.put("archive_file_path", archive.toString());
+
+        String elf = buildDir.resolve(mainFile.getFileName() + ".elf").toString();
+        long start = System.nanoTime();
+        run(props, "recipe.c.combine.pattern", extra, output);
+        long linked = System.nanoTime();
+        timer.record(BuildTimer.Kind.LINK, elf, elf, start, linked);
+
+        if(props.contains("recipe.objcopy.eep.pattern"))
+            run(props, "recipe.objcopy.eep.pattern", extra, output);
+        run(props, "recipe.objcopy.hex.pattern", extra, output);
+        timer.record(BuildTimer.Kind.OBJCOPY, elf, elf, linked, System.nanoTime());
+        output.info("Built " + buildDir.resolve(mainFile.getFileName() + ".hex"));
+    }
+
+    private void run(PlatformProperties props, String recipe, Map<String, String> extra, Output output)
+            throws IOException, InterruptedException {
+        String pattern = props.get(recipe);
+        if(pattern == null)
+            throw new IOException("The platform does not define " + recipe);
+        run(PlatformProperties.splitCommand(props.expand(pattern, extra)), output);
+    }
+
+    private void run(List<String> command, Output output) throws IOException, InterruptedException {
+        if(cancelled)
+            throw new InterruptedException();
+        if(verbose)
+            output.info(String.join(" ", command));
+
+        Process process = new ProcessBuilder(command).directory(buildDir.toFile()).redirectErrorStream(true).start();
+        running.add(process);
+        try {
+            String text = readAll(process.getInputStream()).trim();
+            int exitCode = process.waitFor();
+            if(!text.isEmpty()) {
+                if(exitCode == 0)
+                    output.info(text);
+                else
+                    output.error(text);
+            }
+            if(exitCode != 0)
+                throw new IOException(command.get(0) + " exited with code " + exitCode);
+        } finally {
+            running.remove(process);
+        }
+    }
+
+    /**
+     * An object file is up to date when it is newer than its source and all headers listed in
+     * the dependency file gcc wrote next to it.
+     */
+    private static boolean isUpToDate(Path source, Path object) throws IOException {
+        if(!Files.exists(object))
+            return false;
+        Path depFile = object.resolveSibling(object.getFileName().toString().replaceAll("\\.o$", ".d"));
+        if(!Files.exists(depFile))
+            return false;
+
+        long objectTime = Files.getLastModifiedTime(object).toMillis();
+        if(Files.getLastModifiedTime(source).toMillis() > objectTime)
+            return false;
+
+        String deps = new String(Files.readAllBytes(depFile), StandardCharsets.UTF_8).replace("\\\n", " ");
+        int colon = deps.indexOf(": ");
+        for(String dep : deps.substring(colon < 0 ? 0 : colon + 2).split("\\s+")) {
+            if(dep.isEmpty() || dep.endsWith(":"))
+                continue;
+            Path path = Paths.get(dep);
+            if(!Files.exists(path) || Files.getLastModifiedTime(path).toMillis() > objectTime)
+                return false;
+        }
+        return true;
+    }
+
+    private static Map<Path, Path> objectsFor(List<Path> sources, Path sourceRoot, Path objectRoot) {
+        Map<Path, Path> out = new LinkedHashMap<>();
+        for(Path source : sources)
+            out.put(source, objectRoot.resolve(sourceRoot.relativize(source) + ".o"));
+        return out;
+    }
+
+    static List<Path> listSources(Path dir, boolean recursive) throws IOException {
+        return listFiles(dir, recursive).stream().filter(f -> SOURCE_EXTENSIONS.contains(extension(f)))
+                .collect(Collectors.toList());
+    }
+
+    static List<Path> listFiles(Path dir, boolean recursive) throws IOException {
+        if(!Files.isDirectory(dir))
+            return new ArrayList<>();
+        try(Stream<Path> stream = recursive ? Files.walk(dir) : Files.list(dir)) {
+            return stream.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+        }
+    }
+
+    static String extension(Path file) {
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return dot < 0 ? "" : name.substring(dot + 1).toLowerCase();
+    }
+
+    private static void writeIfChanged(Path file, byte[] content) throws IOException {
+        if(Files.exists(file) && Arrays.equals(Files.readAllBytes(file), content))
+            return;
+        Files.write(file, content);
+    }
+
+    private static void deleteTree(Path dir) throws IOException {
+        if(!Files.isDirectory(dir))
+            return;
+        try(Stream<Path> stream = Files.walk(dir)) {
+            for(Path path : stream.sorted(Comparator.reverseOrder()).collect(Collectors.toList()))
+                Files.delete(path);
+        }
+    }
+
+    private static String readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while((read = in.read(buffer)) >= 0)
+            out.write(buffer, 0, read);
+        return out.toString(StandardCharsets.UTF_8.name());
+    }
+
+    private static CompletableFuture<Void> allOf(List<CompletableFuture<Boolean>> futures) {
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]));
+    }
+
+    @FunctionalInterface
+    private interface Step {
+        void run() throws IOException, InterruptedException;
+    }
+
+    private static void unchecked(Step step) {
+        try {
+            step.run();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UncheckedIOException(new IOException("Cancelled", e));
+        }
+    }
+}
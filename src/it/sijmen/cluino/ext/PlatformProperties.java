@@ -0,0 +1,201 @@
+package it.sijmen.cluino.ext;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * The key=value properties of boards.txt and platform.txt files, including the expansion of
+ * {key} references that arduino uses to build recipes.
+ */
+public class PlatformProperties {
+
+    private static final int MAX_EXPAND_DEPTH = 10;
+
+    private final Map<String, String> values;
+
+    public PlatformProperties() {
+        this(new HashMap<>());
+    }
+
+    private PlatformProperties(Map<String, String> values) {
+        this.values = values;
+    }
+
+    /**
+     * Reads a properties file. Keys ending with the name of the current operating system
+     * (.linux, .windows or .macosx) override the key without that suffix.
+     */
+    public static PlatformProperties load(Path file) throws IOException {
+        PlatformProperties out = new PlatformProperties();
+        try(BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while((line = reader.readLine()) != null) {
+                line = line.trim();
+                if(line.isEmpty() || line.startsWith("#"))
+                    continue;
+                int equals = line.indexOf('=');
+                if(equals <= 0)
+                    continue;
+                out.values.put(line.substring(0, equals).trim(), line.substring(equals + 1).trim());
+            }
+        }
+
+        String suffix = "." + currentOs();
+        for(Map.Entry<String, String> entry : new ArrayList<>(out.values.entrySet()))
+            if(entry.getKey().endsWith(suffix))
+                out.values.put(entry.getKey().substring(0, entry.getKey().length() - suffix.length()), entry.getValue());
+        return out;
+    }
+
+    public String get(String key) {
+        return values.get(key);
+    }
+
+    public String get(String key, String defaultValue) {
+        String value = values.get(key);
+        return value == null ? defaultValue : value;
+    }
+
+    public boolean contains(String key) {
+        return values.containsKey(key);
+    }
+
+    public PlatformProperties put(String key, String value) {
+        values.put(key, value);
+        return this;
+    }
+
+    public PlatformProperties putAll(PlatformProperties other) {
+        values.putAll(other.values);
+        return this;
+    }
+
+    /**
+     * All properties, sorted by key.
+     */
+    public SortedMap<String, String> toSortedMap() {
+        return new TreeMap<>(values);
+    }
+
+    public PlatformProperties copy() {
+        return new PlatformProperties(new HashMap<>(values));
+    }
+
+    /**
+     * All properties that start with prefix + ".", with that part removed.
+     * For example subTree("uno") of boards.txt contains all properties of the uno.
+     */
+    public PlatformProperties subTree(String prefix) {
+        String start = prefix + ".";
+        PlatformProperties out = new PlatformProperties();
+        for(Map.Entry<String, String> entry : values.entrySet())
+            if(entry.getKey().startsWith(start))
+                out.values.put(entry.getKey().substring(start.length()), entry.getValue());
+        return out;
+    }
+
+    /**
+     * The distinct parts before the first dot of all keys. For boards.txt these are the board ids
+     * (and "menu").
+     */
+    public List<String> firstLevelKeys() {
+        Set<String> out = new LinkedHashSet<>();
+        for(String key : values.keySet()) {
+            int dot = key.indexOf('.');
+            out.add(dot < 0 ? key : key.substring(0, dot));
+        }
+        List<String> sorted = new ArrayList<>(out);
+        Collections.sort(sorted);
+        return sorted;
+    }
+
+    public String expand(String value) {
+        return expand(value, Collections.emptyMap());
+    }
+
+    /**
+     * Replaces all {key} references in the value by the value of the key. References that are
+     * not known are kept as they are.
+     * @param extra properties that take precedence over the properties of this file.
+     */
+    public String expand(String value, Map<String, String> extra) {
+        if(value == null)
+            return null;
+        for(int depth = 0; depth < MAX_EXPAND_DEPTH && value.indexOf('{') >= 0; depth++) {
+            StringBuilder out = new StringBuilder(value.length());
+            boolean changed = false;
+            int pos = 0;
+            while(pos < value.length()) {
+                int open = value.indexOf('{', pos);
+                int close = open < 0 ? -1 : value.indexOf('}', open);
+                if(close < 0) {
+                    out.append(value, pos, value.length());
+                    break;
+                }
+                String key = value.substring(open + 1, close);
+                String replacement = extra.containsKey(key) ? extra.get(key) : values.get(key);
+                out.append(value, pos, open);
+                if(replacement == null) {
+                    out.append(value, open, close + 1);
+                } else {
+                    out.append(replacement);
+                    changed = true;
+                }
+                pos = close + 1;
+            }
+            value = out.toString();
+            if(!changed)
+                break;
+        }
+        return value;
+    }
+
+    /**
+     * Splits an expanded recipe into the arguments of a command. Parts between double quotes
+     * are kept together and the quotes are removed.
+     */
+    public static List<String> splitCommand(String recipe) {
+        List<String> out = new ArrayList<>();
+        StringBuilder current = new StringBuilder();
+        boolean quoted = false, inArgument = false;
+        for(int i = 0; i < recipe.length(); i++) {
+            char c = recipe.charAt(i);
+            if(c == '"') {
+                quoted = !quoted;
+                inArgument = true;
+            } else if(Character.isWhitespace(c) && !quoted) {
+                if(inArgument)
+                    out.add(current.toString());
+                current.setLength(0);
+                inArgument = false;
+            } else {
+                current.append(c);
+                inArgument = true;
+            }
+        }
+        if(inArgument)
+            out.add(current.toString());
+        return out;
+    }
+
+    public static String currentOs() {
+        String os = System.getProperty("os.name").toLowerCase();
+        if(os.startsWith("win"))
+            return "windows";
+        if(os.startsWith("mac"))
+            return "macosx";
+        return "linux";
+    }
+}
@@ -0,0 +1,188 @@
+package it.sijmen.cluino.ext;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Adds prototypes of the functions in the merged .ino files of a sketch, so functions can be
+ * called above their definition, like arduino-builder does. arduino-builder finds the functions
+ * with ctags, this scans the top level of the source: functions whose signature it does not
+ * understand, like templates, functions with default arguments or attributes, are left out and
+ * still need to be declared before they are used. Functions that are already declared get no
+ * prototype.
+ */
+class Prototypes {
+
+    private static final Pattern DEFINITION = Pattern.compile(
+            "((?:[A-Za-z_][\\w:]*(?: ?<[^<>;{}()]*>)?[ *&]+)+)([A-Za-z_]\\w*) ?\\(([^()]*)\\) ?(?:const ?)?");
+    private static final Pattern DECLARATION = Pattern.compile("(?:.*[ *&])?([A-Za-z_]\\w*) ?\\([^;{}]*\\)");
+    private static final Pattern LINE = Pattern.compile("^\\s*#\\s*line\\s+(\\d+)\\s+(\"(?:[^\"\\\\]|\\\\.)*\")");
+    private static final Set<String> NOT_A_TYPE = new HashSet<>(Arrays.asList(
+            "struct", "class", "union", "enum", "namespace", "typedef", "template", "using", "extern",
+            "return", "else", "new", "delete", "operator", "case", "goto"));
+    private static final Set<String> NOT_A_FUNCTION = new HashSet<>(Arrays.asList(
+            "if", "while", "for", "switch", "catch", "sizeof", "return"));
+
+    private static class Definition {
+        final String name;
+        final String prototype;
+        final int start;
+
+        Definition(String name, String prototype, int start) {
+            this.name = name;
+            this.prototype = prototype;
+            this.start = start;
+        }
+    }
+
+    private Prototypes() {
+    }
+
+    /**
+     * @param source the merged .ino files, with #line directives pointing to the original files
+     * @return the source with the prototypes inserted above the first function definition
+     */
+    static String insert(String source) {
+        String code = blank(source);
+        List<Definition> definitions = new ArrayList<>();
+        Set<String> declared = new HashSet<>();
+
+        int depth = 0;
+        int statementStart = 0;
+        for(int i = 0; i < code.length(); i++) {
+            char c = code.charAt(i);
+            if(c == '{') {
+                if(depth == 0) {
+                    Definition definition = parseDefinition(code, statementStart, i);
+                    if(definition != null)
+                        definitions.add(definition);
+                }
+                depth++;
+            } else if(c == '}') {
+                depth = Math.max(0, depth - 1);
+                if(depth == 0)
+                    statementStart = i + 1;
+            } else if(c == ';' && depth == 0) {
+                String statement = normalize(code.substring(statementStart, i));
+                Matcher declaration = DECLARATION.matcher(statement);
+                if(!statement.contains("=") && declaration.matches())
+                    declared.add(declaration.group(1));
+                statementStart = i + 1;
+            }
+        }
+        if(definitions.isEmpty())
+            return source;
+
+        Set<String> prototypes = new LinkedHashSet<>();
+        StringBuilder block = new StringBuilder();
+        for(Definition definition : definitions)
+            if(!declared.contains(definition.name) && prototypes.add(definition.prototype))
+                block.append(lineDirective(source, definition.start)).append(definition.prototype).append(";\n");
+        if(block.length() == 0)
+            return source;
+
+        int insertAt = source.lastIndexOf('\n', definitions.get(0).start) + 1;
+        return source.substring(0, insertAt) + block + lineDirective(source, insertAt) + source.substring(insertAt);
+    }
+
+    /**
+     * @return the function defined by the code between start and the opening brace at end, or null
+     */
+    private static Definition parseDefinition(String code, int start, int end) {
+        String head = normalize(code.substring(start, end));
+        Matcher matcher = DEFINITION.matcher(head);
+        if(!matcher.matches() || head.contains("=") || matcher.group(3).contains("="))
+            return null;
+        String firstWord = head.split("[ *&<(]", 2)[0];
+        if(NOT_A_TYPE.contains(firstWord) || NOT_A_FUNCTION.contains(matcher.group(2)))
+            return null;
+
+        int first = start;
+        while(Character.isWhitespace(code.charAt(first)))
+            first++;
+        return new Definition(matcher.group(2), head, first);
+    }
+
+    private static String normalize(String text) {
+        return text.trim().replaceAll("\\s+", " ");
+    }
+
+    /**
+     * A #line directive that makes the line at the position in the source keep its original file
+     * and line number.
+     */
+    private static String lineDirective(String source, int position) {
+        int target = source.lastIndexOf('\n', position - 1) + 1;
+        String file = null;
+        int next = 1;
+        for(int lineStart = 0; lineStart < target; ) {
+            int lineEnd = source.indexOf('\n', lineStart);
+            Matcher directive = LINE.matcher(source.substring(lineStart, lineEnd));
+            if(directive.find()) {
+                file = directive.group(2);
+                next = Integer.parseInt(directive.group(1));
+            } else {
+                next++;
+            }
+            lineStart = lineEnd + 1;
+        }
+        if(file == null)
+            return "";
+        return "#line " + next + " " + file + "\n";
+    }
+
+    /**
+     * Replaces comments, string and character literals and preprocessor lines by spaces, keeping
+     * the line breaks, so braces and semicolons in them are not seen as code.
+     */
+    static String blank(String source) {
+        StringBuilder out = new StringBuilder(source);
+        int i = 0;
+        boolean lineStart = true;
+        while(i < out.length()) {
+            char c = out.charAt(i);
+            if(lineStart && c == '#') {
+                while(i < out.length() && out.charAt(i) != '\n') {
+                    if(out.charAt(i) == '\\' && i + 1 < out.length() && out.charAt(i + 1) == '\n')
+                        out.setCharAt(i++, ' ');
+                    else
+                        out.setCharAt(i, ' ');
+                    i++;
+                }
+            } else if(c == '/' && i + 1 < out.length() && out.charAt(i + 1) == '/') {
+                while(i < out.length() && out.charAt(i) != '\n')
+                    out.setCharAt(i++, ' ');
+            } else if(c == '/' && i + 1 < out.length() && out.charAt(i + 1) == '*') {
+                int end = out.indexOf("*/", i + 2);
+                end = end < 0 ? out.length() : end + 2;
+                for(; i < end; i++)
+                    if(out.charAt(i) != '\n')
+                        out.setCharAt(i, ' ');
+            } else if(c == '"' || c == '\'') {
+                out.setCharAt(i++, ' ');
+                while(i < out.length() && out.charAt(i) != c && out.charAt(i) != '\n') {
+                    if(out.charAt(i) == '\\' && i + 1 < out.length())
+                        out.setCharAt(i++, ' ');
+                    out.setCharAt(i++, ' ');
+                }
+                if(i < out.length() && out.charAt(i) == c)
+                    out.setCharAt(i++, ' ');
+            } else {
+                if(c == '\n')
+                    lineStart = true;
+                else if(!Character.isWhitespace(c))
+                    lineStart = false;
+                i++;
+                continue;
+            }
+            lineStart = false;
+        }
+        return out.toString();
+    }
+}
@@ -0,0 +1,90 @@
+package it.sijmen.cluino.ext;
+
+import purejavacomm.CommPortIdentifier;
+import purejavacomm.NoSuchPortException;
+import purejavacomm.PortInUseException;
+import purejavacomm.SerialPort;
+import purejavacomm.UnsupportedCommOperationException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A serial port opened with purejavacomm.
+ */
+public class PureJavaCommTransport implements SerialTransport {
+
+    private static final int OPEN_TIMEOUT_MILLIS = 2000;
+
+    private final SerialPort port;
+    private final InputStream in;
+    private final OutputStream out;
+
+    /**
+     * @param name the port, e.g. /dev/ttyUSB0 or COM3
+     */
+    public PureJavaCommTransport(String name, int baudRate) throws IOException {
+        String id = name.startsWith("/dev/") ? name.substring("/dev/".length()) : name;
+        try {
+            port = (SerialPort) CommPortIdentifier.getPortIdentifier(id).open("CLuino", OPEN_TIMEOUT_MILLIS);
+        } catch (NoSuchPortException e) {
+            throw new IOException("Serial port " + name + " does not exist", e);
+        } catch (PortInUseException e) {
+            throw new IOException("Serial port " + name + " is in use", e);
+        }
+        try {
+            port.setSerialPortParams(baudRate, SerialPort.DATABITS_8, SerialPort.STOPBITS_1, SerialPort.PARITY_NONE);
+            port.setFlowControlMode(SerialPort.FLOWCONTROL_NONE);
+            in = port.getInputStream();
+            out = port.getOutputStream();
+        } catch (UnsupportedCommOperationException | IOException e) {
+            port.close();
+            throw new IOException("Could not configure serial port " + name + ": " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) throws IOException {
+        out.write(data, offset, length);
+        out.flush();
+    }
+
+    @Override
+    public void read(byte[] buffer, int offset, int length, long timeoutMillis) throws IOException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        int done = 0;
+        while(done < length) {
+            long left = deadline - System.currentTimeMillis();
+            if(left <= 0)
+                throw new IOException("Timeout: the device did not answer");
+            try {
+                port.enableReceiveTimeout((int) Math.max(1, left));
+            } catch (UnsupportedCommOperationException e) {
+                throw new IOException(e);
+            }
+            int read = in.read(buffer, offset + done, length - done);
+            if(read < 0)
+                throw new IOException("The serial port was closed");
+            done += read;
+        }
+    }
+
+    @Override
+    public void flushInput() throws IOException {
+        while(in.available() > 0)
+            if(in.read(new byte[in.available()]) < 0)
+                return;
+    }
+
+    @Override
+    public void setDtrRts(boolean on) {
+        port.setDTR(on);
+        port.setRTS(on);
+    }
+
+    @Override
+    public void close() {
+        port.close();
+    }
+}
@@ -0,0 +1,183 @@
+package it.sijmen.cluino.ext;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * A serial port and, when it belongs to a usb device, the usb vendor id, product id and serial
+ * number of that device. The usb information is read from sysfs, so it is only known on linux.
+ */
+public class SerialDevice {
+
+    private static final Path SYS_TTY = Paths.get("/sys/class/tty");
+    private static final String USB_PREFIX = "usb:", SERIAL_PREFIX = "serial:";
+
+    /**
+     * Boards and usb serial chips by usb vendor and product id.
+     */
+    private static final Map<String, String> BOARDS = new HashMap<>();
+
+    static {
+        BOARDS.put("2341:0001", "Arduino Uno");
+        BOARDS.put("2341:0043", "Arduino Uno");
+        BOARDS.put("2a03:0043", "Arduino Uno");
+        BOARDS.put("2341:0010", "Arduino Mega 2560");
+        BOARDS.put("2341:0042", "Arduino Mega 2560");
+        BOARDS.put("2341:0036", "Arduino Leonardo (bootloader)");
+        BOARDS.put("2341:8036", "Arduino Leonardo");
+        BOARDS.put("2341:0037", "Arduino Micro (bootloader)");
+        BOARDS.put("2341:8037", "Arduino Micro");
+        BOARDS.put("2341:003d", "Arduino Due (programming port)");
+        BOARDS.put("2341:003e", "Arduino Due (native port)");
+        BOARDS.put("2341:0058", "Arduino Nano Every");
+        BOARDS.put("1a86:7523", "CH340 serial, e.g. a Nano or Uno clone");
+        BOARDS.put("0403:6001", "FTDI serial, e.g. a Nano, Pro Mini or Duemilanove");
+        BOARDS.put("10c4:ea60", "CP210x serial, e.g. an ESP32 or NodeMCU");
+    }
+
+    private final String port;
+    private final String vendorId, productId, serialNumber, product;
+
+    SerialDevice(String port, String vendorId, String productId, String serialNumber, String product) {
+        this.port = port;
+        this.vendorId = vendorId;
+        this.productId = productId;
+        this.serialNumber = serialNumber;
+        this.product = product;
+    }
+
+    /**
+     * Reads the usb information of the port from sysfs. Ports that are no usb device, and all
+     * ports on other systems than linux, get a device without usb information.
+     */
+    public static SerialDevice describe(String port) {
+        Path device = SYS_TTY.resolve(Paths.get(port).getFileName().toString()).resolve("device");
+        try {
+            if(Files.exists(device))
+                for(Path dir = device.toRealPath(); dir != null; dir = dir.getParent())
+                    if(Files.isRegularFile(dir.resolve("idVendor")))
+                        return new SerialDevice(port, read(dir, "idVendor"), read(dir, "idProduct"),
+                                read(dir, "serial"), read(dir, "product"));
+        } catch (IOException ignored) {
+            // unplugged while reading
+        }
+        return new SerialDevice(port, null, null, null, null);
+    }
+
+    private static String read(Path dir, String attribute) throws IOException {
+        Path file = dir.resolve(attribute);
+        if(!Files.isRegularFile(file))
+            return null;
+        return new String(Files.readAllBytes(file), StandardCharsets.UTF_8).trim();
+    }
+
+    /**
+     * Finds the ports that match any of the patterns. A pattern is a port name, a glob like
+     * /dev/ttyUSB*, usb:VID:PID to select all usb devices with that vendor and product id, or
+     * serial:NUMBER to select the usb device with that serial number. The product id may be left
+     * out or be *.
+     * @return the matching ports in the order of the patterns, without duplicates.
+     */
+    public static List<String> resolve(List<String> patterns, List<SerialDevice> devices) {
+        Set<String> out = new LinkedHashSet<>();
+        for(String pattern : patterns) {
+            pattern = pattern.trim();
+            if(pattern.isEmpty())
+                continue;
+            if(pattern.startsWith(USB_PREFIX)) {
+                String[] ids = pattern.substring(USB_PREFIX.length()).split(":");
+                for(SerialDevice device : devices)
+                    if(device.hasIds(ids[0], ids.length > 1 ? ids[1] : "*"))
+                        out.add(device.port);
+            } else if(pattern.startsWith(SERIAL_PREFIX)) {
+                String serialNumber = pattern.substring(SERIAL_PREFIX.length());
+                for(SerialDevice device : devices)
+                    if(serialNumber.equals(device.serialNumber))
+                        out.add(device.port);
+            } else if(pattern.contains("*") || pattern.contains("?") || pattern.contains("[")) {
+                PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+                for(SerialDevice device : devices)
+                    if(matcher.matches(Paths.get(device.port)))
+                        out.add(device.port);
+            } else {
+                out.add(pattern);
+            }
+        }
+        return new ArrayList<>(out);
+    }
+
+    private boolean hasIds(String vendorId, String productId) {
+        return vendorId.equalsIgnoreCase(this.vendorId)
+                && (productId.equals("*") || productId.equalsIgnoreCase(this.productId));
+    }
+
+    public String getPort() {
+        return port;
+    }
+
+    public String getVendorId() {
+        return vendorId;
+    }
+
+    public String getProductId() {
+        return productId;
+    }
+
+    public String getSerialNumber() {
+        return serialNumber;
+    }
+
+    public String getProduct() {
+        return product;
+    }
+
+    public boolean isUsb() {
+        return vendorId != null;
+    }
+
+    /**
+     * @return the board or usb serial chip that usually has the vendor and product id, or null when unknown.
+     */
+    public String getBoardGuess() {
+        return isUsb() ? BOARDS.get(vendorId.toLowerCase() + ":" + productId.toLowerCase()) : null;
+    }
+
+    /**
+     * The port followed by what is known about the device, e.g. /dev/ttyACM0 - Arduino Uno (2341:0043) 7523031383335161E0E1
+     */
+    public String getDescription() {
+        if(!isUsb())
+            return port;
+        String name = getBoardGuess() != null ? getBoardGuess() : product != null ? product : "usb device";
+        return port + " - " + name + " (" + vendorId + ":" + productId + ")"
+                + (serialNumber != null ? " " + serialNumber : "");
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if(this == o)
+            return true;
+        if(!(o instanceof SerialDevice))
+            return false;
+        SerialDevice other = (SerialDevice) o;
+        return port.equals(other.port) && Objects.equals(vendorId, other.vendorId)
+                && Objects.equals(productId, other.productId) && Objects.equals(serialNumber, other.serialNumber);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(port, vendorId, productId, serialNumber);
+    }
+}
@@ -0,0 +1,29 @@
+package it.sijmen.cluino.ext;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A serial connection to a device. The uploader only uses this interface, so it can also talk to
+ * a simulated bootloader, for example on one end of a pseudo terminal.
+ */
+public interface SerialTransport extends Closeable {
+
+    void write(byte[] data, int offset, int length) throws IOException;
+
+    /**
+     * Reads exactly length bytes.
+     * @throws IOException when the bytes did not arrive within the timeout
+     */
+    void read(byte[] buffer, int offset, int length, long timeoutMillis) throws IOException;
+
+    /**
+     * Drops all bytes that were received but not read yet.
+     */
+    void flushInput() throws IOException;
+
+    /**
+     * Sets the DTR and RTS lines. The reset of most arduino boards is connected to them.
+     */
+    void setDtrRts(boolean on) throws IOException;
+}
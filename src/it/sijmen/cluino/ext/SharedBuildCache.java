@@ -0,0 +1,133 @@
+package it.sijmen.cluino.ext;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Build cache in the user home that is shared by all projects. Every combination of board, core,
+ * tools and preferences gets its own entry, so the arduino core is compiled only once per
+ * machine. When the cache grows over its size limit, the least recently used entries are removed.
+ */
+public class SharedBuildCache {
+
+    private static final String LAST_USED = ".cluino-last-used";
+
+    private SharedBuildCache() {
+    }
+
+    public static Path getRoot() {
+        return Paths.get(System.getProperty("user.home")).resolve(".cluino/build-cache");
+    }
+
+    /**
+     * @param key see {@link BuildFingerprint#computeCacheKey}
+     */
+    public static Path getEntry(String fqbn, String key) {
+        return getRoot().resolve(ArduinoBuilder.toDirName(fqbn) + "-" + key);
+    }
+
+    /**
+     * Marks the entry as used now. Called when a build starts using it, while it holds the lock
+     * of the entry.
+     */
+    public static void touch(Path entry) throws IOException {
+        Files.createDirectories(entry);
+        Path marker = entry.resolve(LAST_USED);
+        if(!Files.exists(marker))
+            Files.createFile(marker);
+        Files.setLastModifiedTime(marker, FileTime.fromMillis(System.currentTimeMillis()));
+    }
+
+    /**
+     * Removes the least recently used entries until the cache is at most maxBytes large.
+     * Entries that are used by a running build are never removed. Only the contents of an entry
+     * are deleted, while holding its lock. The folder and its lock file stay, because deleting a
+     * lock file that another process just opened would let two builds hold the lock.
+     */
+    @SuppressWarnings("try") // the lock on the cache root is only held, never used
+    public static void evict(long maxBytes) throws IOException, InterruptedException {
+        Path root = getRoot();
+        if(!Files.isDirectory(root))
+            return;
+
+        try(BuildLock rootLock = BuildLock.acquire(root, () -> {})) {
+            List<Path> entries = new ArrayList<>();
+            try(DirectoryStream<Path> stream = Files.newDirectoryStream(root, Files::isDirectory)) {
+                stream.forEach(entries::add);
+            }
+            entries.sort(Comparator.comparingLong(SharedBuildCache::lastUsed));
+
+            long total = 0;
+            for(Path entry : entries)
+                total += size(entry);
+
+            for(Path entry : entries) {
+                if(total <= maxBytes)
+                    break;
+                try(BuildLock entryLock = BuildLock.tryAcquire(entry)) {
+                    if(entryLock == null)
+                        continue;
+                    long size = size(entry);
+                    deleteContents(entry);
+                    total -= size;
+                }
+            }
+        }
+    }
+
+    private static long lastUsed(Path entry) {
+        try {
+            Path marker = entry.resolve(LAST_USED);
+            return Files.getLastModifiedTime(Files.exists(marker) ? marker : entry).toMillis();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static long size(Path dir) throws IOException {
+        AtomicLong size = new AtomicLong();
+        try(Stream<Path> stream = Files.walk(dir)) {
+            stream.filter(Files::isRegularFile).forEach(file -> {
+                try {
+                    size.addAndGet(Files.size(file));
+                } catch (IOException ignored) {
+                    // removed while counting
+                }
+            });
+        }
+        return size.get();
+    }
+
+    /**
+     * Deletes everything in the entry except the lock file, which is still held.
+     */
+    private static void deleteContents(Path entry) throws IOException {
+        Files.walkFileTree(entry, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                if(!file.getParent().equals(entry) || !file.getFileName().toString().equals(BuildLock.FILE_NAME))
+                    Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                if(!dir.equals(entry))
+                    Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -0,0 +1,284 @@
+package it.sijmen.cluino.ext;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Uploads a flash image to a board with an STK500 version 1 bootloader, like the optiboot
+ * bootloader of the arduino uno, without running avrdude.
+ *
+ * Every page is sent after the answer to the previous one was read: the bootloader cannot buffer
+ * more than a few bytes while it writes a page. Every written page is read back and verified.
+ */
+public class Stk500Uploader {
+
+    private static final byte STK_OK = 0x10, STK_INSYNC = 0x14, CRC_EOP = 0x20;
+    private static final byte GET_SYNC = 0x30, GET_PARAMETER = 0x41, ENTER_PROGMODE = 0x50, LEAVE_PROGMODE = 0x51,
+            LOAD_ADDRESS = 0x55, PROG_PAGE = 0x64, READ_PAGE = 0x74, READ_SIGN = 0x75;
+    private static final byte PARAM_SW_MAJOR = (byte) 0x81, PARAM_SW_MINOR = (byte) 0x82;
+    private static final byte MEMORY_FLASH = 'F';
+
+    private static final int SYNC_ATTEMPTS = 10;
+    private static final long SYNC_TIMEOUT_MILLIS = 200, ANSWER_TIMEOUT_MILLIS = 1000;
+    private static final long RESET_PULSE_MILLIS = 250, BOOT_DELAY_MILLIS = 50;
+
+    /**
+     * Receives what the uploader is doing.
+     */
+    public interface Listener {
+        void info(String message);
+
+        /**
+         * @param phase "Writing" or "Verifying"
+         */
+        void progress(String phase, int donePages, int totalPages);
+    }
+
+    private final SerialTransport transport;
+    private final Listener listener;
+    private int pageSize = 128;
+
+    public Stk500Uploader(SerialTransport transport, Listener listener) {
+        this.transport = transport;
+        this.listener = listener;
+    }
+
+    /**
+     * Resets the board into the bootloader and reads the signature of the device.
+     * @return the signature of the device
+     */
+    public byte[] connect() throws IOException, InterruptedException {
+        resetAndSync();
+        byte[] signature = readSignature();
+        pageSize = pageSize(signature);
+        listener.info(String.format("Device signature 0x%s, page size %d bytes",
+                FlashImageStore.toHex(signature), pageSize));
+        return signature;
+    }
+
+    /**
+     * Writes and verifies the pages of the image that differ from the previous flash contents.
+     * Must be called after {@link #connect()}.
+     * @param previous the flash contents before the upload, or null to write every page.
+     * @return the number of pages written
+     */
+    public int write(byte[] image, byte[] previous) throws IOException, InterruptedException {
+        List<Integer> pages = new ArrayList<>();
+        for(int address = 0; address < image.length; address += pageSize)
+            if(previous == null || isChanged(image, previous, address, pageSize))
+                pages.add(address);
+        if(pages.isEmpty())
+            return 0;
+
+        command(ENTER_PROGMODE);
+        try {
+            writePages(image, pages);
+            verifyPages(image, pages);
+        } finally {
+            command(LEAVE_PROGMODE);
+        }
+        return pages.size();
+    }
+
+    /**
+     * A page counts as changed when it differs from the previous contents, or when the previous
+     * contents do not cover the whole page. The unused part of a page is written as 0xFF.
+     */
+    private static boolean isChanged(byte[] image, byte[] previous, int address, int pageSize) {
+        if(address + pageSize > previous.length)
+            return true;
+        for(int i = address; i < address + pageSize; i++)
+            if((i < image.length ? image[i] : (byte) 0xFF) != previous[i])
+                return true;
+        return false;
+    }
+
+    /**
+     * Reads the page at the address back from the device and compares it with the flash contents.
+     * Must be called after {@link #connect()}.
+     */
+    public boolean matchesPage(byte[] flash, int address) throws IOException {
+        if(address < 0 || address + pageSize > flash.length)
+            return false;
+        byte[] page = new byte[pageSize + 2];
+        readPage(address, page);
+        for(int i = 0; i < pageSize; i++)
+            if(page[1 + i] != flash[address + i])
+                return false;
+        return true;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * Pulses DTR and RTS, which resets boards with an auto reset circuit like the uno.
+     */
+    public void reset() throws IOException, InterruptedException {
+        transport.setDtrRts(false);
+        Thread.sleep(RESET_PULSE_MILLIS);
+        transport.setDtrRts(true);
+    }
+
+    /**
+     * Sends a sync command. The bootloader restarts its timeout on every command it receives.
+     */
+    public void keepAlive() throws IOException {
+        command(GET_SYNC);
+    }
+
+    /**
+     * Tells the bootloader to start the program, instead of waiting for its timeout.
+     */
+    public void leave() throws IOException {
+        command(LEAVE_PROGMODE);
+    }
+
+    /**
+     * Pulses DTR and RTS to reset the board into the bootloader and waits until it answers.
+     */
+    public void resetAndSync() throws IOException, InterruptedException {
+        reset();
+        Thread.sleep(BOOT_DELAY_MILLIS);
+        transport.flushInput();
+
+        byte[] answer = new byte[2];
+        for(int attempt = 1; attempt <= SYNC_ATTEMPTS; attempt++) {
+            checkInterrupted();
+            transport.write(new byte[]{GET_SYNC, CRC_EOP}, 0, 2);
+            try {
+                transport.read(answer, 0, 2, SYNC_TIMEOUT_MILLIS);
+                if(answer[0] == STK_INSYNC && answer[1] == STK_OK) {
+                    transport.flushInput();
+                    listener.info("Bootloader version " + readParameter(PARAM_SW_MAJOR) + "." + readParameter(PARAM_SW_MINOR));
+                    return;
+                }
+            } catch (IOException e) {
+                // no answer yet, the bootloader may still be starting
+            }
+            transport.flushInput();
+        }
+        throw new IOException("The bootloader does not answer. Check the port, the baud rate and the board.");
+    }
+
+    public byte[] readSignature() throws IOException {
+        transport.write(new byte[]{READ_SIGN, CRC_EOP}, 0, 2);
+        byte[] answer = new byte[5];
+        transport.read(answer, 0, 5, ANSWER_TIMEOUT_MILLIS);
+        if(answer[0] != STK_INSYNC || answer[4] != STK_OK)
+            throw new IOException("Lost sync while reading the signature");
+        return Arrays.copyOfRange(answer, 1, 4);
+    }
+
+    private int readParameter(byte parameter) throws IOException {
+        transport.write(new byte[]{GET_PARAMETER, parameter, CRC_EOP}, 0, 3);
+        byte[] answer = new byte[3];
+        transport.read(answer, 0, 3, ANSWER_TIMEOUT_MILLIS);
+        if(answer[0] != STK_INSYNC || answer[2] != STK_OK)
+            throw new IOException("Lost sync while reading a parameter");
+        return answer[1] & 0xFF;
+    }
+
+    private void command(byte command) throws IOException {
+        transport.write(new byte[]{command, CRC_EOP}, 0, 2);
+        expectOk();
+    }
+
+    /**
+     * Writes the pages. Every page needs a load address and a program page command, each answered
+     * with INSYNC OK.
+     */
+    private void writePages(byte[] image, List<Integer> pages) throws IOException, InterruptedException {
+        for(int i = 0; i < pages.size(); i++) {
+            checkInterrupted();
+            transport.write(writeCommand(image, pages.get(i), pageSize), 0, pageSize + 9);
+            expectOk();
+            expectOk();
+            listener.progress("Writing", i + 1, pages.size());
+        }
+    }
+
+    private static byte[] writeCommand(byte[] image, int address, int pageSize) {
+        byte[] out = new byte[pageSize + 9];
+        int word = address / 2;
+        out[0] = LOAD_ADDRESS;
+        out[1] = (byte) word;
+        out[2] = (byte) (word >> 8);
+        out[3] = CRC_EOP;
+        out[4] = PROG_PAGE;
+        out[5] = (byte) (pageSize >> 8);
+        out[6] = (byte) pageSize;
+        out[7] = MEMORY_FLASH;
+        Arrays.fill(out, 8, 8 + pageSize, (byte) 0xFF);
+        System.arraycopy(image, address, out, 8, Math.min(pageSize, image.length - address));
+        out[8 + pageSize] = CRC_EOP;
+        return out;
+    }
+
+    private void verifyPages(byte[] image, List<Integer> pages) throws IOException, InterruptedException {
+        byte[] page = new byte[pageSize + 2];
+        for(int i = 0; i < pages.size(); i++) {
+            checkInterrupted();
+            int address = pages.get(i);
+            verifyPage(image, address, page);
+            listener.progress("Verifying", i + 1, pages.size());
+        }
+    }
+
+    private void verifyPage(byte[] image, int address, byte[] page) throws IOException {
+        readPage(address, page);
+        int length = Math.min(pageSize, image.length - address);
+        for(int i = 0; i < length; i++)
+            if(page[1 + i] != image[address + i])
+                throw new IOException(String.format("Verification failed at 0x%04x: expected 0x%02x, read 0x%02x",
+                        address + i, image[address + i], page[1 + i]));
+    }
+
+    /**
+     * Reads the flash page at the address into page[1] to page[pageSize].
+     */
+    private void readPage(int address, byte[] page) throws IOException {
+        int word = address / 2;
+        transport.write(new byte[]{LOAD_ADDRESS, (byte) word, (byte) (word >> 8), CRC_EOP}, 0, 4);
+        expectOk();
+        transport.write(new byte[]{READ_PAGE, (byte) (pageSize >> 8), (byte) pageSize, MEMORY_FLASH, CRC_EOP}, 0, 5);
+        transport.read(page, 0, pageSize + 2, ANSWER_TIMEOUT_MILLIS);
+        if(page[0] != STK_INSYNC || page[pageSize + 1] != STK_OK)
+            throw new IOException(String.format("Lost sync while reading page 0x%04x", address));
+    }
+
+    private void expectOk() throws IOException {
+        byte[] answer = new byte[2];
+        transport.read(answer, 0, 2, ANSWER_TIMEOUT_MILLIS);
+        if(answer[0] != STK_INSYNC || answer[1] != STK_OK)
+            throw new IOException(String.format("Lost sync: the device answered 0x%02x 0x%02x", answer[0], answer[1]));
+    }
+
+    private static void checkInterrupted() throws InterruptedException {
+        if(Thread.currentThread().isInterrupted())
+            throw new InterruptedException();
+    }
+
+    /**
+     * Flash page size of the devices with an STK500v1 bootloader, 128 bytes when unknown.
+     */
+    static int pageSize(byte[] signature) {
+        int id = (signature[0] & 0xFF) << 16 | (signature[1] & 0xFF) << 8 | signature[2] & 0xFF;
+        switch (id) {
+            case 0x1e930a: // atmega88
+            case 0x1e930f: // atmega88p
+            case 0x1e9307: // atmega8
+                return 64;
+            case 0x1e9609: // atmega644, atmega644a
+            case 0x1e960a: // atmega644p, atmega644pa
+            case 0x1e9705: // atmega1284p
+            case 0x1e9703: // atmega1280
+                return 256;
+            default: // atmega168, atmega328, atmega328p
+                return 128;
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package it.sijmen.cluino.ext;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * The platforms and tools installed on this machine: the hardware and tools folders of an
+ * installed arduino ide and of the boards manager packages folder. Scanning walks these
+ * folders, so the index is stored on disk and only scanned again when its stamp, made of the
+ * modification times of the folders in which platforms and tool versions are installed, changes.
+ */
+public class ToolchainIndex {
+
+    private static final int VERSION = 1;
+    private static final String KEY_VERSION = "version", KEY_STAMP = "stamp", KEY_AVRDUDE = "avrdude.config";
+    private static final String PREFIX_HARDWARE = "hardware.", PREFIX_TOOLS = "tools.",
+            PREFIX_PLATFORM = "platform.", PREFIX_TOOL = "tool.";
+
+    private final String stamp;
+    private final List<String> hardwares;
+    private final List<String> tools;
+    private final Map<String, String> platformDirs;
+    private final Map<String, String> toolProperties;
+    private final String avrdudeConfig;
+
+    private ToolchainIndex(String stamp, List<String> hardwares, List<String> tools, Map<String, String> platformDirs,
+                           Map<String, String> toolProperties, String avrdudeConfig) {
+        this.stamp = stamp;
+        this.hardwares = Collections.unmodifiableList(hardwares);
+        this.tools = Collections.unmodifiableList(tools);
+        this.platformDirs = Collections.unmodifiableMap(platformDirs);
+        this.toolProperties = Collections.unmodifiableMap(toolProperties);
+        this.avrdudeConfig = avrdudeConfig;
+    }
+
+    /**
+     * An index without any platforms or tools, used when scanning failed.
+     */
+    public static ToolchainIndex empty() {
+        return new ToolchainIndex("", new ArrayList<>(), new ArrayList<>(), new LinkedHashMap<>(),
+                new LinkedHashMap<>(), "");
+    }
+
+    /**
+     * The hardware folder of an arduino ide installed by the package manager of the system.
+     */
+    public static Path getIdeHardwareDir() {
+        return isWindows() ? null : Paths.get("/usr/share/arduino/hardware");
+    }
+
+    /**
+     * The tools folder of an arduino ide installed by the package manager of the system.
+     */
+    public static Path getIdeToolsDir() {
+        return isWindows() ? null : Paths.get("/usr/share/arduino/tools-builder");
+    }
+
+    /**
+     * The packages folder of the boards manager.
+     */
+    public static Path getPackagesDir() {
+        String localAppData = System.getenv("LOCALAPPDATA");
+        if(isWindows() && localAppData != null)
+            return Paths.get(localAppData, "Arduino15", "packages");
+        return Paths.get(System.getProperty("user.home")).resolve(".arduino15/packages");
+    }
+
+    /**
+     * Hashes the modification times of all folders that change when a platform or a tool version is
+     * installed or removed: the roots, their vendors, and the hardware and tools folders of the vendors.
+     */
+    public static String computeStamp() throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        for(Path root : roots()) {
+            update(digest, root);
+            for(Path vendor : ArduinoPackages.list(root)) {
+                update(digest, vendor);
+                for(Path kind : ArduinoPackages.list(vendor)) {
+                    update(digest, kind);
+                    for(Path item : ArduinoPackages.list(kind))
+                        update(digest, item);
+                }
+            }
+        }
+        StringBuilder out = new StringBuilder();
+        for(byte b : digest.digest())
+            out.append(String.format("%02x", b));
+        return out.toString();
+    }
+
+    private static void update(MessageDigest digest, Path dir) throws IOException {
+        long modified = Files.isDirectory(dir) ? Files.getLastModifiedTime(dir).toMillis() : 0;
+        digest.update((dir + "=" + modified + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static List<Path> roots() {
+        List<Path> out = new ArrayList<>();
+        if(getIdeHardwareDir() != null)
+            out.add(getIdeHardwareDir());
+        if(getIdeToolsDir() != null)
+            out.add(getIdeToolsDir());
+        out.add(getPackagesDir());
+        return out;
+    }
+
+    /**
+     * Walks all hardware and tools folders.
+     */
+    public static ToolchainIndex scan() throws IOException {
+        String stamp = computeStamp();
+
+        List<String> hardwares = new ArrayList<>(), tools = new ArrayList<>();
+        Path ideHardware = getIdeHardwareDir(), ideTools = getIdeToolsDir(), packages = getPackagesDir();
+        if(ideHardware != null && Files.isDirectory(ideHardware))
+            hardwares.add(ideHardware.toString());
+        if(ideTools != null && Files.isDirectory(ideTools))
+            tools.add(ideTools.toString());
+        if(Files.isDirectory(packages)) {
+            hardwares.add(packages.toAbsolutePath().toString());
+            tools.add(packages.toAbsolutePath().toString());
+        }
+
+        Map<String, String> platformDirs = new LinkedHashMap<>();
+        ArduinoPackages.findPlatforms(hardwares).forEach((platform, dir) -> platformDirs.put(platform, dir.toString()));
+
+        Map<String, String> toolProperties = ArduinoPackages.findToolProperties(tools);
+        return new ToolchainIndex(stamp, hardwares, tools, platformDirs, toolProperties,
+                findAvrdudeConfig(hardwares, toolProperties));
+    }
+
+    private static String findAvrdudeConfig(List<String> hardwares, Map<String, String> toolProperties) {
+        String avrdude = toolProperties.get("runtime.tools.avrdude.path");
+        if(avrdude != null && Files.isRegularFile(Paths.get(avrdude, "etc", "avrdude.conf")))
+            return Paths.get(avrdude, "etc", "avrdude.conf").toString();
+        for(String hardware : hardwares) {
+            Path conf = Paths.get(hardware, "tools", "avr", "etc", "avrdude.conf");
+            if(Files.isRegularFile(conf))
+                return conf.toString();
+        }
+        return "";
+    }
+
+    /**
+     * @return the stored index, or null when there is none or it was stored by another version.
+     */
+    public static ToolchainIndex load(Path file) throws IOException {
+        if(!Files.isRegularFile(file))
+            return null;
+        Properties props = new Properties();
+        try(InputStream in = Files.newInputStream(file)) {
+            props.load(in);
+        }
+        if(!String.valueOf(VERSION).equals(props.getProperty(KEY_VERSION)))
+            return null;
+
+        List<String> hardwares = new ArrayList<>(), tools = new ArrayList<>();
+        for(int i = 0; props.containsKey(PREFIX_HARDWARE + i); i++)
+            hardwares.add(props.getProperty(PREFIX_HARDWARE + i));
+        for(int i = 0; props.containsKey(PREFIX_TOOLS + i); i++)
+            tools.add(props.getProperty(PREFIX_TOOLS + i));
+
+        Map<String, String> platformDirs = new LinkedHashMap<>(), toolProperties = new LinkedHashMap<>();
+        for(String key : props.stringPropertyNames()) {
+            if(key.startsWith(PREFIX_PLATFORM))
+                platformDirs.put(key.substring(PREFIX_PLATFORM.length()), props.getProperty(key));
+            else if(key.startsWith(PREFIX_TOOL))
+                toolProperties.put(key.substring(PREFIX_TOOL.length()), props.getProperty(key));
+        }
+        return new ToolchainIndex(props.getProperty(KEY_STAMP, ""), hardwares, tools, platformDirs,
+                toolProperties, props.getProperty(KEY_AVRDUDE, ""));
+    }
+
+    public void save(Path file) throws IOException {
+        Properties props = new Properties();
+        props.setProperty(KEY_VERSION, String.valueOf(VERSION));
+        props.setProperty(KEY_STAMP, stamp);
+        props.setProperty(KEY_AVRDUDE, avrdudeConfig);
+        for(int i = 0; i < hardwares.size(); i++)
+            props.setProperty(PREFIX_HARDWARE + i, hardwares.get(i));
+        for(int i = 0; i < tools.size(); i++)
+            props.setProperty(PREFIX_TOOLS + i, tools.get(i));
+        platformDirs.forEach((key, value) -> props.setProperty(PREFIX_PLATFORM + key, value));
+        toolProperties.forEach((key, value) -> props.setProperty(PREFIX_TOOL + key, value));
+
+        Files.createDirectories(file.getParent());
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try(OutputStream out = Files.newOutputStream(temp)) {
+            props.store(out, "CLuino toolchain index");
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    public String getStamp() {
+        return stamp;
+    }
+
+    /**
+     * Hardware folders that exist, to pass to arduino-builder.
+     */
+    public List<String> getHardwares() {
+        return hardwares;
+    }
+
+    /**
+     * Tools folders that exist, to pass to arduino-builder.
+     */
+    public List<String> getTools() {
+        return tools;
+    }
+
+    /**
+     * @return the folder of the installed platform, e.g. of arduino:avr, or null when it is not installed.
+     */
+    public String getPlatformDir(String vendorAndArch) {
+        return platformDirs.get(vendorAndArch);
+    }
+
+    /**
+     * @return all installed platforms as vendor:arch, with their folder.
+     */
+    public Map<String, String> getPlatformDirs() {
+        return platformDirs;
+    }
+
+    /**
+     * @return the folder of the newest installed version of the tool, or null when it is not installed.
+     */
+    public String getToolPath(String tool) {
+        return toolProperties.get("runtime.tools." + tool + ".path");
+    }
+
+    /**
+     * @return the avrdude.conf of the newest installed avrdude, or "" when there is none.
+     */
+    public String getAvrdudeConfig() {
+        return avrdudeConfig;
+    }
+
+    private static boolean isWindows() {
+        return System.getProperty("os.name").toLowerCase().startsWith("win");
+    }
+}
@@ -6,6 +6,7 @@ import com.intellij.execution.configurations.RunConfiguration;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.util.IconLoader;
 import it.sijmen.cluino.runconfigurations.compile.CompileRunConfiguration;
+import it.sijmen.cluino.runconfigurations.upload.BuildAndFlashRunConfiguration;
 import it.sijmen.cluino.runconfigurations.upload.UploadRunConfiguration;
 import org.jetbrains.annotations.NotNull;
 
@@ -68,6 +69,24 @@ public class ArduinoRunConfigurationType implements ConfigurationType {
                         return "Upload";
                     }
 
+                    @Override
+                    public Icon getIcon() {
+                        return IconLoader.getIcon("/icons/arduino-upload.png");
+                    }
+                },
+                new ConfigurationFactory(this) {
+
+                    @Override
+                    @NotNull
+                    public RunConfiguration createTemplateConfiguration(@NotNull Project project) {
+                        return new BuildAndFlashRunConfiguration(project, this, "Build and upload to device");
+                    }
+
+                    @Override
+                    public String getName() {
+                        return "Build & Flash";
+                    }
+
                     @Override
                     public Icon getIcon() {
                         return IconLoader.getIcon("/icons/arduino-upload.png");
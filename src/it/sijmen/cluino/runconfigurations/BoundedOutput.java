@@ -0,0 +1,112 @@
+package it.sijmen.cluino.runconfigurations;
+
+import com.intellij.execution.process.ProcessOutputTypes;
+import com.intellij.openapi.util.Key;
+import it.sijmen.cluino.ext.BuildTimer;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.function.BiConsumer;
+import java.util.regex.Pattern;
+
+/**
+ * Keeps large build output out of the console. The complete output is written to a log file,
+ * only the most recent lines are kept in memory. Compiler commands are replaced by a single line
+ * that counts them, errors and warnings are always shown in full and highlighted.
+ */
+public class BoundedOutput implements TaskProcessHandler.OutputFilter, Closeable {
+
+    /**
+     * A gcc error or warning: file:line:column: error: message, the column is optional.
+     */
+    private static final Pattern DIAGNOSTIC = Pattern.compile(".+?:\\d+(:\\d+)?: (fatal error|error|warning): ");
+
+    private final Path logFile;
+    private final Writer log;
+    private final int capacity;
+    private final Deque<String> recent;
+    private final StringBuilder pending = new StringBuilder();
+
+    private int collapsed;
+    private BiConsumer<String, Key> lastShow;
+
+    /**
+     * @param capacity the number of recent lines kept in memory
+     */
+    public BoundedOutput(Path logFile, int capacity) throws IOException {
+        this.logFile = logFile;
+        this.log = new BufferedWriter(Files.newBufferedWriter(logFile, StandardCharsets.UTF_8));
+        this.capacity = capacity;
+        this.recent = new ArrayDeque<>(capacity);
+    }
+
+    @Override
+    public synchronized void filter(String text, Key outputType, BiConsumer<String, Key> show) {
+        lastShow = show;
+        pending.append(text);
+        int start = 0;
+        int newline;
+        while((newline = pending.indexOf("\n", start)) >= 0) {
+            onLine(pending.substring(start, newline + 1), outputType, show);
+            start = newline + 1;
+        }
+        pending.delete(0, start);
+    }
+
+    private void onLine(String line, Key outputType, BiConsumer<String, Key> show) {
+        try {
+            log.write(line);
+        } catch (IOException ignored) {
+            // the console still shows errors and warnings
+        }
+
+        if(recent.size() == capacity)
+            recent.removeFirst();
+        recent.addLast(line);
+
+        String text = line.substring(PrefixingProcessListener.prefixLength(line));
+        if(BuildTimer.isInvocation(text)) {
+            collapsed++;
+            return;
+        }
+        showCollapsed(show);
+        show.accept(line, DIAGNOSTIC.matcher(text).lookingAt() ? ProcessOutputTypes.STDERR : outputType);
+    }
+
+    private void showCollapsed(BiConsumer<String, Key> show) {
+        if(collapsed == 0)
+            return;
+        show.accept("  ... " + collapsed + (collapsed == 1 ? " compiler command" : " compiler commands")
+                + " (see " + logFile.getFileName() + ")\n", ProcessOutputTypes.SYSTEM);
+        collapsed = 0;
+    }
+
+    /**
+     * Shows the lines kept in memory. Used to give some context when a build failed.
+     */
+    public synchronized void showRecent(BiConsumer<String, Key> show, int lines) {
+        show.accept("Last lines of the build output:\n", ProcessOutputTypes.SYSTEM);
+        recent.stream().skip(Math.max(0, recent.size() - lines)).forEach(l -> show.accept(l, ProcessOutputTypes.STDOUT));
+    }
+
+    public Path getLogFile() {
+        return logFile;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if(pending.length() > 0 && lastShow != null)
+            onLine(pending.append('\n').toString(), ProcessOutputTypes.STDOUT, lastShow);
+        pending.setLength(0);
+        if(lastShow != null)
+            showCollapsed(lastShow);
+        log.close();
+    }
+}
@@ -0,0 +1,73 @@
+package it.sijmen.cluino.runconfigurations;
+
+import com.intellij.execution.process.ProcessAdapter;
+import com.intellij.execution.process.ProcessEvent;
+import com.intellij.openapi.util.Key;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Forwards the output of a child process to a task, one complete line at a time and with a prefix
+ * in front of every line. Used when the output of multiple processes ends up in one console.
+ */
+public class PrefixingProcessListener extends ProcessAdapter {
+
+    private final TaskProcessHandler target;
+    private final String prefix;
+    private final Map<Key, StringBuilder> pending = new HashMap<>();
+
+    public PrefixingProcessListener(TaskProcessHandler target, String prefix) {
+        this.target = target;
+        this.prefix = prefix;
+    }
+
+    @Override
+    public synchronized void onTextAvailable(ProcessEvent event, Key outputType) {
+        StringBuilder buffer = pending.computeIfAbsent(outputType, k -> new StringBuilder());
+        buffer.append(event.getText());
+
+        int start = 0;
+        int newline;
+        while((newline = buffer.indexOf("\n", start)) >= 0) {
+            printLine(buffer.substring(start, newline), outputType);
+            start = newline + 1;
+        }
+        buffer.delete(0, start);
+    }
+
+    /**
+     * Shows one complete line of output, without the line separator.
+     */
+    protected void printLine(String line, Key outputType) {
+        target.println(prefix + line, outputType);
+    }
+
+    protected TaskProcessHandler getTarget() {
+        return target;
+    }
+
+    protected String getPrefix() {
+        return prefix;
+    }
+
+    /**
+     * @return the length of the [NAME] prefix in front of a line of output of a build for multiple
+     * boards, 0 when the line has none.
+     */
+    public static int prefixLength(String line) {
+        if(!line.startsWith("["))
+            return 0;
+        int end = line.indexOf("] ");
+        return end < 0 ? 0 : end + 2;
+    }
+
+    @Override
+    public synchronized void processTerminated(ProcessEvent event) {
+        pending.forEach((outputType, buffer) -> {
+            if(buffer.length() > 0)
+                printLine(buffer.toString(), outputType);
+        });
+        pending.clear();
+    }
+}
@@ -0,0 +1,158 @@
+package it.sijmen.cluino.runconfigurations;
+
+import com.intellij.execution.ExecutionException;
+import com.intellij.execution.configurations.GeneralCommandLine;
+import com.intellij.execution.process.OSProcessHandler;
+import com.intellij.execution.process.ProcessAdapter;
+import com.intellij.execution.process.ProcessEvent;
+import com.intellij.execution.process.ProcessHandler;
+import com.intellij.execution.process.ProcessListener;
+import com.intellij.execution.process.ProcessOutputTypes;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.util.Key;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A process handler that runs java code instead of an external process. The task is started
+ * on a pooled thread as soon as the console is attached and everything it prints ends up in
+ * the run console, just like the output of a normal process.
+ */
+public abstract class TaskProcessHandler extends ProcessHandler {
+
+    private final AtomicBoolean started = new AtomicBoolean(false);
+    private final AtomicBoolean terminated = new AtomicBoolean(false);
+    private volatile Future<?> future;
+    private final List<ProcessHandler> children = new CopyOnWriteArrayList<>();
+    private volatile OutputFilter outputFilter;
+
+    /**
+     * Decides which output of a task is shown in the console. Messages of the task itself
+     * (system output) are always shown and do not pass the filter.
+     */
+    @FunctionalInterface
+    public interface OutputFilter {
+        /**
+         * @param show shows text in the console
+         */
+        void filter(String text, Key outputType, BiConsumer<String, Key> show);
+    }
+
+    public TaskProcessHandler() {
+        addProcessListener(new ProcessAdapter() {
+            @Override
+            public void startNotified(ProcessEvent event) {
+                future = ApplicationManager.getApplication().executeOnPooledThread(TaskProcessHandler.this::runTask);
+            }
+        });
+    }
+
+    /**
+     * Runs the task. Called on a pooled thread.
+     * @return the exit code shown in the console. Zero means success.
+     */
+    protected abstract int execute() throws Exception;
+
+    private void runTask() {
+        started.set(true);
+        int exitCode;
+        try {
+            exitCode = execute();
+        } catch (InterruptedException e) {
+            println("Cancelled", ProcessOutputTypes.SYSTEM);
+            exitCode = 1;
+        } catch (Exception e) {
+            println(e.getMessage() == null ? e.toString() : e.getMessage(), ProcessOutputTypes.STDERR);
+            exitCode = 1;
+        }
+        terminate(exitCode);
+    }
+
+    private void terminate(int exitCode) {
+        if(terminated.compareAndSet(false, true))
+            notifyProcessTerminated(exitCode);
+    }
+
+    /**
+     * Runs an external process as part of this task. Its output is forwarded to this console
+     * with the prefix in front of every line. The process is killed when this task is stopped.
+     * @param listeners extra listeners that see the output of the process
+     * @return the exit code of the process
+     */
+    public int runProcess(GeneralCommandLine cmd, String prefix, ProcessListener... listeners)
+            throws ExecutionException, InterruptedException {
+        return runProcess(cmd, new PrefixingProcessListener(this, prefix), listeners);
+    }
+
+    /**
+     * Runs an external process as part of this task, like {@link #runProcess(GeneralCommandLine, String, ProcessListener...)}.
+     * @param output shows the output of the process in this console
+     */
+    public int runProcess(GeneralCommandLine cmd, PrefixingProcessListener output, ProcessListener... listeners)
+            throws ExecutionException, InterruptedException {
+        OSProcessHandler handler = new OSProcessHandler(cmd);
+        handler.addProcessListener(output);
+        for(ProcessListener listener : listeners)
+            handler.addProcessListener(listener);
+        children.add(handler);
+        try {
+            if(isProcessTerminating() || isProcessTerminated())
+                throw new InterruptedException();
+            handler.startNotify();
+            handler.waitFor();
+        } finally {
+            children.remove(handler);
+        }
+        if(Thread.interrupted())
+            throw new InterruptedException();
+
+        Integer exitCode = handler.getExitCode();
+        return exitCode == null ? -1 : exitCode;
+    }
+
+    public void print(String text, Key outputType) {
+        OutputFilter filter = outputFilter;
+        if(filter == null || outputType == ProcessOutputTypes.SYSTEM)
+            notifyTextAvailable(text, outputType);
+        else
+            filter.filter(text, outputType, this::notifyTextAvailable);
+    }
+
+    public void println(String text, Key outputType) {
+        print(text + "\n", outputType);
+    }
+
+    public void setOutputFilter(@Nullable OutputFilter outputFilter) {
+        this.outputFilter = outputFilter;
+    }
+
+    @Override
+    protected void destroyProcessImpl() {
+        children.forEach(ProcessHandler::destroyProcess);
+        Future<?> running = future;
+        if(running == null || running.cancel(true) && !started.get())
+            terminate(1);
+    }
+
+    @Override
+    protected void detachProcessImpl() {
+        notifyProcessDetached();
+    }
+
+    @Override
+    public boolean detachIsDefault() {
+        return false;
+    }
+
+    @Nullable
+    @Override
+    public OutputStream getProcessInput() {
+        return null;
+    }
+}
@@ -0,0 +1,141 @@
+package it.sijmen.cluino.runconfigurations.compile;
+
+import com.intellij.execution.ExecutionException;
+import com.intellij.execution.process.ProcessAdapter;
+import com.intellij.execution.process.ProcessEvent;
+import com.intellij.execution.process.ProcessOutputTypes;
+import com.intellij.openapi.components.ServiceManager;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Key;
+import com.intellij.openapi.util.Pair;
+import it.sijmen.cluino.runconfigurations.TaskProcessHandler;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Makes sure identical builds of a project do not run twice at the same time. A build that is
+ * requested while the same build (same command line and sources) is running does not start a new
+ * process, but shows the output of the running build and gets its result.
+ */
+class BuildCoordinator {
+
+    private static final int HISTORY_SIZE = 5000;
+
+    private final Map<String, SharedBuild> running = new ConcurrentHashMap<>();
+
+    @FunctionalInterface
+    interface Build {
+        int run() throws IOException, ExecutionException, InterruptedException;
+    }
+
+    static BuildCoordinator getInstance(Project project) {
+        return ServiceManager.getService(project, BuildCoordinator.class);
+    }
+
+    /**
+     * Runs the build, or waits for the identical build that is already running. When that build
+     * is cancelled, this build runs after all.
+     * @param key identifies identical builds
+     * @return the exit code of the build
+     */
+    int run(String key, TaskProcessHandler console, String prefix, Build build)
+            throws IOException, ExecutionException, InterruptedException {
+        while(true) {
+            SharedBuild shared = new SharedBuild(prefix);
+            SharedBuild existing = running.putIfAbsent(key, shared);
+            if(existing == null)
+                return own(key, shared, console, build);
+
+            console.println(prefix + "The same build is already running. Showing its output.", ProcessOutputTypes.SYSTEM);
+            existing.attach(console, prefix);
+            try {
+                return existing.result.get();
+            } catch (CancellationException e) {
+                console.println(prefix + "The running build was cancelled. Building again.", ProcessOutputTypes.SYSTEM);
+            } catch (java.util.concurrent.ExecutionException e) {
+                return 1;
+            } finally {
+                existing.detach(console);
+            }
+        }
+    }
+
+    /**
+     * Runs the build and hands its result to the waiting builds. The build is removed from the
+     * running builds first, so a waiting build that runs again after a cancel becomes the owner.
+     */
+    private int own(String key, SharedBuild shared, TaskProcessHandler console, Build build)
+            throws IOException, ExecutionException, InterruptedException {
+        console.addProcessListener(shared);
+        int exitCode = 1;
+        boolean cancelled = false;
+        try {
+            exitCode = build.run();
+            return exitCode;
+        } catch (InterruptedException e) {
+            cancelled = true;
+            throw e;
+        } finally {
+            running.remove(key, shared);
+            console.removeProcessListener(shared);
+            if(cancelled)
+                shared.result.cancel(false);
+            else
+                shared.result.complete(exitCode);
+        }
+    }
+
+    /**
+     * A running build. Copies its output to the consoles of the builds that wait for it.
+     */
+    private static class SharedBuild extends ProcessAdapter {
+        private final String prefix;
+        private final CompletableFuture<Integer> result = new CompletableFuture<>();
+        private final Deque<Pair<String, Key>> history = new ArrayDeque<>();
+        private final List<Pair<TaskProcessHandler, String>> attached = new ArrayList<>();
+        private boolean truncated;
+
+        private SharedBuild(String prefix) {
+            this.prefix = prefix;
+        }
+
+        /**
+         * Shows the output so far in the console and all output from now on.
+         */
+        private synchronized void attach(TaskProcessHandler console, String consolePrefix) {
+            if(truncated)
+                console.println(consolePrefix + "...", ProcessOutputTypes.SYSTEM);
+            for(Pair<String, Key> text : history)
+                console.print(consolePrefix + text.first, text.second);
+            attached.add(Pair.create(console, consolePrefix));
+        }
+
+        private synchronized void detach(TaskProcessHandler console) {
+            attached.removeIf(p -> p.first == console);
+        }
+
+        @Override
+        public synchronized void onTextAvailable(ProcessEvent event, Key outputType) {
+            String text = event.getText();
+            if(!text.startsWith(prefix))
+                return;
+            text = text.substring(prefix.length());
+
+            history.add(Pair.create(text, outputType));
+            if(history.size() > HISTORY_SIZE) {
+                history.removeFirst();
+                truncated = true;
+            }
+            for(Pair<TaskProcessHandler, String> console : attached)
+                console.first.print(console.second + text, outputType);
+        }
+    }
+}
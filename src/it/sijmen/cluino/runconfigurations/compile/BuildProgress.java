@@ -0,0 +1,77 @@
+package it.sijmen.cluino.runconfigurations.compile;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.progress.Task;
+import com.intellij.openapi.project.Project;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shows the progress of a build in the status bar. Stopping the progress stops the build.
+ */
+class BuildProgress {
+
+    private static final long UPDATE_MILLIS = 100;
+
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile double fraction = -1;
+    private volatile String step;
+
+    private BuildProgress() {
+    }
+
+    /**
+     * @param onCancel called when the user stops the progress
+     */
+    static BuildProgress start(@Nullable Project project, String title, Runnable onCancel) {
+        BuildProgress progress = new BuildProgress();
+        ApplicationManager.getApplication().invokeLater(() ->
+                ProgressManager.getInstance().run(new Task.Backgroundable(project, title, true) {
+                    @Override
+                    public void run(@NotNull ProgressIndicator indicator) {
+                        progress.show(indicator, onCancel);
+                    }
+                }));
+        return progress;
+    }
+
+    private void show(ProgressIndicator indicator, Runnable onCancel) {
+        indicator.setIndeterminate(true);
+        try {
+            while(!done.await(UPDATE_MILLIS, TimeUnit.MILLISECONDS)) {
+                if(indicator.isCanceled()) {
+                    onCancel.run();
+                    return;
+                }
+                double current = fraction;
+                if(current >= 0) {
+                    indicator.setIndeterminate(false);
+                    indicator.setFraction(current);
+                }
+                indicator.setText2(step);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @param percentage the part of the build that is done, from 0 to 100
+     */
+    void setPercentage(double percentage) {
+        fraction = Math.max(0, Math.min(1, percentage / 100));
+    }
+
+    void setStep(String step) {
+        this.step = step;
+    }
+
+    void finish() {
+        done.countDown();
+    }
+}
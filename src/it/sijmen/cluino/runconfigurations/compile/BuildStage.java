@@ -0,0 +1,64 @@
+package it.sijmen.cluino.runconfigurations.compile;
+
+import com.intellij.execution.ExecutionException;
+import it.sijmen.cluino.runconfigurations.TaskProcessHandler;
+
+import java.nio.file.Path;
+
+/**
+ * The build of a compile configuration as one stage of a larger task, for example a build that
+ * is followed by an upload. Only builds for a single board.
+ */
+public class BuildStage {
+
+    private final CompileJob job;
+
+    private BuildStage(CompileJob job) {
+        this.job = job;
+    }
+
+    /**
+     * Takes the settings of the configuration, see {@link CompileJob#prepare}.
+     */
+    public static BuildStage prepare(CompileRunConfiguration rc) throws ExecutionException {
+        if(!rc.getMatrixFqbns().isEmpty())
+            throw new ExecutionException("The compile configuration " + rc.getName() + " builds for multiple boards.");
+        if(rc.getProject().getBasePath() == null)
+            throw new ExecutionException("The project has no folder to build in.");
+        return new BuildStage(CompileJob.prepare(rc, rc.createBuilder(rc.getFqbn())));
+    }
+
+    /**
+     * @return the exit code of the build. Zero when it succeeded or was skipped.
+     */
+    public int run(TaskProcessHandler console, String prefix) throws Exception {
+        try {
+            return job.run(console, prefix);
+        } finally {
+            job.refreshOutput();
+        }
+    }
+
+    /**
+     * The hex file the build produces.
+     */
+    public Path getHexFile() {
+        return job.getHexFile();
+    }
+
+    public boolean isSkipped() {
+        return job.isSkipped();
+    }
+
+    /**
+     * @return whether the build found changes and started compiling, false while it still checks
+     * for changes or waits for another build.
+     */
+    public boolean isCompiling() {
+        return job.isCompiling();
+    }
+
+    public String getFqbn() {
+        return job.getFqbn();
+    }
+}
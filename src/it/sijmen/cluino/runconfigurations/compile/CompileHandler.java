@@ -0,0 +1,122 @@
+package it.sijmen.cluino.runconfigurations.compile;
+
+import com.intellij.execution.process.ProcessOutputTypes;
+import it.sijmen.cluino.runconfigurations.BoundedOutput;
+import it.sijmen.cluino.runconfigurations.TaskProcessHandler;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs compile jobs. A single job is shown in the console as is. Multiple jobs are built at
+ * the same time, at most one process per cpu core. Their output is shown in one console with
+ * the board in front of every line, followed by a summary of all builds.
+ *
+ * With a bounded console the console only shows a summary of the output, see {@link BoundedOutput}.
+ */
+class CompileHandler extends TaskProcessHandler {
+
+    private static final String LOG_FILE = "build.log";
+    private static final int RECENT_LINES = 500;
+    private static final int CONTEXT_LINES = 40;
+
+    private final List<CompileJob> jobs;
+    private final boolean boundedConsole;
+
+    /**
+     * @param boundedConsole write the full output to a log file and keep compiler commands out of the console
+     */
+    CompileHandler(List<CompileJob> jobs, boolean boundedConsole) {
+        this.jobs = jobs;
+        this.boundedConsole = boundedConsole;
+    }
+
+    @Override
+    protected int execute() throws Exception {
+        try {
+            return boundedConsole ? buildBounded() : buildAll();
+        } finally {
+            jobs.get(0).refreshOutput();
+        }
+    }
+
+    private int buildBounded() throws Exception {
+        Path logFile = jobs.get(0).getBuildDir().getParent().resolve(LOG_FILE);
+        Files.createDirectories(logFile.getParent());
+        println("The full build output is written to " + logFile, ProcessOutputTypes.SYSTEM);
+        int exitCode = 1;
+        try(BoundedOutput output = new BoundedOutput(logFile, RECENT_LINES)) {
+            setOutputFilter(output);
+            exitCode = buildAll();
+            if(exitCode != 0)
+                output.showRecent(this::notifyTextAvailable, CONTEXT_LINES);
+        } finally {
+            setOutputFilter(null);
+        }
+        return exitCode;
+    }
+
+    private int buildAll() throws Exception {
+        if(jobs.size() == 1)
+            return jobs.get(0).run(this, "");
+
+        int threads = Math.max(1, Math.min(jobs.size(), Runtime.getRuntime().availableProcessors()));
+        println("Building " + jobs.size() + " boards on " + threads + " threads.", ProcessOutputTypes.SYSTEM);
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Result>> futures = new ArrayList<>();
+            for(CompileJob job : jobs)
+                futures.add(pool.submit(() -> build(job)));
+
+            List<Result> results = new ArrayList<>();
+            for(Future<Result> future : futures)
+                results.add(future.get());
+
+            printSummary(results);
+            return results.stream().allMatch(r -> r.success) ? 0 : 1;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private Result build(CompileJob job) throws Exception {
+        long start = System.currentTimeMillis();
+        boolean success = job.run(this, "[" + job.getFqbn() + "] ") == 0;
+        return new Result(job, success, job.isSkipped(), System.currentTimeMillis() - start);
+    }
+
+    private void printSummary(List<Result> results) {
+        int width = "Board".length();
+        for(Result result : results)
+            width = Math.max(width, result.job.getFqbn().length());
+        String format = "%-" + width + "s  %-8s  %9s";
+
+        println("", ProcessOutputTypes.SYSTEM);
+        println(String.format(format, "Board", "Result", "Time"), ProcessOutputTypes.SYSTEM);
+        for(Result result : results)
+            println(String.format(format,
+                    result.job.getFqbn(),
+                    result.skipped ? "SKIPPED" : result.success ? "OK" : "FAILED",
+                    String.format("%.1f s", result.millis / 1000.0)
+            ), result.success ? ProcessOutputTypes.SYSTEM : ProcessOutputTypes.STDERR);
+    }
+
+    private static class Result {
+        private final CompileJob job;
+        private final boolean success, skipped;
+        private final long millis;
+
+        private Result(CompileJob job, boolean success, boolean skipped, long millis) {
+            this.job = job;
+            this.success = success;
+            this.skipped = skipped;
+            this.millis = millis;
+        }
+    }
+}
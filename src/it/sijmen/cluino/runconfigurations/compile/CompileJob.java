@@ -0,0 +1,306 @@
+package it.sijmen.cluino.runconfigurations.compile;
+
+import com.intellij.execution.ExecutionException;
+import com.intellij.execution.configurations.GeneralCommandLine;
+import com.intellij.execution.process.ProcessOutputTypes;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Key;
+import com.intellij.openapi.vfs.VfsUtil;
+import it.sijmen.cluino.ArduinoCliService;
+import it.sijmen.cluino.ext.ArduinoBuilder;
+import it.sijmen.cluino.ext.ArduinoCli;
+import it.sijmen.cluino.ext.ArduinoCliDaemon;
+import it.sijmen.cluino.ext.BuildFingerprint;
+import it.sijmen.cluino.ext.BuildLock;
+import it.sijmen.cluino.ext.BuildTimer;
+import it.sijmen.cluino.ext.NativeBuilder;
+import it.sijmen.cluino.ext.SharedBuildCache;
+import it.sijmen.cluino.runconfigurations.TaskProcessHandler;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+/**
+ * One build of the main file for one board: the command to run and the fingerprint
+ * that is stored when the command succeeds.
+ */
+class CompileJob {
+
+    private static final String TIMING_FILE = "build-timings.json";
+    private static final int TIMING_REPORT_SIZE = 15;
+
+    private final ArduinoBuilder builder;
+    private final String mainFile;
+    private final ArduinoBuilder.Backend backend;
+    private final boolean machineLogger;
+    private final boolean sharedCache;
+    private final long sharedCacheLimit;
+    private final Path projectDir;
+    private final Path buildDir;
+    private final Path hexFile;
+    private final Project project;
+    private volatile boolean skipped;
+    private volatile boolean compiling;
+
+    // made by prepareBuild, on the thread that runs the build
+    private List<String> command;
+    private Path cacheDir;
+    private String fingerprint;
+    private String fallbackReason;
+    private NativeBuilder nativeBuilder;
+    private ArduinoCliDaemon daemon;
+    private ArduinoCliDaemon.Compile daemonCompile;
+    private boolean machineLog;
+
+    private CompileJob(CompileRunConfiguration rc, ArduinoBuilder builder) {
+        this.builder = builder;
+        this.mainFile = rc.getMainFile();
+        this.backend = rc.getBackend();
+        this.machineLogger = rc.getLogger() == ArduinoBuilder.Logger.MACHINE;
+        this.sharedCache = rc.isSharedCache();
+        this.sharedCacheLimit = rc.isSharedCache() ? rc.getSharedCacheLimit() * 1024L * 1024L : 0;
+        this.projectDir = Paths.get(rc.getProject().getBasePath());
+        this.buildDir = builder.getBuildDir(projectDir);
+        this.hexFile = builder.getHexFile(projectDir, mainFile);
+        this.project = rc.getProject();
+    }
+
+    /**
+     * Takes the settings of the configuration. Does not touch the filesystem: the folders, the
+     * command line and the fingerprint are made when the job runs.
+     */
+    static CompileJob prepare(CompileRunConfiguration rc, ArduinoBuilder builder) {
+        return new CompileJob(rc, builder);
+    }
+
+    /**
+     * Creates the output folders with java.nio and makes the command line and the fingerprint.
+     * Runs on the thread of the build, so checking the paths, starting the arduino-cli daemon and
+     * hashing the sources never block the IDE.
+     */
+    private void prepareBuild() throws IOException, InterruptedException {
+        if(sharedCache)
+            builder.setCacheDir(SharedBuildCache.getEntry(builder.getFqbn(), builder.getSharedCacheKey()));
+        builder.prepareDirs(projectDir);
+        cacheDir = builder.getCacheDir(projectDir);
+
+        boolean useCli = backend == ArduinoBuilder.Backend.CLI;
+        fallbackReason = null;
+        if(useCli && !ArduinoCli.canBuild(mainFile))
+            fallbackReason = "arduino-cli only builds .ino files named after their folder";
+        else if(useCli && !ArduinoCli.isAvailable())
+            fallbackReason = "arduino-cli could not be started";
+        daemon = null;
+        if(useCli && fallbackReason == null)
+            try {
+                daemon = ArduinoCliService.getInstance().getDaemon();
+            } catch (IOException e) {
+                fallbackReason = "the arduino-cli daemon could not be started: " + e.getMessage();
+            }
+
+        useCli = useCli && fallbackReason == null;
+        command = useCli
+                ? builder.getCliCompileCommand(mainFile, projectDir)
+                : builder.getCompileCommand(mainFile, projectDir);
+        fingerprint = builder.getFingerprint(mainFile, ArduinoBuilder.withBackend(command, backend));
+        nativeBuilder = backend == ArduinoBuilder.Backend.NATIVE ? builder.getNativeBuilder(mainFile, projectDir) : null;
+        daemonCompile = useCli ? builder.getDaemonCompile(mainFile, projectDir) : null;
+        machineLog = !useCli && machineLogger;
+    }
+
+    /**
+     * Runs the build, or skips it when nothing changed since the last successful build. Waits
+     * while another build uses the same build or cache folder. When the same build is already
+     * running, shows its output and returns its result instead. Stops the warm-up of the cores.
+     * @return the exit code of the build. Zero when it succeeded or was skipped.
+     */
+    int run(TaskProcessHandler console, String prefix) throws IOException, ExecutionException, InterruptedException {
+        CoreWarmup.getInstance(project).cancel();
+        try {
+            prepareBuild();
+        } catch (IOException e) {
+            console.println(prefix + e.getMessage(), ProcessOutputTypes.STDERR);
+            return 1;
+        }
+        int exitCode = BuildCoordinator.getInstance(project).run(fingerprint, console, prefix, () -> build(console, prefix));
+        if(sharedCacheLimit > 0)
+            SharedBuildCache.evict(sharedCacheLimit);
+        return exitCode;
+    }
+
+    /**
+     * Makes the IDE see what the builds wrote to the out folder of the project. The builds write
+     * with java.nio, so the folder is refreshed once when they are done instead of going through
+     * the VFS for every folder while the run starts.
+     */
+    void refreshOutput() {
+        VfsUtil.markDirtyAndRefresh(true, true, true, ArduinoBuilder.getOutDir(projectDir).toFile());
+    }
+
+    @SuppressWarnings("try") // the build and cache locks are only held, never used
+    private int build(TaskProcessHandler console, String prefix) throws IOException, ExecutionException, InterruptedException {
+        Runnable onWait = () -> console.println(prefix + "Waiting for another build of " + getFqbn() + " to finish...",
+                ProcessOutputTypes.SYSTEM);
+        try(BuildLock buildLock = BuildLock.acquire(buildDir, onWait);
+            BuildLock cacheLock = BuildLock.acquire(cacheDir, onWait)) {
+            builder.markCacheUsed();
+            skipped = isUpToDate();
+            if(skipped) {
+                console.println(prefix + "Nothing changed since the last successful build. Build skipped.",
+                        ProcessOutputTypes.SYSTEM);
+                return 0;
+            }
+            if(fallbackReason != null)
+                console.println(prefix + "Building with arduino-builder: " + fallbackReason + ".",
+                        ProcessOutputTypes.SYSTEM);
+
+            compiling = true;
+            markStarted();
+            BuildTimer timer = new BuildTimer();
+            int exitCode;
+            if(nativeBuilder != null) {
+                exitCode = buildNative(console, prefix, timer);
+            } else if(daemonCompile != null) {
+                exitCode = buildDaemon(console, prefix, timer);
+            } else {
+                GeneralCommandLine cmd = new GeneralCommandLine(command);
+                console.println(prefix + cmd.getCommandLineString(), ProcessOutputTypes.SYSTEM);
+                exitCode = machineLog
+                        ? buildMachineLog(console, prefix, cmd, timer)
+                        : console.runProcess(cmd, prefix, new TimingProcessListener(timer));
+            }
+            if(exitCode == 0)
+                markSucceeded();
+            reportTiming(console, prefix, timer);
+            return exitCode;
+        }
+    }
+
+    /**
+     * Runs arduino-builder with -logger=machine: its messages are shown readable and its progress
+     * is shown in the status bar.
+     */
+    private int buildMachineLog(TaskProcessHandler console, String prefix, GeneralCommandLine cmd, BuildTimer timer)
+            throws ExecutionException, InterruptedException {
+        BuildProgress progress = BuildProgress.start(project, "Building " + getFqbn(), console::destroyProcess);
+        MachineLogListener output = new MachineLogListener(console, prefix, progress);
+        try {
+            return console.runProcess(cmd, output, new TimingProcessListener(timer));
+        } finally {
+            progress.finish();
+            output.printSummary();
+        }
+    }
+
+    private int buildNative(TaskProcessHandler console, String prefix, BuildTimer timer)
+            throws IOException, InterruptedException {
+        try {
+            nativeBuilder.build(timer, new NativeBuilder.Output() {
+                @Override
+                public void info(String text) {
+                    printLines(console, prefix, text, ProcessOutputTypes.STDOUT);
+                }
+
+                @Override
+                public void error(String text) {
+                    printLines(console, prefix, text, ProcessOutputTypes.STDERR);
+                }
+            });
+        } catch (IOException e) {
+            console.println(prefix + e.getMessage(), ProcessOutputTypes.STDERR);
+            return 1;
+        }
+        return 0;
+    }
+
+    /**
+     * Sends the build to the arduino-cli daemon, which keeps the platforms and libraries loaded
+     * between builds. Stopping the build cancels the compile in the daemon.
+     */
+    private int buildDaemon(TaskProcessHandler console, String prefix, BuildTimer timer)
+            throws IOException, InterruptedException {
+        console.println(prefix + "Compiling " + getFqbn() + " with the arduino-cli daemon", ProcessOutputTypes.SYSTEM);
+        try {
+            return daemon.compile(daemonCompile, new NativeBuilder.Output() {
+                @Override
+                public void info(String text) {
+                    long now = System.nanoTime();
+                    for(String line : text.split("\r?\n"))
+                        timer.onLine(line, now);
+                    printLines(console, prefix, text, ProcessOutputTypes.STDOUT);
+                }
+
+                @Override
+                public void error(String text) {
+                    printLines(console, prefix, text, ProcessOutputTypes.STDERR);
+                }
+            });
+        } finally {
+            timer.finish(System.nanoTime());
+        }
+    }
+
+    /**
+     * Prints the slowest steps of the build and saves all timings as build-timings.json in the
+     * build folder. Only possible when the build printed its commands, so in verbose mode.
+     */
+    private void reportTiming(TaskProcessHandler console, String prefix, BuildTimer timer) {
+        if(timer.isEmpty())
+            return;
+        printLines(console, prefix, timer.report(TIMING_REPORT_SIZE), ProcessOutputTypes.SYSTEM);
+        try {
+            Path json = buildDir.resolve(TIMING_FILE);
+            Files.write(json, timer.toJson().getBytes(StandardCharsets.UTF_8));
+            console.println(prefix + "Timings saved to " + json, ProcessOutputTypes.SYSTEM);
+        } catch (IOException e) {
+            console.println(prefix + "Could not save timings: " + e.getMessage(), ProcessOutputTypes.SYSTEM);
+        }
+    }
+
+    private static void printLines(TaskProcessHandler console, String prefix, String text, Key outputType) {
+        for(String line : text.split("\r?\n"))
+            console.println(prefix + line, outputType);
+    }
+
+    /**
+     * @return whether the last run was skipped because nothing changed.
+     */
+    boolean isSkipped() {
+        return skipped;
+    }
+
+    /**
+     * @return whether the last run found changes and started compiling.
+     */
+    boolean isCompiling() {
+        return compiling;
+    }
+
+    private boolean isUpToDate() {
+        return BuildFingerprint.isUpToDate(buildDir, fingerprint) && Files.exists(hexFile);
+    }
+
+    private void markStarted() throws IOException {
+        BuildFingerprint.invalidate(buildDir);
+    }
+
+    private void markSucceeded() throws IOException {
+        BuildFingerprint.store(buildDir, fingerprint);
+    }
+
+    String getFqbn() {
+        return builder.getFqbn();
+    }
+
+    Path getBuildDir() {
+        return buildDir;
+    }
+
+    Path getHexFile() {
+        return hexFile;
+    }
+}
@@ -0,0 +1,159 @@
+package it.sijmen.cluino.runconfigurations.compile;
+
+import com.intellij.execution.ExecutionException;
+import com.intellij.execution.RunManager;
+import com.intellij.execution.configurations.RunConfiguration;
+import com.intellij.execution.process.ProcessAdapter;
+import com.intellij.execution.process.ProcessEvent;
+import com.intellij.notification.NotificationGroup;
+import com.intellij.notification.NotificationType;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.startup.StartupActivity;
+import com.intellij.openapi.vfs.VirtualFileManager;
+import com.intellij.openapi.vfs.newvfs.BulkFileListener;
+import com.intellij.openapi.vfs.newvfs.events.VFileEvent;
+import com.intellij.util.Alarm;
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Compiles the configurations with compile on save in the background when one of the sources of
+ * their sketch changes and then no source changes for the configured delay. A compile that is
+ * still running when the sources change again is cancelled. Together with the fingerprint of the
+ * last build, this makes the compile before an upload finish right away.
+ */
+public class CompileOnSave implements StartupActivity {
+
+    /**
+     * Registers the group, so it can be configured under Settings | Notifications.
+     */
+    private static final NotificationGroup NOTIFICATIONS = NotificationGroup.balloonGroup("CLuino");
+    private static final Set<String> SOURCE_EXTENSIONS = new HashSet<>(
+            Arrays.asList("ino", "pde", "c", "cpp", "cc", "cxx", "s", "h", "hh", "hpp"));
+
+    @Override
+    public void runActivity(@NotNull Project project) {
+        new Watcher(project).start();
+    }
+
+    private static class Watcher {
+        private final Project project;
+        private final Alarm alarm;
+        private final Map<String, Runnable> scheduled = new ConcurrentHashMap<>();
+        private final Map<String, Object> starting = new ConcurrentHashMap<>();
+        private final Map<String, CompileHandler> running = new ConcurrentHashMap<>();
+        private final Set<CompileHandler> cancelled = ConcurrentHashMap.newKeySet();
+
+        private Watcher(Project project) {
+            this.project = project;
+            this.alarm = new Alarm(Alarm.ThreadToUse.SWING_THREAD, project);
+        }
+
+        private void start() {
+            project.getMessageBus().connect(project).subscribe(VirtualFileManager.VFS_CHANGES, new BulkFileListener() {
+                @Override
+                public void before(@NotNull List<? extends VFileEvent> events) {
+                }
+
+                @Override
+                public void after(@NotNull List<? extends VFileEvent> events) {
+                    for(RunConfiguration configuration : RunManager.getInstance(project).getAllConfigurationsList())
+                        if(configuration instanceof CompileRunConfiguration) {
+                            CompileRunConfiguration rc = (CompileRunConfiguration) configuration;
+                            if(rc.isCompileOnSave() && changesSources(rc, events))
+                                schedule(rc);
+                        }
+                }
+            });
+        }
+
+        private boolean changesSources(CompileRunConfiguration rc, List<? extends VFileEvent> events) {
+            if(rc.getMainFile() == null || rc.getMainFile().isEmpty())
+                return false;
+            Path sketchDir = Paths.get(rc.getMainFile()).toAbsolutePath().getParent();
+            Path outDir = Paths.get(project.getBasePath(), "out");
+            for(VFileEvent event : events) {
+                Path path = Paths.get(event.getPath());
+                String name = path.getFileName() == null ? "" : path.getFileName().toString();
+                String extension = name.substring(name.lastIndexOf('.') + 1).toLowerCase();
+                if(path.startsWith(sketchDir) && !path.startsWith(outDir) && SOURCE_EXTENSIONS.contains(extension))
+                    return true;
+            }
+            return false;
+        }
+
+        /**
+         * Starts the compile after the delay, unless the sources change again before that.
+         */
+        private void schedule(CompileRunConfiguration rc) {
+            Runnable request = () -> {
+                scheduled.remove(rc.getName());
+                compile(rc);
+            };
+            Runnable previous = scheduled.put(rc.getName(), request);
+            if(previous != null)
+                alarm.cancelRequest(previous);
+            alarm.addRequest(request, rc.getCompileOnSaveDelay());
+        }
+
+        /**
+         * Cancels the running compile of the configuration and starts a new one. The alarm runs
+         * this on the event dispatch thread, so the handler is made on a pooled thread: that may
+         * wait for the toolchain index. A compile that is replaced while its handler is made never
+         * starts.
+         */
+        private void compile(CompileRunConfiguration rc) {
+            if(project.isDisposed())
+                return;
+            Object request = new Object();
+            synchronized(this) {
+                starting.put(rc.getName(), request);
+                CompileHandler previous = running.remove(rc.getName());
+                if(previous != null) {
+                    cancelled.add(previous);
+                    previous.destroyProcess();
+                }
+            }
+            ApplicationManager.getApplication().executeOnPooledThread(() -> start(rc, request));
+        }
+
+        private void start(CompileRunConfiguration rc, Object request) {
+            CompileHandler handler;
+            try {
+                handler = rc.createHandler();
+            } catch (ExecutionException e) {
+                starting.remove(rc.getName(), request);
+                notify(rc, "Compile on save of " + rc.getName() + " could not start: " + e.getMessage());
+                return;
+            }
+            handler.addProcessListener(new ProcessAdapter() {
+                @Override
+                public void processTerminated(ProcessEvent event) {
+                    running.remove(rc.getName(), handler);
+                    if(!cancelled.remove(handler) && event.getExitCode() != 0)
+                        Watcher.this.notify(rc, "Compile on save of " + rc.getName() + " failed. " +
+                                "Run the configuration to see the errors.");
+                }
+            });
+            synchronized(this) {
+                if(project.isDisposed() || !starting.remove(rc.getName(), request))
+                    return;
+                running.put(rc.getName(), handler);
+            }
+            handler.startNotify();
+        }
+
+        private void notify(CompileRunConfiguration rc, String message) {
+            NOTIFICATIONS.createNotification(rc.getName(), message, NotificationType.WARNING, null).notify(project);
+        }
+    }
+}
@@ -3,13 +3,21 @@ package it.sijmen.cluino.runconfigurations.compile;
 import com.intellij.execution.ExecutionException;
 import com.intellij.execution.Executor;
 import com.intellij.execution.configurations.*;
+import com.intellij.execution.process.ProcessHandler;
+import com.intellij.execution.process.ProcessTerminatedListener;
 import com.intellij.execution.runners.ExecutionEnvironment;
 import com.intellij.openapi.options.SettingsEditor;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.util.IconLoader;
 import com.intellij.openapi.util.InvalidDataException;
 import com.intellij.openapi.util.WriteExternalException;
+import it.sijmen.cluino.LibraryIndexService;
+import it.sijmen.cluino.ToolchainService;
 import it.sijmen.cluino.ext.ArduinoBuilder;
+import it.sijmen.cluino.ext.ArduinoPackages;
+import it.sijmen.cluino.ext.BoardsCatalogue;
+import it.sijmen.cluino.ext.LibraryIndex;
+import it.sijmen.cluino.ext.ToolchainIndex;
 import it.sijmen.cluino.runconfigurations.GenericRunnerState;
 import org.jdom.Content;
 import org.jdom.Element;
@@ -18,9 +26,15 @@ import org.jetbrains.annotations.Nullable;
 
 import javax.swing.*;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 import static it.sijmen.cluino.Util.required;
@@ -31,26 +45,46 @@ public class CompileRunConfiguration extends RunConfigurationBase {
 
     private ArduinoBuilder.Logger logger;
     private ArduinoBuilder.Warnings warnings;
+    private ArduinoBuilder.Backend backend;
 
     private String fqbn, ideVersion;
     private int debugLevel;
     private boolean verbose;
-    private List<String> hardwares, tools, prefs, libraries;
+    private boolean sharedCache;
+    private boolean boundedConsole;
+    private int sharedCacheLimit;
+    private boolean compileOnSave;
+    private int compileOnSaveDelay;
+    private List<String> libraries;
+
+    /**
+     * Null until they are set or filled in with the defaults of this machine. Finding the defaults
+     * needs the toolchain index, which is not waited for when a configuration is created or loaded.
+     */
+    private List<String> hardwares, tools, prefs;
+
+    /**
+     * When not empty, the main file is built for all these boards at once instead of for fqbn.
+     */
+    private List<String> matrixFqbns;
 
     public CompileRunConfiguration(Project project, ConfigurationFactory factory, String name) {
         super(project, factory, name);
 
         logger = ArduinoBuilder.Logger.HUMAN;
         warnings = ArduinoBuilder.Warnings.NONE;
+        backend = ArduinoBuilder.Backend.BUILDER;
         fqbn = "arduino:avr:uno";
         ideVersion = ""; //todo: auto-detect?
         debugLevel = 5;
         verbose = true;
-        hardwares = ArduinoBuilder.getDefaultHardwares();
-        tools = ArduinoBuilder.getDefaultTools();
-
-        prefs = ArduinoBuilder.getDefaultPrefs();
+        sharedCache = false;
+        boundedConsole = false;
+        sharedCacheLimit = 2048;
+        compileOnSave = false;
+        compileOnSaveDelay = 1500;
         libraries = new ArrayList<>();
+        matrixFqbns = new ArrayList<>();
     }
 
     @NotNull
@@ -63,18 +97,133 @@ public class CompileRunConfiguration extends RunConfigurationBase {
     public void checkConfiguration() throws RuntimeConfigurationException {
         required("main file", mainFile);
         required("logger", logger != null);
-        required("fqbn", fqbn);
+        required("fqbn", fqbn != null && !fqbn.isEmpty() || !getMatrixFqbns().isEmpty());
         required("warnings", warnings != null);
+        required("backend", backend != null);
         required("debug level", debugLevel >= 0 && debugLevel <= 10);
-        required("hardware list", hardwares != null && !hardwares.isEmpty());
-        required("tools list", tools != null && !tools.isEmpty());
+        required("shared cache size", !sharedCache || sharedCacheLimit > 0);
+        required("compile on save delay", !compileOnSave || compileOnSaveDelay >= 0);
+        if(!isDefaultsResolved())
+            return;
+        required("hardware list", !hardwares.isEmpty());
+        required("tools list", !tools.isEmpty());
+        checkBoards();
+        checkIncludes();
+    }
+
+    /**
+     * Fills in the hardware, tools and prefs that were never set with the defaults of this machine.
+     * Does nothing when the index is null.
+     */
+    private synchronized void resolveDefaults(ToolchainIndex index) {
+        if(index == null)
+            return;
+        if(hardwares == null)
+            hardwares = ArduinoBuilder.getDefaultHardwares(index);
+        if(tools == null)
+            tools = ArduinoBuilder.getDefaultTools(index);
+        if(prefs == null)
+            prefs = ArduinoBuilder.getDefaultPrefs(index);
+    }
+
+    /**
+     * @return whether the hardware, tools and prefs are known, without waiting for the toolchain index.
+     */
+    boolean isDefaultsResolved() {
+        resolveDefaults(ToolchainService.getInstance().getIndexIfReady());
+        return hardwares != null && tools != null && prefs != null;
+    }
+
+    /**
+     * Runs the action on a pooled thread once the hardware, tools and prefs are known.
+     */
+    void whenDefaultsResolved(Runnable action) {
+        ToolchainService.getInstance().whenReady(index -> {
+            resolveDefaults(index);
+            action.run();
+        });
+    }
+
+    /**
+     * Warns about includes of the sketch that no library provides, before a build fails on them.
+     * Only uses the result of the last check, which the library index service makes in the
+     * background, so nothing is reported until the sketch was checked once.
+     */
+    private void checkIncludes() throws RuntimeConfigurationWarning {
+        String board = getMatrixFqbns().isEmpty() ? fqbn : getMatrixFqbns().get(0);
+        String[] parts = board.split(":");
+        ToolchainIndex toolchain = ToolchainService.getInstance().getIndexIfReady();
+        if(parts.length < 3 || toolchain == null)
+            return;
+
+        String platform = parts[0] + ":" + parts[1];
+        String mainFile = this.mainFile;
+        List<String> hardwares = this.hardwares;
+        List<Path> libraryFolders = getLibraryFolders();
+        String compiler = toolchain.getToolPath("avr-gcc");
+        String key = String.join("\n", mainFile, platform, String.valueOf(hardwares),
+                String.valueOf(libraryFolders), String.valueOf(compiler));
+        LibraryIndexService service = LibraryIndexService.getInstance(getProject());
+        Set<String> unresolved = service.getUnresolvedIfReady(key,
+                () -> findUnresolved(service, mainFile, platform, hardwares, libraryFolders, compiler));
+        if(unresolved != null && !unresolved.isEmpty())
+            throw new RuntimeConfigurationWarning("No library found for " + String.join(", ", unresolved)
+                    + ". Add the folder containing the library to the libraries.");
+    }
+
+    /**
+     * @return the includes of the sketch that are not provided by the core, the variants, the
+     * compiler or a library.
+     */
+    private static Set<String> findUnresolved(LibraryIndexService service, String mainFile, String platform,
+                                              List<String> hardwares, List<Path> libraryFolders,
+                                              @Nullable String compiler) throws IOException {
+        Path platformDir = ArduinoPackages.findPlatforms(hardwares).get(platform);
+        if(platformDir == null || !Files.isRegularFile(Paths.get(mainFile)))
+            return Collections.emptySet();
+        List<Path> folders = new ArrayList<>();
+        folders.add(platformDir.resolve("libraries"));
+        folders.addAll(libraryFolders);
+
+        Set<String> known = new HashSet<>();
+        known.addAll(LibraryIndex.listHeaders(platformDir.resolve("cores"), 2));
+        known.addAll(LibraryIndex.listHeaders(platformDir.resolve("variants"), 2));
+        if(compiler != null)
+            known.addAll(LibraryIndex.listHeaders(Paths.get(compiler, "avr", "include"), 1));
+
+        return service.getIndex(folders)
+                .resolve(folders, LibraryIndex.sketchFiles(Paths.get(mainFile)), known).getUnresolved();
+    }
+
+    /**
+     * Warns when a board code does not exist in the hardware folders, before a build fails on it.
+     * Only uses the boards the toolchain service already read, so it is skipped while they are
+     * read and for hardware folders other than the installed ones.
+     */
+    private void checkBoards() throws RuntimeConfigurationWarning {
+        BoardsCatalogue catalogue = ToolchainService.getInstance().getCatalogueIfReady();
+        if(catalogue == null || !catalogue.getHardwares().equals(hardwares))
+            return;
+        List<String> boards = getMatrixFqbns().isEmpty() ? Collections.singletonList(fqbn) : getMatrixFqbns();
+        for(String board : boards) {
+            String problem;
+            try {
+                problem = catalogue.validate(board);
+            } catch (IOException e) {
+                return;
+            }
+            if(problem != null)
+                throw new RuntimeConfigurationWarning(problem);
+        }
     }
 
     @Nullable
     @Override
     public RunProfileState getState(@NotNull Executor executor, @NotNull ExecutionEnvironment executionEnvironment)
             throws ExecutionException {
-        return new GenericRunnerState(getProject(), executionEnvironment, this::run);
+        GenericRunnerState state = new GenericRunnerState(executionEnvironment, this::run);
+        state.addConsoleFilters(new DiagnosticFilter(getProject()));
+        return state;
     }
 
     @Override
@@ -86,14 +235,29 @@ public class CompileRunConfiguration extends RunConfigurationBase {
         setFqbn(e.getAttributeValue("fqbn"));
         setIdeVersion(e.getAttributeValue("ideversion"));
         setWarnings(ArduinoBuilder.Warnings.valueOf(e.getAttributeValue("warnings")));
+        String backend = e.getAttributeValue("backend");
+        setBackend(backend == null ? ArduinoBuilder.Backend.BUILDER : ArduinoBuilder.Backend.valueOf(backend));
         
         setDebugLevel(Integer.parseInt(e.getAttributeValue("debuglevel")));
         setVerbose("true".equals(e.getAttributeValue("verbose")));
-
-        setHardwares(getSubitems(e.getChild("hardwares")));
-        setTools(getSubitems(e.getChild("tools")));
-        setPrefs(getSubitems(e.getChild("prefs")));
+        setSharedCache("true".equals(e.getAttributeValue("sharedcache")));
+        setBoundedConsole("true".equals(e.getAttributeValue("boundedconsole")));
+        String sharedCacheLimit = e.getAttributeValue("sharedcachelimit");
+        if(sharedCacheLimit != null)
+            setSharedCacheLimit(Integer.parseInt(sharedCacheLimit));
+        setCompileOnSave("true".equals(e.getAttributeValue("compileonsave")));
+        String compileOnSaveDelay = e.getAttributeValue("compileonsavedelay");
+        if(compileOnSaveDelay != null)
+            setCompileOnSaveDelay(Integer.parseInt(compileOnSaveDelay));
+
+        if(e.getChild("hardwares") != null)
+            setHardwares(getSubitems(e.getChild("hardwares")));
+        if(e.getChild("tools") != null)
+            setTools(getSubitems(e.getChild("tools")));
+        if(e.getChild("prefs") != null)
+            setPrefs(getSubitems(e.getChild("prefs")));
         setLibraries(getSubitems(e.getChild("libs")));
+        setMatrixFqbns(getSubitems(e.getChild("matrixfqbns")));
     }
 
     public static List<String> getSubitems(Element e){
@@ -117,20 +281,52 @@ public class CompileRunConfiguration extends RunConfigurationBase {
         element.setAttribute("fqbn", getFqbn());
         element.setAttribute("ideversion", getIdeVersion());
         element.setAttribute("warnings", getWarnings().toString());
+        element.setAttribute("backend", getBackend().toString());
         
         element.setAttribute("debuglevel", String.valueOf(getDebugLevel()));
         element.setAttribute("verbose", isVerbose() ? "true" : "false");
-
-        element.addContent(makeElement("hardware", getHardwares()));
-        element.addContent(makeElement("tool", getTools()));
-        element.addContent(makeElement("pref", getPrefs()));
+        element.setAttribute("sharedcache", isSharedCache() ? "true" : "false");
+        element.setAttribute("boundedconsole", isBoundedConsole() ? "true" : "false");
+        element.setAttribute("sharedcachelimit", String.valueOf(getSharedCacheLimit()));
+        element.setAttribute("compileonsave", isCompileOnSave() ? "true" : "false");
+        element.setAttribute("compileonsavedelay", String.valueOf(getCompileOnSaveDelay()));
+
+        // defaults that are not known yet are not written, so they are filled in after loading
+        isDefaultsResolved();
+        if(hardwares != null)
+            element.addContent(makeElement("hardware", hardwares));
+        if(tools != null)
+            element.addContent(makeElement("tool", tools));
+        if(prefs != null)
+            element.addContent(makeElement("pref", prefs));
         element.addContent(makeElement("lib", getLibraries()));
+        element.addContent(makeElement("matrixfqbn", getMatrixFqbns()));
     }
     
-    private GeneralCommandLine run() throws ExecutionException {
-        ArduinoBuilder arduinoBuilder = new ArduinoBuilder(
+    private ProcessHandler run() throws ExecutionException {
+        CompileHandler handler = createHandler();
+        ProcessTerminatedListener.attach(handler, getProject());
+        return handler;
+    }
+
+    /**
+     * Prepares the builds of this configuration. The builds start when the handler is started.
+     */
+    CompileHandler createHandler() throws ExecutionException {
+        if(getProject().getBasePath() == null)
+            throw new ExecutionException("The project has no folder to build in.");
+        List<String> fqbns = getMatrixFqbns().isEmpty() ? Collections.singletonList(getFqbn()) : getMatrixFqbns();
+        List<CompileJob> jobs = new ArrayList<>();
+        for(String fqbn : fqbns)
+            jobs.add(CompileJob.prepare(this, createBuilder(fqbn)));
+        return new CompileHandler(jobs, isBoundedConsole());
+    }
+
+    ArduinoBuilder createBuilder(String fqbn) {
+        resolveDefaults(ToolchainService.getInstance().awaitIndex(getProject()));
+        return new ArduinoBuilder(
                 getLogger(),
-                getFqbn(),
+                fqbn,
                 getIdeVersion(),
                 getWarnings(),
                 isVerbose(),
@@ -139,14 +335,12 @@ public class CompileRunConfiguration extends RunConfigurationBase {
                 getTools(),
                 getPrefs(),
                 getLibraries()
-        );
+        ).setConfiguration(getName())
+                .setLibraryIndex(LibraryIndexService.getInstance(getProject()).getIndex(getLibraryFolders()));
+    }
 
-        try {
-            arduinoBuilder.prepareDirs(this, getProject());
-            return new GeneralCommandLine(arduinoBuilder.getCompileCommand(getMainFile(), this.getProject()));
-        } catch (IOException e) {
-            throw new ExecutionException(e.getMessage(), e);
-        }
+    private List<Path> getLibraryFolders() {
+        return getLibraries().stream().map(Paths::get).collect(Collectors.toList());
     }
 
     @Override
@@ -170,6 +364,14 @@ public class CompileRunConfiguration extends RunConfigurationBase {
         this.logger = logger;
     }
 
+    ArduinoBuilder.Backend getBackend() {
+        return backend == null ? ArduinoBuilder.Backend.BUILDER : backend;
+    }
+
+    void setBackend(ArduinoBuilder.Backend backend) {
+        this.backend = backend;
+    }
+
     String getFqbn() {
         return fqbn == null ? "" : fqbn;
     }
@@ -210,24 +412,85 @@ public class CompileRunConfiguration extends RunConfigurationBase {
         this.verbose = verbose;
     }
 
+    boolean isBoundedConsole() {
+        return boundedConsole;
+    }
+
+    void setBoundedConsole(boolean boundedConsole) {
+        this.boundedConsole = boundedConsole;
+    }
+
+    boolean isSharedCache() {
+        return sharedCache;
+    }
+
+    void setSharedCache(boolean sharedCache) {
+        this.sharedCache = sharedCache;
+    }
+
+    /**
+     * @return whether the sketch is compiled in the background when one of its sources is saved.
+     */
+    boolean isCompileOnSave() {
+        return compileOnSave;
+    }
+
+    void setCompileOnSave(boolean compileOnSave) {
+        this.compileOnSave = compileOnSave;
+    }
+
+    /**
+     * @return how many milliseconds no source may change before a compile on save starts.
+     */
+    int getCompileOnSaveDelay() {
+        return compileOnSaveDelay;
+    }
+
+    void setCompileOnSaveDelay(int compileOnSaveDelay) {
+        this.compileOnSaveDelay = compileOnSaveDelay;
+    }
+
+    /**
+     * @return the maximum size of the shared cache in megabytes.
+     */
+    int getSharedCacheLimit() {
+        return sharedCacheLimit;
+    }
+
+    void setSharedCacheLimit(int sharedCacheLimit) {
+        this.sharedCacheLimit = sharedCacheLimit;
+    }
+
+    /**
+     * @return empty when the defaults are not known yet.
+     */
     List<String> getHardwares() {
-        return hardwares;
+        isDefaultsResolved();
+        return hardwares == null ? new ArrayList<>() : hardwares;
     }
 
     void setHardwares(List<String> hardwares) {
         this.hardwares = hardwares;
     }
 
+    /**
+     * @return empty when the defaults are not known yet.
+     */
     List<String> getTools() {
-        return tools;
+        isDefaultsResolved();
+        return tools == null ? new ArrayList<>() : tools;
     }
 
     void setTools(List<String> tools) {
         this.tools = tools;
     }
 
+    /**
+     * @return empty when the defaults are not known yet.
+     */
     List<String> getPrefs() {
-        return prefs;
+        isDefaultsResolved();
+        return prefs == null ? new ArrayList<>() : prefs;
     }
 
     void setPrefs(List<String> prefs) {
@@ -241,4 +504,12 @@ public class CompileRunConfiguration extends RunConfigurationBase {
     void setLibraries(List<String> libraries) {
         this.libraries = libraries;
     }
+
+    List<String> getMatrixFqbns() {
+        return matrixFqbns == null ? new ArrayList<>() : matrixFqbns;
+    }
+
+    void setMatrixFqbns(List<String> matrixFqbns) {
+        this.matrixFqbns = matrixFqbns;
+    }
 }
@@ -1,12 +1,17 @@
 package it.sijmen.cluino.runconfigurations.compile;
 
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.ModalityState;
 import com.intellij.openapi.fileChooser.FileChooserDescriptor;
 import com.intellij.openapi.options.ConfigurationException;
 import com.intellij.openapi.options.SettingsEditor;
+import com.intellij.openapi.progress.ProgressManager;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.roots.ui.componentsList.components.ScrollablePanel;
 import com.intellij.openapi.ui.ComboBox;
+import com.intellij.openapi.ui.Messages;
 import com.intellij.openapi.ui.TextFieldWithBrowseButton;
+import com.intellij.openapi.util.ThrowableComputable;
 import com.intellij.ui.JBIntSpinner;
 import com.intellij.ui.components.JBCheckBox;
 import com.intellij.ui.components.JBScrollPane;
@@ -14,11 +19,15 @@ import com.intellij.ui.components.JBTextField;
 import com.intellij.ui.table.JBTable;
 import com.intellij.util.ui.FormBuilder;
 import it.sijmen.cluino.ext.ArduinoBuilder;
+import it.sijmen.cluino.ext.BoardsCatalogue;
+import it.sijmen.cluino.ui.BoardPickerDialog;
 import it.sijmen.cluino.ui.FileListPanel;
 import it.sijmen.cluino.ui.StringListPanel;
 import org.jetbrains.annotations.NotNull;
 
 import javax.swing.*;
+import java.io.IOException;
+import java.util.List;
 
 import static com.intellij.ide.IdeTooltipManager.setBorder;
 
@@ -26,15 +35,28 @@ public class CompileSettingsEditor extends SettingsEditor<CompileRunConfiguratio
 
     private final TextFieldWithBrowseButton mainFile;
 
-    private final JBTextField fqbn, ideVersion;
+    private final TextFieldWithBrowseButton fqbn;
+    private final JBTextField ideVersion;
     private final JBIntSpinner debugLevel;
     private final ComboBox<ArduinoBuilder.Logger> logger;
     private final ComboBox<ArduinoBuilder.Warnings> warnings;
+    private final ComboBox<ArduinoBuilder.Backend> backend;
     private final JBCheckBox verbose;
+    private final JBCheckBox sharedCache;
+    private final JBCheckBox boundedConsole;
+    private final JBIntSpinner sharedCacheLimit;
+    private final JBCheckBox compileOnSave;
+    private final JBIntSpinner compileOnSaveDelay;
     private final FileListPanel hardwares;
     private final FileListPanel tools;
     private final StringListPanel prefs;
     private final FileListPanel libraries;
+    private final StringListPanel matrixFqbns;
+
+    /**
+     * The configuration shown while its default hardware, tools and prefs are still being found.
+     */
+    private CompileRunConfiguration pendingDefaults;
 
     public CompileSettingsEditor(Project project) {
         mainFile = new TextFieldWithBrowseButton();
@@ -43,17 +65,48 @@ public class CompileSettingsEditor extends SettingsEditor<CompileRunConfiguratio
                 project, new FileChooserDescriptor(true, false, false, false, false, false));
 
         logger = new ComboBox<>(ArduinoBuilder.Logger.values());
-        fqbn = new JBTextField();
+        fqbn = new TextFieldWithBrowseButton();
+        fqbn.addActionListener(e -> pickBoard(project));
         ideVersion = new JBTextField();
         warnings = new ComboBox<>(ArduinoBuilder.Warnings.values());
+        backend = new ComboBox<>(ArduinoBuilder.Backend.values());
         debugLevel = new JBIntSpinner(5, 0, 10);
 
         verbose = new JBCheckBox();
+        sharedCache = new JBCheckBox();
+        boundedConsole = new JBCheckBox();
+        sharedCacheLimit = new JBIntSpinner(2048, 64, 1024 * 1024);
+        compileOnSave = new JBCheckBox();
+        compileOnSaveDelay = new JBIntSpinner(1500, 0, 60 * 1000);
 
         hardwares = new FileListPanel("Hardwares", "No hardware folders selected.", project);
         tools = new FileListPanel("Tools", "No hardware folders selected.", project);
         prefs = new StringListPanel("Preferences", "No preferences overwrites folders selected.", project);
         libraries = new FileListPanel("Libraries", "No extra library folders selected.", project);
+        matrixFqbns = new StringListPanel("Boards", "Only the board code above is built.", project);
+    }
+
+    /**
+     * Shows the boards of the hardware folders that are filled in. The boards are read in the
+     * background the first time, after that they are cached.
+     */
+    private void pickBoard(Project project) {
+        List<String> hardwareDirs = hardwares.getItems();
+        List<BoardsCatalogue.Board> boards;
+        try {
+            boards = ProgressManager.getInstance().runProcessWithProgressSynchronously(
+                    (ThrowableComputable<List<BoardsCatalogue.Board>, IOException>) () ->
+                            new BoardsCatalogue(hardwareDirs).getAllBoards(),
+                    "Reading Boards", true, project);
+        } catch (IOException e) {
+            Messages.showErrorDialog(project, "Could not read the installed boards: " + e.getMessage(), "Select Board");
+            return;
+        }
+        if(boards.isEmpty()) {
+            Messages.showInfoMessage(project, "No boards found in the hardware folders.", "Select Board");
+            return;
+        }
+        new BoardPickerDialog(project, boards, fqbn.getText(), fqbn::setText).show();
     }
 
     @Override
@@ -64,14 +117,42 @@ public class CompileSettingsEditor extends SettingsEditor<CompileRunConfiguratio
         fqbn.setText(rc.getFqbn());
         ideVersion.setText(rc.getIdeVersion());
         warnings.setSelectedItem(rc.getWarnings());
+        backend.setSelectedItem(rc.getBackend());
         debugLevel.setNumber(rc.getDebugLevel());
 
         verbose.setSelected(rc.isVerbose());
+        sharedCache.setSelected(rc.isSharedCache());
+        boundedConsole.setSelected(rc.isBoundedConsole());
+        sharedCacheLimit.setNumber(rc.getSharedCacheLimit());
+        compileOnSave.setSelected(rc.isCompileOnSave());
+        compileOnSaveDelay.setNumber(rc.getCompileOnSaveDelay());
 
         hardwares.setItems(rc.getHardwares());
         tools.setItems(rc.getTools());
         prefs.setItems(rc.getPrefs());
         libraries.setItems(rc.getLibraries());
+        matrixFqbns.setItems(rc.getMatrixFqbns());
+
+        pendingDefaults = rc.isDefaultsResolved() ? null : rc;
+        if(pendingDefaults != null)
+            rc.whenDefaultsResolved(() -> ApplicationManager.getApplication().invokeLater(
+                    () -> showDefaults(rc), ModalityState.any()));
+    }
+
+    /**
+     * Fills in the defaults that were found after the editor was opened, unless something else
+     * was entered meanwhile.
+     */
+    private void showDefaults(CompileRunConfiguration rc) {
+        if(pendingDefaults != rc)
+            return;
+        pendingDefaults = null;
+        if(hardwares.getItems().isEmpty())
+            hardwares.setItems(rc.getHardwares());
+        if(tools.getItems().isEmpty())
+            tools.setItems(rc.getTools());
+        if(prefs.getItems().isEmpty())
+            prefs.setItems(rc.getPrefs());
     }
 
     @Override
@@ -83,14 +164,25 @@ public class CompileSettingsEditor extends SettingsEditor<CompileRunConfiguratio
         rc.setFqbn(fqbn.getText());
         rc.setIdeVersion(ideVersion.getText());
         rc.setWarnings((ArduinoBuilder.Warnings) warnings.getSelectedItem());
+        rc.setBackend((ArduinoBuilder.Backend) backend.getSelectedItem());
         rc.setDebugLevel(debugLevel.getNumber());
 
         rc.setVerbose(verbose.isSelected());
-
-        rc.setHardwares(hardwares.getItems());
-        rc.setTools(tools.getItems());
-        rc.setPrefs(prefs.getItems());
+        rc.setSharedCache(sharedCache.isSelected());
+        rc.setBoundedConsole(boundedConsole.isSelected());
+        rc.setSharedCacheLimit(sharedCacheLimit.getNumber());
+        rc.setCompileOnSave(compileOnSave.isSelected());
+        rc.setCompileOnSaveDelay(compileOnSaveDelay.getNumber());
+
+        // empty lists while the defaults are still being found would replace the defaults
+        if(pendingDefaults == null || !hardwares.getItems().isEmpty())
+            rc.setHardwares(hardwares.getItems());
+        if(pendingDefaults == null || !tools.getItems().isEmpty())
+            rc.setTools(tools.getItems());
+        if(pendingDefaults == null || !prefs.getItems().isEmpty())
+            rc.setPrefs(prefs.getItems());
         rc.setLibraries(libraries.getItems());
+        rc.setMatrixFqbns(matrixFqbns.getItems());
     }
 
     @NotNull
@@ -102,15 +194,33 @@ public class CompileSettingsEditor extends SettingsEditor<CompileRunConfiguratio
                 .addTooltip("Select folder(s) container arduino libraries.")
                 .addSeparator()
                 .addLabeledComponent("Board Code:", fqbn)
-                .addTooltip("Fully Qualified Board Name, e.g.: arduino:avr:uno")
+                .addTooltip("Fully Qualified Board Name, e.g.: arduino:avr:uno. Use the button to search the installed boards and their options.")
+                .addLabeledComponent("Build for multiple boards:", matrixFqbns.getPanel())
+                .addTooltip("<html>Optional. When filled in, the main file is built for all these boards at the same time instead of for the board code above.<br>" +
+                        "Every board gets its own build folder in out/arduino-build.</html>")
                 .addLabeledComponent("Arduino IDE version:", ideVersion)
                 .addTooltip("The version of the installed ide. Leave empty if unsure")
                 .addLabeledComponent("Warnings:", warnings)
                 .addTooltip("Used to tell gcc which warning level to use (-W flag).")
                 .addLabeledComponent("Debug level:", debugLevel)
                 .addTooltip("Used for debugging. Set it to 10 when submitting an issue.")
+                .addLabeledComponent("Backend:", backend)
+                .addTooltip("<html>BUILDER runs arduino-builder with the hardware and tools folders below. CLI runs arduino-cli with its own <br>" +
+                        "installed platforms. Falls back to arduino-builder when arduino-cli is not installed or the sketch is not a .ino file.<br>" +
+                        "NATIVE runs the compiler itself using the recipes of platform.txt and compiles all files in parallel.</html>")
                 .addLabeledComponent("Logging type:", logger)
                 .addLabeledComponent("Verbose output:", verbose)
+                .addLabeledComponent("Compact console:", boundedConsole)
+                .addTooltip("<html>Write the full build output to build.log and replace compiler commands in the console by a count.<br>" +
+                        "Errors and warnings are always shown. Use this for large verbose builds.</html>")
+                .addLabeledComponent("Shared build cache:", sharedCache)
+                .addTooltip("Share compiled cores with all projects on this machine through ~/.cluino/build-cache.")
+                .addLabeledComponent("Shared cache size (MB):", sharedCacheLimit)
+                .addTooltip("When the shared cache grows larger, the least recently used entries are removed.")
+                .addLabeledComponent("Compile on save:", compileOnSave)
+                .addTooltip("Compile in the background when a source file next to the main file changes. A running compile on save is cancelled.")
+                .addLabeledComponent("Compile on save delay (ms):", compileOnSaveDelay)
+                .addTooltip("The compile starts when no source file changed for this long.")
                 .addSeparator()
                 .addLabeledComponent("Hardwares:", hardwares.getPanel())
                 .addTooltip("<html>Folder(s) containing Arduino platforms. An example is the hardware folder shipped with the Arduino IDE, or the packages <br>" +
@@ -0,0 +1,24 @@
+package it.sijmen.cluino.runconfigurations.compile;
+
+import com.intellij.execution.ConsoleFolding;
+import it.sijmen.cluino.ext.BuildTimer;
+import it.sijmen.cluino.runconfigurations.PrefixingProcessListener;
+
+import java.util.List;
+
+/**
+ * Folds the compiler commands that verbose arduino builds print into one expandable line.
+ */
+public class CompilerCommandFolding extends ConsoleFolding {
+
+    @Override
+    public boolean shouldFoldLine(String line) {
+        return line.contains("arduino")
+                && BuildTimer.isInvocation(line.substring(PrefixingProcessListener.prefixLength(line)));
+    }
+
+    @Override
+    public String getPlaceholderText(List<String> lines) {
+        return lines.size() == 1 ? " <1 compiler command>" : " <" + lines.size() + " compiler commands>";
+    }
+}
@@ -0,0 +1,207 @@
+package it.sijmen.cluino.runconfigurations.compile;
+
+import com.intellij.execution.RunManager;
+import com.intellij.execution.configurations.RunConfiguration;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.components.ServiceManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.progress.Task;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.startup.StartupActivity;
+import com.intellij.openapi.util.io.FileUtil;
+import it.sijmen.cluino.Util;
+import it.sijmen.cluino.ext.ArduinoBuilder;
+import it.sijmen.cluino.ext.ArduinoCli;
+import it.sijmen.cluino.ext.BuildLock;
+import it.sijmen.cluino.ext.SharedBuildCache;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Compiles the arduino core of every board the compile configurations of a project build for,
+ * in the background when the project opens. An empty sketch is built with the settings of the
+ * configuration, which leaves the compiled core in the build cache, so the first real build of
+ * the session only compiles the sketch. Stops as soon as a real build starts.
+ */
+class CoreWarmup {
+
+    private static final Logger LOG = Logger.getInstance(CoreWarmup.class);
+    private static final String SKETCH = "CoreWarmup";
+    private static final String SKETCH_SOURCE = "void setup() {}\nvoid loop() {}\n";
+    private static final String CONFIGURATION = ".warmup";
+    private static final String NICE = "/usr/bin/nice";
+    private static final long POLL_MILLIS = 100;
+
+    private final Project project;
+    private volatile boolean cancelled;
+    private volatile Process process;
+
+    CoreWarmup(Project project) {
+        this.project = project;
+    }
+
+    static CoreWarmup getInstance(Project project) {
+        return ServiceManager.getService(project, CoreWarmup.class);
+    }
+
+    /**
+     * Starts the warm-up when the project has compile configurations.
+     */
+    public static class Starter implements StartupActivity {
+        @Override
+        public void runActivity(@NotNull Project project) {
+            getInstance(project).start();
+        }
+    }
+
+    void start() {
+        List<CompileRunConfiguration> configurations = new ArrayList<>();
+        for(RunConfiguration configuration : RunManager.getInstance(project).getAllConfigurationsList())
+            if(configuration instanceof CompileRunConfiguration
+                    && ((CompileRunConfiguration) configuration).getBackend() != ArduinoBuilder.Backend.NATIVE)
+                configurations.add((CompileRunConfiguration) configuration);
+        if(configurations.isEmpty() || project.getBasePath() == null)
+            return;
+
+        ApplicationManager.getApplication().invokeLater(() ->
+                ProgressManager.getInstance().run(new Task.Backgroundable(project, "Warming up Arduino cores", true) {
+                    @Override
+                    public void run(@NotNull ProgressIndicator indicator) {
+                        warmAll(configurations, indicator);
+                    }
+                }), project.getDisposed());
+    }
+
+    /**
+     * Stops the warm-up. Called when a real build starts, which then gets the cache folder and
+     * the processor to itself. The cores that were not compiled yet are compiled by the builds.
+     */
+    void cancel() {
+        cancelled = true;
+        Process running = process;
+        if(running != null)
+            running.destroy();
+    }
+
+    private void warmAll(List<CompileRunConfiguration> configurations, ProgressIndicator indicator) {
+        Path projectDir = Paths.get(project.getBasePath());
+        Set<Path> warmed = new HashSet<>();
+        for(CompileRunConfiguration rc : configurations) {
+            String main = rc.getMainFile();
+            List<String> fqbns = rc.getMatrixFqbns().isEmpty()
+                    ? Collections.singletonList(rc.getFqbn()) : rc.getMatrixFqbns();
+            for(String fqbn : fqbns) {
+                if(cancelled || indicator.isCanceled())
+                    return;
+                if(fqbn == null || fqbn.isEmpty())
+                    continue;
+                indicator.setText("Compiling the core for " + fqbn);
+                try {
+                    ArduinoBuilder builder = rc.createBuilder(fqbn).setConfiguration(CONFIGURATION);
+                    if(rc.isSharedCache())
+                        builder.setCacheDir(SharedBuildCache.getEntry(fqbn, builder.getSharedCacheKey()));
+                    if(warmed.add(builder.getCacheDir(projectDir)))
+                        warm(builder, useCli(rc, main), projectDir, indicator);
+                } catch (IOException e) {
+                    LOG.info("Could not compile the core for " + fqbn, e);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private static boolean useCli(CompileRunConfiguration rc, String mainFile) {
+        return rc.getBackend() == ArduinoBuilder.Backend.CLI && mainFile != null
+                && ArduinoCli.canBuild(mainFile) && ArduinoCli.isAvailable();
+    }
+
+    /**
+     * Builds the empty sketch in a build folder of its own, so the build folders of the
+     * configurations and their fingerprints are left alone.
+     */
+    @SuppressWarnings("try") // the cache lock is only held, never used
+    private void warm(ArduinoBuilder builder, boolean cli, Path projectDir, ProgressIndicator indicator)
+            throws IOException, InterruptedException {
+        Path cacheDir = builder.getCacheDir(projectDir);
+        if(hasCore(cacheDir))
+            return;
+        Path buildDir = builder.getBuildDir(projectDir);
+        Path log = buildDir.resolve("warmup.log");
+        Path sketchDir = Files.createTempDirectory("cluino-warmup").resolve(SKETCH);
+        try {
+            Path sketch = sketchDir.resolve(SKETCH + ".ino");
+            Files.createDirectories(sketchDir);
+            Files.write(sketch, SKETCH_SOURCE.getBytes(StandardCharsets.UTF_8));
+            builder.prepareDirs(projectDir);
+
+            List<String> command = new ArrayList<>();
+            if(!Util.isWindows() && Files.isExecutable(Paths.get(NICE)))
+                Collections.addAll(command, NICE, "-n", "19");
+            command.addAll(cli
+                    ? builder.getCliCompileCommand(sketch.toString(), projectDir)
+                    : builder.getCompileCommand(sketch.toString(), projectDir));
+
+            try(BuildLock cacheLock = BuildLock.acquire(cacheDir, () -> {})) {
+                if(cancelled || hasCore(cacheDir))
+                    return;
+                builder.markCacheUsed();
+                int exitCode = run(command, log, indicator);
+                if(exitCode != 0 && !cancelled)
+                    LOG.info("Compiling the core for " + builder.getFqbn() + " failed, see " + log);
+                else
+                    FileUtil.delete(buildDir.toFile());
+            }
+        } finally {
+            FileUtil.delete(sketchDir.getParent().toFile());
+        }
+    }
+
+    private int run(List<String> command, Path log, ProgressIndicator indicator) throws IOException, InterruptedException {
+        Process started = new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(log.toFile())
+                .start();
+        process = started;
+        try {
+            if(cancelled)
+                started.destroy();
+            while(!started.waitFor(POLL_MILLIS, TimeUnit.MILLISECONDS))
+                if(cancelled || indicator.isCanceled())
+                    started.destroy();
+            return started.exitValue();
+        } finally {
+            process = null;
+        }
+    }
+
+    /**
+     * Whether arduino-builder (core/core_*.a) or arduino-cli (cores/FQBN_HASH/core.a) already
+     * stored a compiled core in the cache folder.
+     */
+    private static boolean hasCore(Path cacheDir) throws IOException {
+        if(!Files.isDirectory(cacheDir))
+            return false;
+        try(Stream<Path> files = Files.walk(cacheDir, 3)) {
+            return files.anyMatch(file -> {
+                String name = file.getFileName().toString();
+                return name.startsWith("core") && name.endsWith(".a");
+            });
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package it.sijmen.cluino.runconfigurations.compile;
+
+import com.intellij.execution.filters.Filter;
+import com.intellij.execution.filters.OpenFileHyperlinkInfo;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.LocalFileSystem;
+import com.intellij.openapi.vfs.VirtualFile;
+import it.sijmen.cluino.ext.BuildEvent;
+import it.sijmen.cluino.ext.MachineLogParser;
+import it.sijmen.cluino.runconfigurations.PrefixingProcessListener;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Turns the file and line of compiler errors and warnings in the console into a link to that line.
+ */
+public class DiagnosticFilter implements Filter {
+
+    private final Project project;
+
+    public DiagnosticFilter(Project project) {
+        this.project = project;
+    }
+
+    @Nullable
+    @Override
+    public Result applyFilter(String line, int entireLength) {
+        int offset = PrefixingProcessListener.prefixLength(line);
+        BuildEvent event = MachineLogParser.parse(offset == 0 ? line : line.substring(offset));
+        if(event.getKind() != BuildEvent.Kind.DIAGNOSTIC)
+            return null;
+
+        VirtualFile file = LocalFileSystem.getInstance().findFileByPath(event.getFile().replace('\\', '/'));
+        if(file == null)
+            return null;
+
+        int lineStart = entireLength - line.length();
+        int start = lineStart + offset;
+        return new Result(start, start + event.getFile().length(),
+                new OpenFileHyperlinkInfo(project, file, event.getLine() - 1, Math.max(0, event.getColumn() - 1)));
+    }
+}
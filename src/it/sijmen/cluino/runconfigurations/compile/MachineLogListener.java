@@ -0,0 +1,59 @@
+package it.sijmen.cluino.runconfigurations.compile;
+
+import com.intellij.execution.process.ProcessOutputTypes;
+import com.intellij.openapi.util.Key;
+import it.sijmen.cluino.ext.BuildEvent;
+import it.sijmen.cluino.ext.MachineLogParser;
+import it.sijmen.cluino.runconfigurations.PrefixingProcessListener;
+import it.sijmen.cluino.runconfigurations.TaskProcessHandler;
+
+/**
+ * Shows the output of arduino-builder -logger=machine as readable messages. Progress is shown in
+ * the {@link BuildProgress} instead of in the console, and errors and warnings are counted.
+ */
+class MachineLogListener extends PrefixingProcessListener {
+
+    private final BuildProgress progress;
+    private int errors, warnings;
+
+    MachineLogListener(TaskProcessHandler target, String prefix, BuildProgress progress) {
+        super(target, prefix);
+        this.progress = progress;
+    }
+
+    @Override
+    protected void printLine(String line, Key outputType) {
+        BuildEvent event = MachineLogParser.parse(line);
+        switch (event.getKind()) {
+            case PROGRESS:
+                progress.setPercentage(event.getProgress());
+                return;
+            case STEP:
+                progress.setStep(event.getText());
+                super.printLine(event.getText(), ProcessOutputTypes.SYSTEM);
+                return;
+            case MESSAGE:
+                super.printLine(event.getText(),
+                        event.getSeverity() == BuildEvent.Severity.INFO ? outputType : ProcessOutputTypes.STDERR);
+                return;
+            case DIAGNOSTIC:
+                if(event.getSeverity() == BuildEvent.Severity.ERROR)
+                    errors++;
+                else if(event.getSeverity() == BuildEvent.Severity.WARNING)
+                    warnings++;
+                super.printLine(event.getText(), outputType);
+                return;
+            default:
+                super.printLine(event.getText(), outputType);
+        }
+    }
+
+    /**
+     * Prints the number of errors and warnings, if there were any.
+     */
+    void printSummary() {
+        if(errors > 0 || warnings > 0)
+            getTarget().println(getPrefix() + errors + " error(s), " + warnings + " warning(s)",
+                    errors > 0 ? ProcessOutputTypes.STDERR : ProcessOutputTypes.SYSTEM);
+    }
+}
@@ -0,0 +1,46 @@
+package it.sijmen.cluino.runconfigurations.compile;
+
+import com.intellij.execution.process.ProcessAdapter;
+import com.intellij.execution.process.ProcessEvent;
+import com.intellij.execution.process.ProcessOutputTypes;
+import com.intellij.openapi.util.Key;
+import it.sijmen.cluino.ext.BuildTimer;
+
+/**
+ * Feeds every complete line a build process prints to a {@link BuildTimer}, together with the
+ * moment it was printed.
+ */
+class TimingProcessListener extends ProcessAdapter {
+
+    private final BuildTimer timer;
+    private final StringBuilder pending = new StringBuilder();
+
+    TimingProcessListener(BuildTimer timer) {
+        this.timer = timer;
+    }
+
+    @Override
+    public synchronized void onTextAvailable(ProcessEvent event, Key outputType) {
+        if(outputType == ProcessOutputTypes.SYSTEM)
+            return;
+        long now = System.nanoTime();
+        pending.append(event.getText());
+
+        int start = 0;
+        int newline;
+        while((newline = pending.indexOf("\n", start)) >= 0) {
+            timer.onLine(pending.substring(start, newline), now);
+            start = newline + 1;
+        }
+        pending.delete(0, start);
+    }
+
+    @Override
+    public synchronized void processTerminated(ProcessEvent event) {
+        long now = System.nanoTime();
+        if(pending.length() > 0)
+            timer.onLine(pending.toString(), now);
+        pending.setLength(0);
+        timer.finish(now);
+    }
+}
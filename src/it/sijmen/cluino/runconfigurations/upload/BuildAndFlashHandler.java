@@ -0,0 +1,140 @@
+package it.sijmen.cluino.runconfigurations.upload;
+
+import com.intellij.execution.process.ProcessOutputTypes;
+import com.intellij.openapi.application.ApplicationManager;
+import it.sijmen.cluino.runconfigurations.TaskProcessHandler;
+import it.sijmen.cluino.runconfigurations.compile.BuildStage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Builds and uploads in one run. While the build runs on another thread, the port is opened, the
+ * board is reset into its bootloader and kept there, so the upload starts as soon as the hex file
+ * is written. When the upload may be skipped without touching the board, the port is only opened
+ * once the build starts compiling. Ends with a timeline of both stages.
+ */
+class BuildAndFlashHandler extends TaskProcessHandler {
+
+    private static final String BUILD = "[build] ", FLASH = "[flash] ";
+    private static final long KEEP_ALIVE_MILLIS = 250, POLL_MILLIS = 100;
+
+    private final BuildStage build;
+    private final UploadJob upload;
+    private final List<String> timeline = new ArrayList<>();
+    private long start;
+
+    BuildAndFlashHandler(BuildStage build, UploadJob upload) {
+        this.build = build;
+        this.upload = upload;
+    }
+
+    @Override
+    protected int execute() throws Exception {
+        start = System.currentTimeMillis();
+        mark("Build started");
+        Future<Integer> building = ApplicationManager.getApplication().executeOnPooledThread(() -> build.run(this, BUILD));
+        UploadJob.Connection connection = null;
+        try {
+            if(!upload.maySkipWithoutPort() || awaitCompiling(building))
+                connection = openWhileBuilding(building);
+            int exitCode = waitFor(building);
+            mark(build.isSkipped() ? "Build skipped, nothing changed" : exitCode == 0 ? "Build finished" : "Build failed");
+            if(exitCode != 0)
+                return exitCode;
+
+            UploadJob.Connection early = connection;
+            connection = null;
+            exitCode = upload.run(this, FLASH, early);
+            mark(upload.isSkipped() ? "Upload skipped, the device runs this image" : exitCode == 0 ? "Upload finished" : "Upload failed");
+            return exitCode;
+        } finally {
+            building.cancel(true);
+            if(connection != null)
+                connection.close();
+            printTimeline();
+        }
+    }
+
+    /**
+     * Connects to the bootloader and keeps it waiting until the build is done.
+     * @return the connection, or null when the uploader cannot connect early or the connection was lost.
+     */
+    private UploadJob.Connection openWhileBuilding(Future<Integer> building) throws InterruptedException {
+        UploadJob.Connection connection;
+        try {
+            connection = upload.connect(this, FLASH);
+            if(connection == null)
+                return null;
+        } catch (IOException e) {
+            println(FLASH + "Could not connect before the build finished: " + e.getMessage(), ProcessOutputTypes.SYSTEM);
+            return null;
+        }
+        mark("Bootloader ready on " + upload.getPort());
+
+        while(!building.isDone()) {
+            try {
+                building.get(KEEP_ALIVE_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                try {
+                    connection.keepAlive();
+                } catch (IOException lost) {
+                    println(FLASH + "Lost the bootloader, connecting again after the build: " + lost.getMessage(),
+                            ProcessOutputTypes.SYSTEM);
+                    closeQuietly(connection);
+                    return null;
+                }
+            } catch (java.util.concurrent.ExecutionException e) {
+                break;
+            }
+        }
+        return connection;
+    }
+
+    /**
+     * Waits until the build starts compiling or is done. An up to date build is skipped, and then
+     * the upload is skipped as well, so the board is left alone.
+     * @return whether the build compiles
+     */
+    private boolean awaitCompiling(Future<Integer> building) throws InterruptedException {
+        while(!building.isDone() && !build.isCompiling()) {
+            try {
+                building.get(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException | java.util.concurrent.ExecutionException e) {
+                // checked again by the loop
+            }
+        }
+        return !building.isDone();
+    }
+
+    private static int waitFor(Future<Integer> building) throws Exception {
+        try {
+            return building.get();
+        } catch (java.util.concurrent.ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+
+    private static void closeQuietly(UploadJob.Connection connection) {
+        try {
+            connection.close();
+        } catch (IOException ignored) {
+            // the port is gone already
+        }
+    }
+
+    private void mark(String event) {
+        timeline.add(String.format("%8.2f s  %s", (System.currentTimeMillis() - start) / 1000.0, event));
+    }
+
+    private void printTimeline() {
+        println("", ProcessOutputTypes.SYSTEM);
+        println("Timeline:", ProcessOutputTypes.SYSTEM);
+        for(String event : timeline)
+            println(event, ProcessOutputTypes.SYSTEM);
+    }
+}
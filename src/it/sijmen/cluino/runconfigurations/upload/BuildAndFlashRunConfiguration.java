@@ -0,0 +1,149 @@
+package it.sijmen.cluino.runconfigurations.upload;
+
+import com.intellij.execution.ExecutionException;
+import com.intellij.execution.Executor;
+import com.intellij.execution.RunManager;
+import com.intellij.execution.configurations.*;
+import com.intellij.execution.process.ProcessHandler;
+import com.intellij.execution.process.ProcessTerminatedListener;
+import com.intellij.execution.runners.ExecutionEnvironment;
+import com.intellij.openapi.options.SettingsEditor;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.IconLoader;
+import com.intellij.openapi.util.InvalidDataException;
+import com.intellij.openapi.util.WriteExternalException;
+import it.sijmen.cluino.runconfigurations.GenericRunnerState;
+import it.sijmen.cluino.runconfigurations.compile.BuildStage;
+import it.sijmen.cluino.runconfigurations.compile.CompileRunConfiguration;
+import it.sijmen.cluino.runconfigurations.compile.DiagnosticFilter;
+import org.jdom.Element;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.swing.*;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static it.sijmen.cluino.Util.required;
+
+/**
+ * Builds with a compile configuration and uploads the result with an upload configuration, as one
+ * run. The board is put in its bootloader while the build is still running.
+ */
+public class BuildAndFlashRunConfiguration extends RunConfigurationBase {
+
+    private String compileConfiguration;
+    private String uploadConfiguration;
+
+    public BuildAndFlashRunConfiguration(Project project, ConfigurationFactory factory, String name) {
+        super(project, factory, name);
+    }
+
+    @NotNull
+    @Override
+    public SettingsEditor<? extends BuildAndFlashRunConfiguration> getConfigurationEditor() {
+        return new BuildAndFlashSettingsEditor(getProject());
+    }
+
+    @Override
+    public void checkConfiguration() throws RuntimeConfigurationException {
+        required("compile configuration", compileConfiguration);
+        required("upload configuration", uploadConfiguration);
+        CompileRunConfiguration compile = find(getProject(), CompileRunConfiguration.class, compileConfiguration);
+        UploadRunConfiguration upload = find(getProject(), UploadRunConfiguration.class, uploadConfiguration);
+        required("compile configuration", compile != null);
+        required("upload configuration", upload != null);
+        compile.checkConfiguration();
+        if(!upload.getMatrixPorts().isEmpty())
+            throw new RuntimeConfigurationException("Build & Flash uploads to a single port. " +
+                    "Remove the multiple ports from " + upload.getName() + ".");
+    }
+
+    @Nullable
+    @Override
+    public RunProfileState getState(@NotNull Executor executor, @NotNull ExecutionEnvironment executionEnvironment)
+            throws ExecutionException {
+        GenericRunnerState state = new GenericRunnerState(executionEnvironment, this::run);
+        state.addConsoleFilters(new DiagnosticFilter(getProject()));
+        return state;
+    }
+
+    @Override
+    public void readExternal(Element element) throws InvalidDataException {
+        super.readExternal(element);
+        setCompileConfiguration(element.getAttributeValue("compileconfiguration"));
+        setUploadConfiguration(element.getAttributeValue("uploadconfiguration"));
+    }
+
+    @Override
+    public void writeExternal(Element element) throws WriteExternalException {
+        super.writeExternal(element);
+        element.setAttribute("compileconfiguration", getCompileConfiguration());
+        element.setAttribute("uploadconfiguration", getUploadConfiguration());
+    }
+
+    private ProcessHandler run() throws ExecutionException {
+        CompileRunConfiguration compile = find(getProject(), CompileRunConfiguration.class, getCompileConfiguration());
+        UploadRunConfiguration upload = find(getProject(), UploadRunConfiguration.class, getUploadConfiguration());
+        if(compile == null)
+            throw new ExecutionException("Could not find the compile configuration " + getCompileConfiguration() + ".");
+        if(upload == null)
+            throw new ExecutionException("Could not find the upload configuration " + getUploadConfiguration() + ".");
+
+        BuildStage build = BuildStage.prepare(compile);
+        List<String> ports = upload.getPorts();
+        if(ports.size() != 1)
+            throw new ExecutionException("Build & Flash uploads to a single port.");
+        UploadJob job;
+        try {
+            job = UploadJob.prepare(upload, build.getHexFile().toString(), ports.get(0));
+        } catch (IOException e) {
+            throw new ExecutionException(e.getMessage(), e);
+        }
+
+        BuildAndFlashHandler handler = new BuildAndFlashHandler(build, job);
+        ProcessTerminatedListener.attach(handler, getProject());
+        return handler;
+    }
+
+    /**
+     * The names of the configurations of the type in the project.
+     */
+    static List<String> names(Project project, Class<? extends RunConfiguration> type) {
+        List<String> out = new ArrayList<>();
+        for(RunConfiguration configuration : RunManager.getInstance(project).getAllConfigurationsList())
+            if(type.isInstance(configuration))
+                out.add(configuration.getName());
+        return out;
+    }
+
+    @Nullable
+    private static <T extends RunConfiguration> T find(Project project, Class<T> type, String name) {
+        for(RunConfiguration configuration : RunManager.getInstance(project).getAllConfigurationsList())
+            if(type.isInstance(configuration) && configuration.getName().equals(name))
+                return type.cast(configuration);
+        return null;
+    }
+
+    @Override
+    public Icon getIcon() {
+        return IconLoader.getIcon("/icons/arduino-upload.png");
+    }
+
+    String getCompileConfiguration() {
+        return compileConfiguration == null ? "" : compileConfiguration;
+    }
+
+    void setCompileConfiguration(String compileConfiguration) {
+        this.compileConfiguration = compileConfiguration;
+    }
+
+    String getUploadConfiguration() {
+        return uploadConfiguration == null ? "" : uploadConfiguration;
+    }
+
+    void setUploadConfiguration(String uploadConfiguration) {
+        this.uploadConfiguration = uploadConfiguration;
+    }
+}
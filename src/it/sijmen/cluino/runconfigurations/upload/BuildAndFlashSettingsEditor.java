@@ -0,0 +1,47 @@
+package it.sijmen.cluino.runconfigurations.upload;
+
+import com.intellij.openapi.options.ConfigurationException;
+import com.intellij.openapi.options.SettingsEditor;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.ui.ComboBox;
+import com.intellij.util.ui.FormBuilder;
+import it.sijmen.cluino.runconfigurations.compile.CompileRunConfiguration;
+import org.jetbrains.annotations.NotNull;
+
+import javax.swing.*;
+
+public class BuildAndFlashSettingsEditor extends SettingsEditor<BuildAndFlashRunConfiguration> {
+
+    private final ComboBox<String> compileConfiguration, uploadConfiguration;
+
+    BuildAndFlashSettingsEditor(Project project) {
+        compileConfiguration = new ComboBox<>(BuildAndFlashRunConfiguration.names(project, CompileRunConfiguration.class)
+                .toArray(new String[0]));
+        uploadConfiguration = new ComboBox<>(BuildAndFlashRunConfiguration.names(project, UploadRunConfiguration.class)
+                .toArray(new String[0]));
+    }
+
+    @Override
+    protected void resetEditorFrom(@NotNull BuildAndFlashRunConfiguration rc) {
+        compileConfiguration.setSelectedItem(rc.getCompileConfiguration());
+        uploadConfiguration.setSelectedItem(rc.getUploadConfiguration());
+    }
+
+    @Override
+    protected void applyEditorTo(@NotNull BuildAndFlashRunConfiguration rc) throws ConfigurationException {
+        rc.setCompileConfiguration((String) compileConfiguration.getSelectedItem());
+        rc.setUploadConfiguration((String) uploadConfiguration.getSelectedItem());
+    }
+
+    @NotNull
+    @Override
+    protected JComponent createEditor() {
+        return FormBuilder.createFormBuilder()
+                .addLabeledComponent("Compile configuration", compileConfiguration)
+                .addTooltip("Builds the hex file. Must build for a single board.")
+                .addLabeledComponent("Upload configuration", uploadConfiguration)
+                .addTooltip("<html>Uploads the hex file of the build, whatever hex file it is set to itself.<br>" +
+                        "With the STK500 uploader the board waits in its bootloader while the build runs.</html>")
+                .getPanel();
+    }
+}
@@ -0,0 +1,122 @@
+package it.sijmen.cluino.runconfigurations.upload;
+
+import com.intellij.execution.process.ProcessOutputTypes;
+import it.sijmen.cluino.runconfigurations.TaskProcessHandler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs upload jobs. A single job is shown in the console as is. Multiple jobs upload to their
+ * ports at the same time on a bounded number of threads. Their output is shown in one console
+ * with the port in front of every line, followed by a summary of all uploads.
+ */
+class UploadHandler extends TaskProcessHandler {
+
+    private static final long RETRY_DELAY_MILLIS = 1000;
+
+    private final List<UploadJob> jobs;
+    private final int threads;
+    private final int retries;
+
+    /**
+     * @param threads the maximum number of uploads at the same time
+     * @param retries how often a failed upload is tried again, for every port on its own
+     */
+    UploadHandler(List<UploadJob> jobs, int threads, int retries) {
+        this.jobs = jobs;
+        this.threads = threads;
+        this.retries = retries;
+    }
+
+    @Override
+    protected int execute() throws Exception {
+        if(jobs.size() == 1)
+            return upload(jobs.get(0), "").success ? 0 : 1;
+
+        int threads = Math.max(1, Math.min(jobs.size(), this.threads));
+        println("Uploading to " + jobs.size() + " ports on " + threads + " threads.", ProcessOutputTypes.SYSTEM);
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Result>> futures = new ArrayList<>();
+            for(UploadJob job : jobs)
+                futures.add(pool.submit(() -> upload(job, "[" + job.getPort() + "] ")));
+
+            List<Result> results = new ArrayList<>();
+            for(Future<Result> future : futures)
+                results.add(future.get());
+
+            printSummary(results);
+            return results.stream().allMatch(r -> r.success) ? 0 : 1;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Uploads, and tries again after a second when the upload fails.
+     */
+    private Result upload(UploadJob job, String prefix) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        for(int attempt = 1; ; attempt++) {
+            boolean success;
+            try {
+                success = job.run(this, prefix) == 0;
+            } catch (InterruptedException e) {
+                throw e;
+            } catch (Exception e) {
+                println(prefix + (e.getMessage() == null ? e.toString() : e.getMessage()), ProcessOutputTypes.STDERR);
+                success = false;
+            }
+            if(success || attempt > retries)
+                return new Result(job, success, job.isSkipped(), attempt, System.currentTimeMillis() - start);
+
+            println(prefix + "Upload failed, retrying (" + attempt + "/" + retries + ")", ProcessOutputTypes.SYSTEM);
+            Thread.sleep(RETRY_DELAY_MILLIS);
+        }
+    }
+
+    private void printSummary(List<Result> results) {
+        int width = "Port".length();
+        for(Result result : results)
+            width = Math.max(width, result.job.getPort().length());
+        String format = "%-" + width + "s  %-8s  %5s  %9s  %11s";
+
+        println("", ProcessOutputTypes.SYSTEM);
+        println(String.format(format, "Port", "Result", "Tries", "Time", "Speed"), ProcessOutputTypes.SYSTEM);
+        int passed = 0;
+        for(Result result : results) {
+            if(result.success)
+                passed++;
+            println(String.format(format,
+                    result.job.getPort(),
+                    result.skipped ? "SKIPPED" : result.success ? "OK" : "FAILED",
+                    result.attempts,
+                    String.format("%.1f s", result.millis / 1000.0),
+                    result.success && !result.skipped && result.millis > 0
+                            ? String.format("%.1f KB/s", result.job.getImageSize() / 1.024 / result.millis)
+                            : "-"
+            ), result.success ? ProcessOutputTypes.SYSTEM : ProcessOutputTypes.STDERR);
+        }
+        println(passed + " passed, " + (results.size() - passed) + " failed", ProcessOutputTypes.SYSTEM);
+    }
+
+    private static class Result {
+        private final UploadJob job;
+        private final boolean success, skipped;
+        private final int attempts;
+        private final long millis;
+
+        private Result(UploadJob job, boolean success, boolean skipped, int attempts, long millis) {
+            this.job = job;
+            this.success = success;
+            this.skipped = skipped;
+            this.attempts = attempts;
+            this.millis = millis;
+        }
+    }
+}
@@ -0,0 +1,356 @@
+package it.sijmen.cluino.runconfigurations.upload;
+
+import com.intellij.execution.ExecutionException;
+import com.intellij.execution.configurations.GeneralCommandLine;
+import com.intellij.execution.process.ProcessOutputTypes;
+import it.sijmen.cluino.SerialPortService;
+import it.sijmen.cluino.ext.AvrDude;
+import it.sijmen.cluino.ext.FlashImageStore;
+import it.sijmen.cluino.ext.IntelHex;
+import it.sijmen.cluino.ext.PureJavaCommTransport;
+import it.sijmen.cluino.ext.SerialDevice;
+import it.sijmen.cluino.ext.SerialTransport;
+import it.sijmen.cluino.ext.Stk500Uploader;
+import it.sijmen.cluino.runconfigurations.TaskProcessHandler;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+/**
+ * One upload of a hex file to the device on one port.
+ */
+class UploadJob {
+
+    private static final int DEFAULT_BAUD_RATE = 115200;
+    private static final int SAMPLE_PAGES = 8;
+
+    private final Path hexFile;
+    private final String port;
+    /**
+     * The key of the device in the {@link FlashImageStore}: its usb serial number, or the port for
+     * boards without one. The flash contents are also keyed by the signature of the device.
+     */
+    private final String storeKey;
+    private final int baudRate;
+    private final UploadRunConfiguration.Uploader uploader;
+    private final List<String> avrdudeCommand;
+    private final boolean readBack;
+    private final boolean delta;
+    private final boolean skipUnchanged;
+    private final boolean resetOnSkip;
+    private final boolean confirmOnSkip;
+    private final boolean verbose;
+    private volatile boolean skipped;
+    private volatile int imageSize;
+
+    private UploadJob(Path hexFile, String port, String storeKey, int baudRate, UploadRunConfiguration.Uploader uploader,
+                      List<String> avrdudeCommand, boolean readBack, boolean delta, boolean skipUnchanged,
+                      boolean resetOnSkip, boolean confirmOnSkip, boolean verbose) {
+        this.hexFile = hexFile;
+        this.port = port;
+        this.storeKey = storeKey;
+        this.baudRate = baudRate;
+        this.uploader = uploader;
+        this.avrdudeCommand = avrdudeCommand;
+        this.readBack = readBack;
+        this.delta = delta;
+        this.skipUnchanged = skipUnchanged;
+        this.resetOnSkip = resetOnSkip;
+        this.confirmOnSkip = confirmOnSkip;
+        this.verbose = verbose;
+    }
+
+    /**
+     * An upload to multiple ports never skips: every board in the matrix is programmed.
+     */
+    static UploadJob prepare(UploadRunConfiguration rc, String hexFile, String port) throws IOException {
+        List<String> avrdudeCommand = null;
+        if(rc.getUploader() == UploadRunConfiguration.Uploader.AVRDUDE) {
+            rc.awaitDefaults();
+            avrdudeCommand = new AvrDude(
+                    rc.getConfigFile(),
+                    rc.isVerbose(),
+                    rc.getAvrDevice(),
+                    rc.getProgrammerType(),
+                    port,
+                    rc.getBaudRate(),
+                    rc.isDisableAutoErase()
+            ).getCompileCommand(hexFile);
+        }
+
+        SerialDevice connected = SerialPortService.getInstance().findByPort(port);
+        String storeKey = connected == null || connected.getSerialNumber() == null || connected.getSerialNumber().isEmpty()
+                ? "port-" + port : "usb-" + connected.getSerialNumber();
+
+        return new UploadJob(
+                Paths.get(hexFile),
+                port,
+                storeKey,
+                rc.getBaudRate().matches("\\d+") ? Integer.parseInt(rc.getBaudRate()) : DEFAULT_BAUD_RATE,
+                rc.getUploader(),
+                avrdudeCommand,
+                rc.getUploader() == UploadRunConfiguration.Uploader.STK500 || "arduino".equals(rc.getProgrammerType()),
+                rc.isDeltaUpload(),
+                rc.isSkipUnchanged() && rc.getMatrixPorts().isEmpty(),
+                rc.isResetOnSkip(),
+                rc.isConfirmOnSkip(),
+                rc.isVerbose()
+        );
+    }
+
+    /**
+     * Uploads the hex file, or skips the upload when the same image was uploaded to the device last time.
+     * @return the exit code of the upload. Zero when it succeeded or was skipped.
+     */
+    int run(TaskProcessHandler console, String prefix) throws IOException, ExecutionException, InterruptedException {
+        return run(console, prefix, null);
+    }
+
+    /**
+     * Like {@link #run(TaskProcessHandler, String)}, using a connection to the bootloader that was
+     * opened before the hex file existed.
+     * @param connection see {@link #connect}, or null. Closed when the upload is done.
+     */
+    int run(TaskProcessHandler console, String prefix, Connection connection)
+            throws IOException, ExecutionException, InterruptedException {
+        try {
+            byte[] image = IntelHex.read(hexFile).getData();
+            imageSize = image.length;
+            String hash = FlashImageStore.hash(image);
+            skipped = skipUnchanged && hash.equals(FlashImageStore.getLastUpload(storeKey))
+                    && isStillOnDevice(console, prefix, image, connection);
+            if(skipped)
+                return 0;
+
+            int exitCode;
+            if(uploader == UploadRunConfiguration.Uploader.STK500) {
+                if(connection == null)
+                    connection = connect(console, prefix);
+                uploadStk500(console, prefix, image, connection);
+                exitCode = 0;
+            } else {
+                FlashImageStore.forget(storeKey);
+                GeneralCommandLine cmd = new GeneralCommandLine(avrdudeCommand);
+                console.println(prefix + cmd.getCommandLineString(), ProcessOutputTypes.SYSTEM);
+                exitCode = console.runProcess(cmd, prefix);
+            }
+            if(exitCode == 0)
+                FlashImageStore.setLastUpload(storeKey, hash);
+            return exitCode;
+        } finally {
+            if(connection != null)
+                connection.close();
+        }
+    }
+
+    /**
+     * Whether the run can skip the upload without opening the port: the hex file that is there now
+     * was the last upload to the device, and the board is neither reset nor read on skip.
+     */
+    boolean maySkipWithoutPort() {
+        if(!skipUnchanged || resetOnSkip || confirmOnSkip)
+            return false;
+        try {
+            String hash = FlashImageStore.hash(IntelHex.read(hexFile).getData());
+            return hash.equals(FlashImageStore.getLastUpload(storeKey));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Opens the port, resets the board into its bootloader and reads the device signature. Only
+     * possible with the STK500 uploader.
+     * @return the connection, or null with the avrdude uploader.
+     */
+    Connection connect(TaskProcessHandler console, String prefix) throws IOException, InterruptedException {
+        if(uploader != UploadRunConfiguration.Uploader.STK500)
+            return null;
+        return openBootloader(console, prefix);
+    }
+
+    private Connection openBootloader(TaskProcessHandler console, String prefix) throws IOException, InterruptedException {
+        SerialTransport transport = new PureJavaCommTransport(port, baudRate);
+        try {
+            Stk500Uploader bootloader = new Stk500Uploader(transport, new UploadOutput(console, prefix, verbose));
+            return new Connection(transport, bootloader, bootloader.connect());
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            transport.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Decides whether an unchanged image can be skipped. With confirm on skip a few pages are read
+     * back from the device, otherwise the last upload is trusted.
+     */
+    private boolean isStillOnDevice(TaskProcessHandler console, String prefix, byte[] image, Connection connection)
+            throws IOException, InterruptedException {
+        if(!confirmOnSkip) {
+            console.println(prefix + "The device on " + port + " already runs this image. Upload skipped.",
+                    ProcessOutputTypes.SYSTEM);
+            if(connection != null) {
+                connection.bootloader.leave();
+            } else if(resetOnSkip) {
+                try(SerialTransport transport = new PureJavaCommTransport(port, baudRate)) {
+                    new Stk500Uploader(transport, new UploadOutput(console, prefix, verbose)).reset();
+                }
+                console.println(prefix + "Board reset.", ProcessOutputTypes.SYSTEM);
+            }
+            return true;
+        }
+        if(!readBack) {
+            console.println(prefix + "The image is unchanged, but it can only be read back from boards with an " +
+                    "STK500v1 bootloader. Uploading.", ProcessOutputTypes.SYSTEM);
+            return false;
+        }
+
+        Connection reader = connection != null ? connection : openBootloader(console, prefix);
+        try {
+            byte[] flash = FlashImageStore.merge(null, image, reader.bootloader.getPageSize());
+            boolean same = matchesSample(reader.bootloader, flash);
+            if(same)
+                reader.bootloader.leave();
+            console.println(prefix + (same
+                    ? "The device on " + port + " already runs this image. Upload skipped."
+                    : "The device on " + port + " does not run the last uploaded image. Uploading."),
+                    ProcessOutputTypes.SYSTEM);
+            return same;
+        } finally {
+            if(reader != connection)
+                reader.close();
+        }
+    }
+
+    /**
+     * Reads up to {@link #SAMPLE_PAGES} pages, spread evenly from the first to the last page of the
+     * flash contents, back from the device.
+     * @return whether they all match
+     */
+    private static boolean matchesSample(Stk500Uploader bootloader, byte[] flash) throws IOException {
+        int pageSize = bootloader.getPageSize();
+        int pages = flash.length / pageSize;
+        int samples = Math.min(SAMPLE_PAGES, pages);
+        for(int i = 0; i < samples; i++) {
+            int page = samples == 1 ? 0 : i * (pages - 1) / (samples - 1);
+            if(!bootloader.matchesPage(flash, page * pageSize))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Uploads without avrdude by talking to the STK500v1 bootloader over the serial port. With delta
+     * upload only the pages that changed since the last upload to the device are written. Pages
+     * spread over the remembered contents are read back first, and all pages are written when one
+     * of them differs.
+     */
+    private void uploadStk500(TaskProcessHandler console, String prefix, byte[] image, Connection connection)
+            throws IOException, InterruptedException {
+        console.println(prefix + "Uploading " + hexFile + " (" + image.length + " bytes) to " + port
+                + " at " + baudRate + " baud", ProcessOutputTypes.SYSTEM);
+        long start = System.currentTimeMillis();
+        Stk500Uploader writer = connection.bootloader;
+        byte[] previous = delta ? FlashImageStore.load(storeKey, connection.signature) : null;
+        if(previous != null && !matchesSample(writer, previous)) {
+            console.println(prefix + "The device was changed by another tool, writing all pages",
+                    ProcessOutputTypes.SYSTEM);
+            previous = null;
+        }
+        FlashImageStore.forget(storeKey);
+
+        int pageSize = writer.getPageSize();
+        int pages = (image.length + pageSize - 1) / pageSize;
+        int written = writer.write(image, previous);
+        FlashImageStore.save(storeKey, connection.signature, FlashImageStore.merge(previous, image, pageSize));
+        console.println(prefix + (previous == null ? "Wrote all " + pages : "Wrote " + written + " of " + pages + " changed")
+                + " pages in " + (System.currentTimeMillis() - start) + " ms", ProcessOutputTypes.SYSTEM);
+    }
+
+    String getPort() {
+        return port;
+    }
+
+    /**
+     * @return whether the last run was skipped because the device already runs the image.
+     */
+    boolean isSkipped() {
+        return skipped;
+    }
+
+    /**
+     * @return the number of bytes of the image of the last run.
+     */
+    int getImageSize() {
+        return imageSize;
+    }
+
+    Path getHexFile() {
+        return hexFile;
+    }
+
+    /**
+     * An open port with the board waiting in its bootloader.
+     */
+    static class Connection {
+        private final SerialTransport transport;
+        private final Stk500Uploader bootloader;
+        private final byte[] signature;
+
+        private Connection(SerialTransport transport, Stk500Uploader bootloader, byte[] signature) {
+            this.transport = transport;
+            this.bootloader = bootloader;
+            this.signature = signature;
+        }
+
+        /**
+         * Keeps the bootloader from starting the program, it does so when it did not receive
+         * anything for about a second.
+         */
+        void keepAlive() throws IOException {
+            bootloader.keepAlive();
+        }
+
+        void close() throws IOException {
+            transport.close();
+        }
+    }
+
+    /**
+     * Prints what the uploader does, the progress in steps of 10 percent.
+     */
+    private static class UploadOutput implements Stk500Uploader.Listener {
+        private final TaskProcessHandler console;
+        private final String prefix;
+        private final boolean verbose;
+        private String phase;
+        private int shown;
+
+        UploadOutput(TaskProcessHandler console, String prefix, boolean verbose) {
+            this.console = console;
+            this.prefix = prefix;
+            this.verbose = verbose;
+        }
+
+        @Override
+        public void info(String message) {
+            if(verbose)
+                console.println(prefix + message, ProcessOutputTypes.STDOUT);
+        }
+
+        @Override
+        public void progress(String phase, int donePages, int totalPages) {
+            int percentage = totalPages == 0 ? 100 : donePages * 100 / totalPages;
+            if(!phase.equals(this.phase)) {
+                this.phase = phase;
+                shown = -10;
+            }
+            if(percentage / 10 == shown / 10 && percentage != 100)
+                return;
+            shown = percentage;
+            console.println(prefix + phase + " " + percentage + "%", ProcessOutputTypes.STDOUT);
+        }
+    }
+}
@@ -3,14 +3,19 @@ package it.sijmen.cluino.runconfigurations.upload;
 import com.intellij.execution.ExecutionException;
 import com.intellij.execution.Executor;
 import com.intellij.execution.configurations.*;
+import com.intellij.execution.process.ProcessHandler;
+import com.intellij.execution.process.ProcessTerminatedListener;
 import com.intellij.execution.runners.ExecutionEnvironment;
 import com.intellij.openapi.options.SettingsEditor;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.util.IconLoader;
 import com.intellij.openapi.util.InvalidDataException;
 import com.intellij.openapi.util.WriteExternalException;
-import com.intellij.openapi.vfs.VirtualFile;
+import it.sijmen.cluino.SerialPortService;
+import it.sijmen.cluino.ToolchainService;
 import it.sijmen.cluino.ext.AvrDude;
+import it.sijmen.cluino.ext.SerialDevice;
+import it.sijmen.cluino.ext.ToolchainIndex;
 import it.sijmen.cluino.runconfigurations.GenericRunnerState;
 import org.jdom.Element;
 import org.jetbrains.annotations.NotNull;
@@ -18,30 +23,70 @@ import org.jetbrains.annotations.Nullable;
 
 import javax.swing.*;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
-import static it.sijmen.cluino.Util.getFileOrFail;
 import static it.sijmen.cluino.Util.required;
+import static it.sijmen.cluino.runconfigurations.compile.CompileRunConfiguration.getSubitems;
+import static it.sijmen.cluino.runconfigurations.compile.CompileRunConfiguration.makeElement;
 
 public class UploadRunConfiguration extends RunConfigurationBase {
 
     private String hexFile;
+
+    /**
+     * Null until it is set or filled in with the avrdude.conf of this machine, which needs the
+     * toolchain index. The index is not waited for when a configuration is created or loaded.
+     */
     private String configFile;
     private String avrDevice;
     private String programmerType;
     private String port;
+
+    /**
+     * When not empty, the port is the current port of the usb device with this serial number.
+     */
+    private String serialNumber;
     private String baudRate;
     private boolean verbose;
     private boolean disableAutoErase;
+    private Uploader uploader;
+    private boolean deltaUpload;
+    private boolean skipUnchanged;
+    private boolean resetOnSkip;
+    private boolean confirmOnSkip;
+
+    /**
+     * When not empty, the hex file is uploaded to all ports that match these patterns instead of to port.
+     */
+    private List<String> matrixPorts;
+    private int parallelUploads;
+    private int uploadRetries;
+
+    /**
+     * AVRDUDE runs avrdude, STK500 talks to the bootloader of the board itself.
+     */
+    public enum Uploader { AVRDUDE, STK500;}
 
     public UploadRunConfiguration(Project project, ConfigurationFactory factory, String name) {
         super(project, factory, name);
 
-        this.configFile = AvrDude.guessConfigPath();
         this.avrDevice = "atmega328p";
         this.programmerType = "arduino";
         this.baudRate = "115200";
         this.verbose = false;
         this.disableAutoErase = true;
+        this.uploader = Uploader.AVRDUDE;
+        this.deltaUpload = false;
+        this.skipUnchanged = false;
+        this.resetOnSkip = false;
+        this.confirmOnSkip = false;
+        this.matrixPorts = new ArrayList<>();
+        this.parallelUploads = 8;
+        this.uploadRetries = 2;
     }
 
     @NotNull
@@ -54,70 +99,111 @@ public class UploadRunConfiguration extends RunConfigurationBase {
     public void checkConfiguration() throws RuntimeConfigurationException {
         //todo: check if files exist
         required("hex file", hexFile);
-        required("config file", configFile);
+        if(uploader == Uploader.AVRDUDE && isDefaultsResolved())
+            required("config file", configFile);
         required("avr device", avrDevice);
         required("programmer type", programmerType);
-        required("port", port);
+        required("port", port != null && !port.isEmpty() || !getMatrixPorts().isEmpty());
         required("baud rate", baudRate);
+        if(uploader == Uploader.STK500)
+            required("baud rate", baudRate.matches("\\d+"));
     }
 
     @Nullable
     @Override
     public RunProfileState getState(@NotNull Executor executor, @NotNull ExecutionEnvironment executionEnvironment)
             throws ExecutionException {
-        return new GenericRunnerState(getProject(), executionEnvironment, this::run);
+        return new GenericRunnerState(executionEnvironment, this::run);
     }
 
     @Override
     public void readExternal(Element element) throws InvalidDataException {
         super.readExternal(element);
         setHexFile(element.getAttributeValue("hexfile"));
-        setConfigFile(element.getAttributeValue("configfile"));
+        if(element.getAttributeValue("configfile") != null)
+            setConfigFile(element.getAttributeValue("configfile"));
         setAvrDevice(element.getAttributeValue("avrdevice"));
         setProgrammerType(element.getAttributeValue("programmertype"));
         setPort(element.getAttributeValue("port"));
+        setSerialNumber(element.getAttributeValue("serialnumber"));
         setBaudRate(element.getAttributeValue("baudrate"));
         setVerbose("true".equals(element.getAttributeValue("verbose")));
         setDisableAutoErase("true".equals(element.getAttributeValue("disableAutoErase")));
+        setUploader("stk500".equals(element.getAttributeValue("uploader")) ? Uploader.STK500 : Uploader.AVRDUDE);
+        setDeltaUpload("true".equals(element.getAttributeValue("deltaupload")));
+        setSkipUnchanged("true".equals(element.getAttributeValue("skipunchanged")));
+        setResetOnSkip("true".equals(element.getAttributeValue("resetonskip")));
+        setConfirmOnSkip("true".equals(element.getAttributeValue("confirmonskip")));
+        String parallelUploads = element.getAttributeValue("paralleluploads");
+        if(parallelUploads != null)
+            setParallelUploads(Integer.parseInt(parallelUploads));
+        String uploadRetries = element.getAttributeValue("uploadretries");
+        if(uploadRetries != null)
+            setUploadRetries(Integer.parseInt(uploadRetries));
+        setMatrixPorts(getSubitems(element.getChild("matrixports")));
     }
 
     @Override
     public void writeExternal(Element element) throws WriteExternalException {
         super.writeExternal(element);
         element.setAttribute("hexfile", getHexFile());
-        element.setAttribute("configfile", getConfigFile());
+        // a default that is not known yet is not written, so it is filled in after loading
+        if(isDefaultsResolved())
+            element.setAttribute("configfile", configFile);
         element.setAttribute("avrdevice", getAvrDevice());
         element.setAttribute("programmertype", getProgrammerType());
         element.setAttribute("port", getPort());
+        element.setAttribute("serialnumber", getSerialNumber());
         element.setAttribute("baudrate", getBaudRate());
         element.setAttribute("verbose", isVerbose() ? "true": "false");
         element.setAttribute("disableAutoErase", isDisableAutoErase() ? "true": "false");
+        element.setAttribute("uploader", getUploader().toString().toLowerCase());
+        element.setAttribute("deltaupload", isDeltaUpload() ? "true": "false");
+        element.setAttribute("skipunchanged", isSkipUnchanged() ? "true": "false");
+        element.setAttribute("resetonskip", isResetOnSkip() ? "true": "false");
+        element.setAttribute("confirmonskip", isConfirmOnSkip() ? "true": "false");
+        element.setAttribute("paralleluploads", String.valueOf(getParallelUploads()));
+        element.setAttribute("uploadretries", String.valueOf(getUploadRetries()));
+        element.addContent(makeElement("matrixport", getMatrixPorts()));
     }
 
-    private GeneralCommandLine run() throws ExecutionException {
-        VirtualFile hexFile;
+    private ProcessHandler run() throws ExecutionException {
+        List<String> ports = getPorts();
+        if(ports.isEmpty())
+            throw new ExecutionException("No serial port matches " + String.join(", ", getMatrixPorts()) + ".");
 
+        List<UploadJob> jobs = new ArrayList<>();
         try {
-            hexFile = getFileOrFail(getHexFile());
-
-            AvrDude dude = new AvrDude(
-                    getConfigFile(),
-                    isVerbose(),
-                    getAvrDevice(),
-                    getProgrammerType(),
-                    getPort(),
-                    getBaudRate(),
-                    isDisableAutoErase()
-            );
-
-            return new GeneralCommandLine(
-                    dude.getCompileCommand(hexFile.getPath())
-            );
+            String hexFile = getHexFile();
+            if(!Files.isRegularFile(Paths.get(hexFile)))
+                throw new IOException("Could not find file " + hexFile + ".");
+            for(String port : ports)
+                jobs.add(UploadJob.prepare(this, hexFile, port));
         } catch (IOException e) {
             throw new ExecutionException(e.getMessage());
         }
+
+        UploadHandler handler = new UploadHandler(jobs, getParallelUploads(), getUploadRetries());
+        ProcessTerminatedListener.attach(handler, getProject());
+        return handler;
     }
 
+    /**
+     * The port, the current port of the device with the serial number, or all connected ports
+     * that match the patterns of matrix ports.
+     */
+    List<String> getPorts() throws ExecutionException {
+        SerialPortService service = SerialPortService.getInstance();
+        if(!getMatrixPorts().isEmpty())
+            return SerialDevice.resolve(getMatrixPorts(), service.getDevices());
+        if(getSerialNumber().isEmpty())
+            return Collections.singletonList(getPort());
+
+        SerialDevice device = service.findBySerialNumber(getSerialNumber());
+        if(device == null)
+            throw new ExecutionException("The device with serial number " + getSerialNumber() + " is not connected.");
+        return Collections.singletonList(device.getPort());
+    }
 
     @Override
     public Icon getIcon() {
@@ -132,10 +218,45 @@ public class UploadRunConfiguration extends RunConfigurationBase {
         return hexFile == null ? "" : hexFile;
     }
 
+    /**
+     * @return empty when the default is not known yet.
+     */
     public String getConfigFile() {
+        isDefaultsResolved();
         return configFile == null ? "" : configFile;
     }
 
+    private synchronized void resolveDefaults(ToolchainIndex index) {
+        if(configFile == null && index != null)
+            configFile = AvrDude.guessConfigPath(index);
+    }
+
+    /**
+     * @return whether the config file is known, without waiting for the toolchain index.
+     */
+    boolean isDefaultsResolved() {
+        resolveDefaults(ToolchainService.getInstance().getIndexIfReady());
+        return configFile != null;
+    }
+
+    /**
+     * Runs the action on a pooled thread once the config file is known.
+     */
+    void whenDefaultsResolved(Runnable action) {
+        ToolchainService.getInstance().whenReady(index -> {
+            resolveDefaults(index);
+            action.run();
+        });
+    }
+
+    /**
+     * Makes sure the config file is known before an upload, under a progress dialog when the
+     * toolchain index still has to be made.
+     */
+    void awaitDefaults() {
+        resolveDefaults(ToolchainService.getInstance().awaitIndex(getProject()));
+    }
+
     public UploadRunConfiguration setConfigFile(String configFile) {
         this.configFile = configFile;
         return this;
@@ -168,6 +289,15 @@ public class UploadRunConfiguration extends RunConfigurationBase {
         return this;
     }
 
+    public String getSerialNumber() {
+        return serialNumber == null ? "" : serialNumber;
+    }
+
+    public UploadRunConfiguration setSerialNumber(String serialNumber) {
+        this.serialNumber = serialNumber;
+        return this;
+    }
+
     public String getBaudRate() {
         return baudRate == null ? "" : baudRate;
     }
@@ -194,4 +324,76 @@ public class UploadRunConfiguration extends RunConfigurationBase {
         this.disableAutoErase = disableAutoErase;
         return this;
     }
+
+    public Uploader getUploader() {
+        return uploader == null ? Uploader.AVRDUDE : uploader;
+    }
+
+    public UploadRunConfiguration setUploader(Uploader uploader) {
+        this.uploader = uploader;
+        return this;
+    }
+
+    public boolean isDeltaUpload() {
+        return deltaUpload;
+    }
+
+    public UploadRunConfiguration setDeltaUpload(boolean deltaUpload) {
+        this.deltaUpload = deltaUpload;
+        return this;
+    }
+
+    public boolean isSkipUnchanged() {
+        return skipUnchanged;
+    }
+
+    public UploadRunConfiguration setSkipUnchanged(boolean skipUnchanged) {
+        this.skipUnchanged = skipUnchanged;
+        return this;
+    }
+
+    public boolean isResetOnSkip() {
+        return resetOnSkip;
+    }
+
+    public UploadRunConfiguration setResetOnSkip(boolean resetOnSkip) {
+        this.resetOnSkip = resetOnSkip;
+        return this;
+    }
+
+    public boolean isConfirmOnSkip() {
+        return confirmOnSkip;
+    }
+
+    public UploadRunConfiguration setConfirmOnSkip(boolean confirmOnSkip) {
+        this.confirmOnSkip = confirmOnSkip;
+        return this;
+    }
+
+    public List<String> getMatrixPorts() {
+        return matrixPorts == null ? new ArrayList<>() : matrixPorts;
+    }
+
+    public UploadRunConfiguration setMatrixPorts(List<String> matrixPorts) {
+        this.matrixPorts = matrixPorts;
+        return this;
+    }
+
+    public int getParallelUploads() {
+        return parallelUploads;
+    }
+
+    public UploadRunConfiguration setParallelUploads(int parallelUploads) {
+        this.parallelUploads = parallelUploads;
+        return this;
+    }
+
+    public int getUploadRetries() {
+        return uploadRetries;
+    }
+
+    public UploadRunConfiguration setUploadRetries(int uploadRetries) {
+        this.uploadRetries = uploadRetries;
+        return this;
+    }
 }
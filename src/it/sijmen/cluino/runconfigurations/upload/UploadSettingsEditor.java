@@ -1,26 +1,48 @@
 package it.sijmen.cluino.runconfigurations.upload;
 
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.ModalityState;
 import com.intellij.openapi.fileChooser.FileChooserDescriptor;
 import com.intellij.openapi.options.ConfigurationException;
 import com.intellij.openapi.options.SettingsEditor;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.ui.ComboBox;
 import com.intellij.openapi.ui.TextFieldWithBrowseButton;
+import com.intellij.ui.JBIntSpinner;
+import com.intellij.ui.ListCellRendererWrapper;
 import com.intellij.ui.components.JBCheckBox;
 import com.intellij.ui.components.JBTextField;
 import com.intellij.util.ui.FormBuilder;
+import it.sijmen.cluino.SerialPortService;
+import it.sijmen.cluino.ext.SerialDevice;
+import it.sijmen.cluino.ui.StringListPanel;
 import org.jetbrains.annotations.NotNull;
 
 import javax.swing.*;
-
-import static it.sijmen.cluino.Util.getSerailPorts;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 public class UploadSettingsEditor extends SettingsEditor<UploadRunConfiguration> {
 
     private final TextFieldWithBrowseButton hexFile, configFile;
-    private final JBCheckBox verbose, disableAutoErase;
+    private final JBCheckBox verbose, disableAutoErase, deltaUpload, skipUnchanged, resetOnSkip, confirmOnSkip, bindSerialNumber;
     private final ComboBox<String> port;
+    private final ComboBox<UploadRunConfiguration.Uploader> uploader;
     private final JBTextField programmerType, baudRate, avrDevice;
+    private final StringListPanel matrixPorts;
+    private final JBIntSpinner parallelUploads, uploadRetries;
+    private final Map<String, SerialDevice> devices = new HashMap<>();
+
+    /**
+     * The serial number the configuration is bound to, kept when that device is not connected.
+     */
+    private String serialNumber = "";
+
+    /**
+     * The configuration shown while its default config file is still being found.
+     */
+    private UploadRunConfiguration pendingDefaults;
 
     UploadSettingsEditor(Project project) {
         hexFile = new TextFieldWithBrowseButton();
@@ -35,10 +57,52 @@ public class UploadSettingsEditor extends SettingsEditor<UploadRunConfiguration>
 
         verbose = new JBCheckBox("Verbose output", true);
         disableAutoErase = new JBCheckBox("Disable auto-erase", true);
-        port = new ComboBox<>(getSerailPorts());
+        deltaUpload = new JBCheckBox("Only write changed pages", true);
+        skipUnchanged = new JBCheckBox("Skip when the image is unchanged", true);
+        resetOnSkip = new JBCheckBox("Reset the board when skipped", false);
+        confirmOnSkip = new JBCheckBox("Read back the device before skipping", false);
+        bindSerialNumber = new JBCheckBox("Bind to the serial number of the device", false);
+        port = new ComboBox<>();
+        port.setRenderer(new ListCellRendererWrapper<String>() {
+            @Override
+            public void customize(JList list, String value, int index, boolean selected, boolean hasFocus) {
+                SerialDevice device = value == null ? null : devices.get(value);
+                setText(device == null ? value : device.getDescription());
+            }
+        });
+        SerialPortService service = SerialPortService.getInstance();
+        updatePorts(service.getDevices());
+        service.addListener(this::updatePorts, this);
+        uploader = new ComboBox<>(UploadRunConfiguration.Uploader.values());
         programmerType = new JBTextField();
         baudRate = new JBTextField();
         avrDevice = new JBTextField();
+        matrixPorts = new StringListPanel("Ports", "Only the serial device above is uploaded to.", project);
+        parallelUploads = new JBIntSpinner(8, 1, 64);
+        uploadRetries = new JBIntSpinner(2, 0, 10);
+    }
+
+    /**
+     * Shows the connected ports. The selected port stays in the list when it is disconnected.
+     */
+    private void updatePorts(List<SerialDevice> connected) {
+        Object selected = port.getSelectedItem();
+        devices.clear();
+        DefaultComboBoxModel<String> model = new DefaultComboBoxModel<>();
+        for(SerialDevice device : connected) {
+            devices.put(device.getPort(), device);
+            model.addElement(device.getPort());
+        }
+        if(selected != null && !devices.containsKey(selected))
+            model.addElement((String) selected);
+        model.setSelectedItem(selected);
+        port.setModel(model);
+    }
+
+    private void selectPort(String selected) {
+        if(selected != null && !selected.isEmpty() && ((DefaultComboBoxModel<String>) port.getModel()).getIndexOf(selected) < 0)
+            ((DefaultComboBoxModel<String>) port.getModel()).addElement(selected);
+        port.setSelectedItem(selected);
     }
 
     @Override
@@ -49,25 +113,67 @@ public class UploadSettingsEditor extends SettingsEditor<UploadRunConfiguration>
         verbose.setSelected(rc.isVerbose());
         disableAutoErase.setSelected(rc.isDisableAutoErase());
 
-        port.setSelectedItem(rc.getPort());
+        serialNumber = rc.getSerialNumber();
+        bindSerialNumber.setSelected(!serialNumber.isEmpty());
+        SerialDevice bound = serialNumber.isEmpty() ? null : SerialPortService.getInstance().findBySerialNumber(serialNumber);
+        selectPort(bound != null ? bound.getPort() : rc.getPort());
+        uploader.setSelectedItem(rc.getUploader());
+        deltaUpload.setSelected(rc.isDeltaUpload());
+        skipUnchanged.setSelected(rc.isSkipUnchanged());
+        resetOnSkip.setSelected(rc.isResetOnSkip());
+        confirmOnSkip.setSelected(rc.isConfirmOnSkip());
         programmerType.setText(rc.getProgrammerType());
         baudRate.setText(rc.getBaudRate());
         avrDevice.setText(rc.getAvrDevice());
+        matrixPorts.setItems(rc.getMatrixPorts());
+        parallelUploads.setNumber(rc.getParallelUploads());
+        uploadRetries.setNumber(rc.getUploadRetries());
+
+        pendingDefaults = rc.isDefaultsResolved() ? null : rc;
+        if(pendingDefaults != null)
+            rc.whenDefaultsResolved(() -> ApplicationManager.getApplication().invokeLater(() -> {
+                if(pendingDefaults != rc)
+                    return;
+                pendingDefaults = null;
+                if(configFile.getText().isEmpty())
+                    configFile.setText(rc.getConfigFile());
+            }, ModalityState.any()));
     }
 
     @Override
     protected void applyEditorTo(@NotNull UploadRunConfiguration rc)
             throws ConfigurationException {
         rc.setHexFile(hexFile.getText());
-        rc.setConfigFile(configFile.getText());
+        // an empty field while the default is still being found would replace the default
+        if(pendingDefaults == null || !configFile.getText().isEmpty())
+            rc.setConfigFile(configFile.getText());
 
         rc.setVerbose(verbose.isSelected());
         rc.setDisableAutoErase(disableAutoErase.isSelected());
 
-        rc.setPort((String) port.getSelectedItem());
+        String selected = (String) port.getSelectedItem();
+        rc.setPort(selected);
+        if(bindSerialNumber.isSelected()) {
+            SerialDevice device = selected == null ? null : devices.get(selected);
+            if(device != null && device.getSerialNumber() != null)
+                serialNumber = device.getSerialNumber();
+            else if(serialNumber.isEmpty())
+                throw new ConfigurationException("The selected device has no usb serial number to bind to.");
+        } else {
+            serialNumber = "";
+        }
+        rc.setSerialNumber(serialNumber);
+        rc.setUploader((UploadRunConfiguration.Uploader) uploader.getSelectedItem());
+        rc.setDeltaUpload(deltaUpload.isSelected());
+        rc.setSkipUnchanged(skipUnchanged.isSelected());
+        rc.setResetOnSkip(resetOnSkip.isSelected());
+        rc.setConfirmOnSkip(confirmOnSkip.isSelected());
         rc.setProgrammerType(programmerType.getText());
         rc.setBaudRate(baudRate.getText());
         rc.setAvrDevice(avrDevice.getText());
+        rc.setMatrixPorts(matrixPorts.getItems());
+        rc.setParallelUploads(parallelUploads.getNumber());
+        rc.setUploadRetries(uploadRetries.getNumber());
     }
 
     @NotNull
@@ -79,6 +185,31 @@ public class UploadSettingsEditor extends SettingsEditor<UploadRunConfiguration>
                 .addTooltip("This is the hex file that is uploaded to the arduino. This file mostly has a .hex extension.")
 
                 .addLabeledComponent("Serail device", port)
+                .addLabeledComponent("Bind to device", bindSerialNumber)
+                .addTooltip("<html>Upload to the port of the usb device with this serial number, wherever it is plugged in.<br>" +
+                        "The serial number is read from sysfs and is only available on linux.</html>")
+                .addLabeledComponent("Upload to multiple ports", matrixPorts.getPanel())
+                .addTooltip("<html>Optional. When filled in, the hex file is uploaded to all matching ports at the same time instead of to the serial device above.<br>" +
+                        "Use a port, a glob like /dev/ttyUSB*, usb:VID:PID for all connected usb devices with that vendor and product id,<br>" +
+                        "or serial:NUMBER for the usb device with that serial number. Usb ids are only read on linux.</html>")
+                .addLabeledComponent("Parallel uploads", parallelUploads)
+                .addLabeledComponent("Retries per port", uploadRetries)
+                .addLabeledComponent("Uploader", uploader)
+                .addTooltip("<html>AVRDUDE runs avrdude with the settings below.<br>" +
+                        "STK500 uploads to boards with an STK500v1 bootloader, like the uno, without avrdude. " +
+                        "It only uses the port and the baud rate.</html>")
+                .addLabeledComponent("Delta upload", deltaUpload)
+                .addTooltip("<html>With the STK500 uploader, only write and verify the flash pages that changed<br>" +
+                        "since the last upload to the device. All pages are written when that upload is unknown.<br>" +
+                        "Devices are recognised by their usb serial number, or by their port when they have none.</html>")
+                .addLabeledComponent("Skip unchanged", skipUnchanged)
+                .addTooltip("<html>Do not upload when the same image was uploaded successfully to this device last time.<br>" +
+                        "Devices are recognised by their usb serial number, or by their port when they have none.<br>" +
+                        "Uploads to multiple ports are never skipped.</html>")
+                .addLabeledComponent("Reset on skip", resetOnSkip)
+                .addLabeledComponent("Confirm on skip", confirmOnSkip)
+                .addTooltip("<html>Read a few pages back from the device instead of trusting the last upload.<br>" +
+                        "Only possible with the STK500 uploader or the arduino programmer type. Also resets the board.</html>")
 
                 .addSeparator()
                     .addLabeledComponent("&avrdude config file:", configFile)
@@ -0,0 +1,193 @@
+package it.sijmen.cluino.ui;
+
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.ui.ComboBox;
+import com.intellij.openapi.ui.DialogWrapper;
+import com.intellij.openapi.ui.ValidationInfo;
+import com.intellij.ui.CollectionListModel;
+import com.intellij.ui.DocumentAdapter;
+import com.intellij.ui.SearchTextField;
+import com.intellij.ui.components.JBList;
+import com.intellij.ui.components.JBScrollPane;
+import com.intellij.util.Consumer;
+import com.intellij.util.ui.FormBuilder;
+import it.sijmen.cluino.ext.BoardsCatalogue;
+import org.jetbrains.annotations.Nullable;
+
+import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Lets the user search a board of all installed platforms and choose its menu options.
+ * The result is a fully qualified board name: VENDOR:ARCH:BOARD[:MENU=OPTION,...].
+ */
+public class BoardPickerDialog extends DialogWrapper {
+
+    private final List<BoardsCatalogue.Board> boards;
+    private final Consumer<String> finished;
+
+    private final SearchTextField search = new SearchTextField(false);
+    private final CollectionListModel<BoardsCatalogue.Board> model = new CollectionListModel<>();
+    private final JBList list = new JBList(model);
+    private final JPanel options = new JPanel(new BorderLayout());
+    private final Map<String, ComboBox<String>> selectedOptions = new LinkedHashMap<>();
+
+    public BoardPickerDialog(@Nullable Project project, List<BoardsCatalogue.Board> boards, String current,
+                             Consumer<String> finished) {
+        super(project);
+        this.boards = boards;
+        this.finished = finished;
+
+        search.addDocumentListener(new DocumentAdapter() {
+            @Override
+            protected void textChanged(DocumentEvent e) {
+                filter();
+            }
+        });
+        list.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        list.addListSelectionListener(e -> showOptions(getSelectedBoard(), null));
+        filter();
+        select(current);
+
+        init();
+        setTitle("Select Board");
+    }
+
+    private void filter() {
+        BoardsCatalogue.Board selected = getSelectedBoard();
+        String[] words = search.getText().toLowerCase(Locale.ROOT).trim().split("\\s+");
+        List<BoardsCatalogue.Board> matching = new ArrayList<>();
+        for(BoardsCatalogue.Board board : boards)
+            if(matches(board, words))
+                matching.add(board);
+        model.replaceAll(matching);
+        if(selected != null && matching.contains(selected))
+            list.setSelectedValue(selected, true);
+        else if(!matching.isEmpty())
+            list.setSelectedIndex(0);
+    }
+
+    private static boolean matches(BoardsCatalogue.Board board, String[] words) {
+        String text = (board.getName() + " " + board.getFqbn()).toLowerCase(Locale.ROOT);
+        for(String word : words)
+            if(!text.contains(word))
+                return false;
+        return true;
+    }
+
+    /**
+     * Selects the board and options of the current board code, if it is installed.
+     */
+    private void select(String fqbn) {
+        if(fqbn == null)
+            return;
+        String[] parts = fqbn.split(":");
+        if(parts.length < 3)
+            return;
+        String base = parts[0] + ":" + parts[1] + ":" + parts[2];
+        for(BoardsCatalogue.Board board : boards)
+            if(board.getFqbn().equals(base)) {
+                list.setSelectedValue(board, true);
+                showOptions(board, parts.length == 4 ? parts[3] : null);
+            }
+    }
+
+    private void showOptions(BoardsCatalogue.Board board, String current) {
+        selectedOptions.clear();
+        options.removeAll();
+        if(board != null && !board.getMenus().isEmpty()) {
+            Map<String, String> currentOptions = new LinkedHashMap<>();
+            if(current != null)
+                for(String option : current.split(",")) {
+                    int equals = option.indexOf('=');
+                    if(equals > 0)
+                        currentOptions.put(option.substring(0, equals), option.substring(equals + 1));
+                }
+
+            FormBuilder form = FormBuilder.createFormBuilder();
+            for(BoardsCatalogue.Menu menu : board.getMenus().values()) {
+                List<String> ids = new ArrayList<>(menu.getOptions().keySet());
+                ComboBox<String> combo = new ComboBox<>(ids.toArray(new String[ids.size()]));
+                combo.setRenderer(new DefaultListCellRenderer() {
+                    @Override
+                    public Component getListCellRendererComponent(JList<?> list, Object value, int index,
+                                                                  boolean isSelected, boolean cellHasFocus) {
+                        return super.getListCellRendererComponent(list, menu.getOptions().get(value), index,
+                                isSelected, cellHasFocus);
+                    }
+                });
+                if(currentOptions.containsKey(menu.getId()))
+                    combo.setSelectedItem(currentOptions.get(menu.getId()));
+                selectedOptions.put(menu.getId(), combo);
+                form.addLabeledComponent(menu.getLabel() + ":", combo);
+            }
+            options.add(form.getPanel(), BorderLayout.CENTER);
+        }
+        options.revalidate();
+        options.repaint();
+    }
+
+    private BoardsCatalogue.Board getSelectedBoard() {
+        return (BoardsCatalogue.Board) list.getSelectedValue();
+    }
+
+    /**
+     * The board code of the selected board and options. Options that have their default value
+     * are left out.
+     */
+    private String getFqbn() {
+        BoardsCatalogue.Board board = getSelectedBoard();
+        if(board == null)
+            return null;
+        StringBuilder out = new StringBuilder(board.getFqbn());
+        String separator = ":";
+        for(Map.Entry<String, ComboBox<String>> entry : selectedOptions.entrySet()) {
+            Object selected = entry.getValue().getSelectedItem();
+            if(selected == null || entry.getValue().getSelectedIndex() == 0)
+                continue;
+            out.append(separator).append(entry.getKey()).append('=').append(selected);
+            separator = ",";
+        }
+        return out.toString();
+    }
+
+    @Nullable
+    @Override
+    protected JComponent createCenterPanel() {
+        JBScrollPane scroll = new JBScrollPane(list);
+        scroll.setPreferredSize(new Dimension(450, 300));
+        return FormBuilder.createFormBuilder()
+                .addComponent(search)
+                .addComponent(scroll)
+                .addComponent(options)
+                .getPanel();
+    }
+
+    @Nullable
+    @Override
+    public JComponent getPreferredFocusedComponent() {
+        return search;
+    }
+
+    @Nullable
+    @Override
+    protected ValidationInfo doValidate() {
+        if(getSelectedBoard() == null)
+            return new ValidationInfo("Select a board", list);
+        return null;
+    }
+
+    @Override
+    protected void doOKAction() {
+        String fqbn = getFqbn();
+        if(fqbn != null)
+            finished.consume(fqbn);
+        super.doOKAction();
+    }
+}
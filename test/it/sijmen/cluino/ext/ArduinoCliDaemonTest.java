@@ -0,0 +1,89 @@
+package it.sijmen.cluino.ext;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ArduinoCliDaemonTest {
+
+    private static final byte[] INSTANCE = {0x08, 0x01};
+
+    private static byte[] bytes(int... values) {
+        byte[] out = new byte[values.length];
+        for(int i = 0; i < values.length; i++)
+            out[i] = (byte) values[i];
+        return out;
+    }
+
+    @Test
+    public void createRequestIsEmpty() {
+        assertArrayEquals(new byte[0], ArduinoCliDaemon.createRequest());
+    }
+
+    @Test
+    public void initRequestHoldsTheInstance() {
+        assertArrayEquals(bytes(0x0a, 0x02, 0x08, 0x01), ArduinoCliDaemon.initRequest(INSTANCE));
+    }
+
+    @Test
+    public void encodesCompileRequest() {
+        ArduinoCliDaemon.Compile compile = new ArduinoCliDaemon.Compile("a:b:c", Paths.get("/s"), Paths.get("/b"),
+                Paths.get("/c"), Arrays.asList("x=1", "y=2"), Collections.singletonList("/l"), "all", true);
+
+        assertArrayEquals(bytes(
+                0x0a, 0x02, 0x08, 0x01,                 // 1 instance
+                0x12, 0x05, 'a', ':', 'b', ':', 'c',    // 2 fqbn
+                0x1a, 0x02, '/', 's',                   // 3 sketch path
+                0x32, 0x02, '/', 'c',                   // 6 build cache path
+                0x3a, 0x02, '/', 'b',                   // 7 build path
+                0x42, 0x03, 'x', '=', '1',              // 8 build properties
+                0x42, 0x03, 'y', '=', '2',
+                0x4a, 0x03, 'a', 'l', 'l',              // 9 warnings
+                0x50, 0x01,                             // 10 verbose
+                0x7a, 0x02, '/', 'l'                    // 15 libraries
+        ), compile.toRequest(INSTANCE));
+    }
+
+    @Test
+    public void leavesOutDefaultValues() {
+        ArduinoCliDaemon.Compile compile = new ArduinoCliDaemon.Compile("a:b:c", Paths.get("/s"), Paths.get("/b"),
+                Paths.get("/c"), Collections.emptyList(), Collections.emptyList(), "", false);
+
+        assertArrayEquals(bytes(
+                0x0a, 0x02, 0x08, 0x01,
+                0x12, 0x05, 'a', ':', 'b', ':', 'c',
+                0x1a, 0x02, '/', 's',
+                0x32, 0x02, '/', 'c',
+                0x3a, 0x02, '/', 'b'
+        ), compile.toRequest(INSTANCE));
+    }
+
+    @Test
+    public void writesLongLengthsAsMultiByteVarints() {
+        byte[] encoded = new ArduinoCliDaemon.Proto().message(1, new byte[200]).toByteArray();
+
+        assertEquals(203, encoded.length);
+        assertArrayEquals(bytes(0x0a, 0xc8, 0x01), Arrays.copyOf(encoded, 3));
+    }
+
+    @Test
+    public void readsTheLastValueOfAFieldAndSkipsOthers() {
+        byte[] response = bytes(
+                0x08, 0x96, 0x01,                       // 1 varint, skipped
+                0x12, 0x02, 'h', 'i',                   // 2 err stream
+                0x0a, 0x03, 'o', 'n', 'e',              // 1 out stream
+                0x1d, 0, 0, 0, 0,                       // 3 fixed32, skipped
+                0x0a, 0x03, 't', 'w', 'o');
+
+        assertEquals("two", new String(ArduinoCliDaemon.Proto.field(response, 1), StandardCharsets.UTF_8));
+        assertEquals("hi", new String(ArduinoCliDaemon.Proto.field(response, 2), StandardCharsets.UTF_8));
+        assertNull(ArduinoCliDaemon.Proto.field(response, 4));
+    }
+}
@@ -0,0 +1,58 @@
+package it.sijmen.cluino.ext;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class BoardsCatalogueTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private BoardsCatalogue load() throws IOException {
+        Path avr = folder.newFolder("arduino", "avr").toPath();
+        Files.write(avr.resolve("boards.txt"), String.join("\n",
+                "menu.cpu=Processor",
+                "uno.name=Arduino Uno",
+                "nano.name=Arduino Nano",
+                "nano.menu.cpu.atmega328=ATmega328P",
+                "nano.menu.cpu.atmega168=ATmega168").getBytes(StandardCharsets.UTF_8));
+        Map<String, Path> platforms = new LinkedHashMap<>();
+        platforms.put("arduino:avr", avr);
+        platforms.put("arduino:sam", folder.newFolder("arduino", "sam").toPath());
+        return BoardsCatalogue.load(Collections.singletonList(folder.getRoot().toString()), platforms);
+    }
+
+    @Test
+    public void loadedCatalogueValidatesWithoutTheFilesystem() throws IOException {
+        BoardsCatalogue catalogue = load();
+        Files.delete(folder.getRoot().toPath().resolve("arduino/avr/boards.txt"));
+
+        assertNull(catalogue.validate("arduino:avr:uno"));
+        assertNull(catalogue.validate("arduino:avr:nano:cpu=atmega168"));
+        assertEquals("Option cpu=atmega8 does not exist for Arduino Nano.",
+                catalogue.validate("arduino:avr:nano:cpu=atmega8"));
+        assertEquals("Board mega does not exist in arduino:avr.", catalogue.validate("arduino:avr:mega"));
+        assertEquals("Platform esp8266:esp8266 is not installed in the hardware folders.",
+                catalogue.validate("esp8266:esp8266:generic"));
+    }
+
+    @Test
+    public void platformsWithoutBoardsHaveNoBoards() throws IOException {
+        BoardsCatalogue catalogue = load();
+
+        assertEquals(Collections.emptyList(), catalogue.getBoards("arduino:sam"));
+        assertEquals(2, catalogue.getAllBoards().size());
+    }
+}
@@ -0,0 +1,30 @@
+package it.sijmen.cluino.ext;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class BuildFingerprintTest {
+
+    private static PlatformProperties options(String flags, String time) {
+        return new PlatformProperties()
+                .put("compiler.cpp.flags", flags)
+                .put("runtime.tools.avr-gcc.path", "/tools/avr-gcc/7.3.0")
+                .put("extra.time.utc", time);
+    }
+
+    @Test
+    public void optionsIgnoreTheBuildTime() {
+        assertEquals(BuildFingerprint.computeOptions(options("-Os", "1000")),
+                BuildFingerprint.computeOptions(options("-Os", "2000")));
+    }
+
+    @Test
+    public void optionsChangeWithTheProperties() {
+        assertNotEquals(BuildFingerprint.computeOptions(options("-Os", "1000")),
+                BuildFingerprint.computeOptions(options("-O2", "1000")));
+        assertNotEquals(BuildFingerprint.computeOptions(options("-Os", "1000")),
+                BuildFingerprint.computeOptions(options("-Os", "1000").put("runtime.tools.avr-gcc.path", "/tools/avr-gcc/7.3.1")));
+    }
+}
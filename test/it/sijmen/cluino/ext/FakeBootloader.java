@@ -0,0 +1,173 @@
+package it.sijmen.cluino.ext;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * A simulated optiboot bootloader behind a {@link SerialTransport}. Answers the STK500 version 1
+ * commands the uploader sends and keeps the flash contents in memory.
+ */
+class FakeBootloader implements SerialTransport {
+
+    private final byte[] signature;
+    private final byte[] flash;
+    private final ByteArrayOutputStream received = new ByteArrayOutputStream();
+    private final Deque<Byte> answers = new ArrayDeque<>();
+    private final List<Integer> writtenPages = new ArrayList<>();
+    private int address;
+    private int ignoredSyncs;
+    private int corruptAddress = -1;
+    private int earlyWrites;
+
+    FakeBootloader(byte[] signature, int flashSize) {
+        this.signature = signature;
+        this.flash = new byte[flashSize];
+        Arrays.fill(flash, (byte) 0xFF);
+    }
+
+    /**
+     * Does not answer the first syncs, like a bootloader that is still starting.
+     */
+    FakeBootloader ignoreSyncs(int count) {
+        ignoredSyncs = count;
+        return this;
+    }
+
+    /**
+     * Stores a wrong value at the address when a page with it is written.
+     */
+    FakeBootloader corrupt(int address) {
+        corruptAddress = address;
+        return this;
+    }
+
+    byte[] getFlash() {
+        return flash;
+    }
+
+    /**
+     * @return the byte addresses of the pages that were written, in order.
+     */
+    List<Integer> getWrittenPages() {
+        return writtenPages;
+    }
+
+    /**
+     * @return how often something was sent before the answers to the previous commands were read.
+     * A real bootloader loses bytes that arrive while it writes a page.
+     */
+    int getEarlyWrites() {
+        return earlyWrites;
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) {
+        if(!answers.isEmpty())
+            earlyWrites++;
+        received.write(data, offset, length);
+        byte[] pending = received.toByteArray();
+        int used;
+        int start = 0;
+        while((used = handle(pending, start)) > 0)
+            start += used;
+        received.reset();
+        received.write(pending, start, pending.length - start);
+    }
+
+    /**
+     * Answers the command at start when it was received completely.
+     * @return the length of the command, or 0 when it is not complete yet
+     */
+    private int handle(byte[] in, int start) {
+        int available = in.length - start;
+        if(available < 2)
+            return 0;
+        switch(in[start]) {
+            case 0x30: // get sync
+                if(ignoredSyncs > 0)
+                    ignoredSyncs--;
+                else
+                    ok();
+                return 2;
+            case 0x41: // get parameter
+                if(available < 3)
+                    return 0;
+                answer(0x14, in[start + 1] == (byte) 0x81 ? 8 : 0, 0x10);
+                return 3;
+            case 0x50: // enter programming mode
+            case 0x51: // leave programming mode
+                ok();
+                return 2;
+            case 0x55: // load address
+                if(available < 4)
+                    return 0;
+                address = ((in[start + 1] & 0xFF) | (in[start + 2] & 0xFF) << 8) * 2;
+                ok();
+                return 4;
+            case 0x64: { // program page
+                if(available < 4)
+                    return 0;
+                int size = (in[start + 1] & 0xFF) << 8 | in[start + 2] & 0xFF;
+                if(available < size + 5)
+                    return 0;
+                System.arraycopy(in, start + 4, flash, address, size);
+                if(corruptAddress >= address && corruptAddress < address + size)
+                    flash[corruptAddress] ^= 0x01;
+                writtenPages.add(address);
+                ok();
+                return size + 5;
+            }
+            case 0x74: { // read page
+                if(available < 5)
+                    return 0;
+                int size = (in[start + 1] & 0xFF) << 8 | in[start + 2] & 0xFF;
+                answers.add((byte) 0x14);
+                for(int i = 0; i < size; i++)
+                    answers.add(flash[address + i]);
+                answers.add((byte) 0x10);
+                return 5;
+            }
+            case 0x75: // read signature
+                answer(0x14, signature[0], signature[1], signature[2], 0x10);
+                return 2;
+            default:
+                answer(0x15);
+                return 1;
+        }
+    }
+
+    private void ok() {
+        answer(0x14, 0x10);
+    }
+
+    private void answer(int... bytes) {
+        for(int b : bytes)
+            answers.add((byte) b);
+    }
+
+    @Override
+    public void read(byte[] buffer, int offset, int length, long timeoutMillis) throws IOException {
+        if(answers.size() < length)
+            throw new IOException("Timeout");
+        for(int i = 0; i < length; i++)
+            buffer[offset + i] = answers.poll();
+    }
+
+    @Override
+    public void flushInput() {
+        answers.clear();
+    }
+
+    @Override
+    public void setDtrRts(boolean on) {
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,36 @@
+package it.sijmen.cluino.ext;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class FlashImageStoreTest {
+
+    private static final byte E = (byte) 0xFF;
+
+    @Test
+    public void fillsTheLastPageWithErasedBytes() {
+        assertArrayEquals(new byte[]{1, 2, 3, E},
+                FlashImageStore.merge(null, new byte[]{1, 2, 3}, 4));
+    }
+
+    @Test
+    public void keepsPagesBehindTheImage() {
+        byte[] previous = {9, 9, 9, 9, 8, 8, 8, 8, 7, 7, 7, 7};
+
+        assertArrayEquals(new byte[]{1, 2, 3, 4, 5, E, E, E, 7, 7, 7, 7},
+                FlashImageStore.merge(previous, new byte[]{1, 2, 3, 4, 5}, 4));
+    }
+
+    @Test
+    public void overwritesAShorterPreviousImage() {
+        assertArrayEquals(new byte[]{1, 2, 3, 4, 5, 6, E, E},
+                FlashImageStore.merge(new byte[]{9, 9}, new byte[]{1, 2, 3, 4, 5, 6}, 4));
+    }
+
+    @Test
+    public void pageAlignedImageNeedsNoFill() {
+        assertArrayEquals(new byte[]{1, 2, 3, 4},
+                FlashImageStore.merge(new byte[]{9, 9, 9, 9}, new byte[]{1, 2, 3, 4}, 4));
+    }
+}
@@ -0,0 +1,128 @@
+package it.sijmen.cluino.ext;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class IntelHexTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path hex(String... lines) throws IOException {
+        Path file = folder.newFile("image.hex").toPath();
+        Files.write(file, String.join("\n", lines).getBytes(StandardCharsets.US_ASCII));
+        return file;
+    }
+
+    /**
+     * A data record with the checksum filled in.
+     */
+    private static String record(int type, int address, int... data) {
+        StringBuilder out = new StringBuilder(":");
+        int sum = data.length + (address >> 8) + (address & 0xFF) + type;
+        out.append(String.format("%02X%04X%02X", data.length, address, type));
+        for(int b : data) {
+            out.append(String.format("%02X", b));
+            sum += b;
+        }
+        return out.append(String.format("%02X", -sum & 0xFF)).toString();
+    }
+
+    @Test
+    public void readsDataRecords() throws IOException {
+        IntelHex hex = IntelHex.read(hex(
+                ":100000000C9434000C9446000C9446000C9446006A",
+                ":00000001FF"));
+
+        assertEquals(16, hex.getSize());
+        assertEquals(0x0C, hex.getData()[0]);
+        assertEquals(0x46, hex.getData()[14]);
+    }
+
+    @Test
+    public void fillsGapsWithErasedBytes() throws IOException {
+        IntelHex hex = IntelHex.read(hex(
+                record(0, 0x0000, 1, 2),
+                record(0, 0x0004, 3),
+                ":00000001FF"));
+
+        assertArrayEquals(new byte[]{1, 2, (byte) 0xFF, (byte) 0xFF, 3}, hex.getData());
+    }
+
+    @Test
+    public void appliesExtendedLinearAddress() throws IOException {
+        IntelHex hex = IntelHex.read(hex(
+                record(4, 0, 0x00, 0x01),
+                record(0, 0x0002, 0xAB),
+                ":00000001FF"));
+
+        assertEquals(0x10003, hex.getSize());
+        assertEquals((byte) 0xAB, hex.getData()[0x10002]);
+        assertEquals((byte) 0xFF, hex.getData()[0]);
+    }
+
+    @Test
+    public void appliesExtendedSegmentAddress() throws IOException {
+        IntelHex hex = IntelHex.read(hex(
+                record(2, 0, 0x10, 0x00),
+                record(0, 0x0001, 0xCD),
+                ":00000001FF"));
+
+        assertEquals(0x10002, hex.getSize());
+        assertEquals((byte) 0xCD, hex.getData()[0x10001]);
+    }
+
+    @Test
+    public void stopsAtTheEndRecord() throws IOException {
+        IntelHex hex = IntelHex.read(hex(
+                record(0, 0, 7),
+                ":00000001FF",
+                record(0, 1, 8)));
+
+        assertArrayEquals(new byte[]{7}, hex.getData());
+    }
+
+    @Test
+    public void rejectsWrongChecksum() throws IOException {
+        Path file = hex(":100000000C9434000C9446000C9446000C9446006B");
+        try {
+            IntelHex.read(file);
+            fail("expected a checksum error");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().endsWith(":1: wrong checksum"));
+        }
+    }
+
+    @Test
+    public void rejectsWrongRecordLength() throws IOException {
+        Path file = hex(":0200000001FD");
+        try {
+            IntelHex.read(file);
+            fail("expected a length error");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().endsWith(":1: wrong record length"));
+        }
+    }
+
+    @Test
+    public void rejectsLinesThatAreNoRecord() throws IOException {
+        Path file = hex("0000000001FF");
+        try {
+            IntelHex.read(file);
+            fail("expected an error");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().endsWith(":1: not an intel hex record"));
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package it.sijmen.cluino.ext;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class MachineLogParserTest {
+
+    @Test
+    public void fillsInTheArgumentsOfAMessage() {
+        BuildEvent event = MachineLogParser.parse(
+                "===info ||| Using board '{0}' from platform in folder: {1} ||| [uno /home/user/.arduino15/packages/arduino/hardware/avr/1.8.6]");
+
+        assertEquals(BuildEvent.Kind.MESSAGE, event.getKind());
+        assertEquals(BuildEvent.Severity.INFO, event.getSeverity());
+        assertEquals("Using board 'uno' from platform in folder: /home/user/.arduino15/packages/arduino/hardware/avr/1.8.6",
+                event.getText());
+    }
+
+    @Test
+    public void decodesUrlEncodedArguments() {
+        BuildEvent event = MachineLogParser.parse("===warn ||| Library {0} is missing ||| [My%20Library]");
+
+        assertEquals(BuildEvent.Severity.WARNING, event.getSeverity());
+        assertEquals("Library My Library is missing", event.getText());
+    }
+
+    @Test
+    public void parsesProgress() {
+        BuildEvent event = MachineLogParser.parse("===info ||| Progress {0} ||| [14.29]");
+
+        assertEquals(BuildEvent.Kind.PROGRESS, event.getKind());
+        assertEquals(14.29, event.getProgress(), 0.001);
+    }
+
+    @Test
+    public void recognisesBuildSteps() {
+        BuildEvent event = MachineLogParser.parse("===info ||| Detecting libraries used... ||| []");
+
+        assertEquals(BuildEvent.Kind.STEP, event.getKind());
+        assertEquals("Detecting libraries used...", event.getText());
+    }
+
+    @Test
+    public void parsesDiagnosticWithColumn() {
+        BuildEvent event = MachineLogParser.parse("/tmp/sketch/main.cpp:12:5: error: 'foo' was not declared in this scope");
+
+        assertEquals(BuildEvent.Kind.DIAGNOSTIC, event.getKind());
+        assertEquals(BuildEvent.Severity.ERROR, event.getSeverity());
+        assertEquals("/tmp/sketch/main.cpp", event.getFile());
+        assertEquals(12, event.getLine());
+        assertEquals(5, event.getColumn());
+    }
+
+    @Test
+    public void parsesDiagnosticWithoutColumn() {
+        BuildEvent event = MachineLogParser.parse("C:\\sketch\\main.cpp:7: warning: unused variable 'x'");
+
+        assertEquals(BuildEvent.Severity.WARNING, event.getSeverity());
+        assertEquals("C:\\sketch\\main.cpp", event.getFile());
+        assertEquals(7, event.getLine());
+        assertEquals(0, event.getColumn());
+    }
+
+    @Test
+    public void keepsOtherLinesAsOutput() {
+        BuildEvent event = MachineLogParser.parse("Sketch uses 924 bytes (2%) of program storage space.\r\n");
+
+        assertEquals(BuildEvent.Kind.OUTPUT, event.getKind());
+        assertEquals("Sketch uses 924 bytes (2%) of program storage space.", event.getText());
+    }
+
+    @Test
+    public void keepsPlaceholdersWithoutArgument() {
+        assertEquals("a {1} b", MachineLogParser.format("{0} {1} b", java.util.Collections.singletonList("a")));
+    }
+}
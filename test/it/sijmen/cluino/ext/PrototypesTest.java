@@ -0,0 +1,118 @@
+package it.sijmen.cluino.ext;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PrototypesTest {
+
+    private static String sketch(String... lines) {
+        return "#include <Arduino.h>\n#line 1 \"/s/Blink.ino\"\n" + String.join("\n", lines) + "\n";
+    }
+
+    @Test
+    public void insertsPrototypesAboveTheFirstFunction() {
+        String source = sketch(
+                "int led = 13;",
+                "",
+                "void setup() {",
+                "  blink(3);",
+                "}",
+                "",
+                "void loop() {}",
+                "",
+                "void blink(int times) {",
+                "  digitalWrite(led, HIGH);",
+                "}");
+
+        assertEquals(sketch(
+                "int led = 13;",
+                "",
+                "#line 3 \"/s/Blink.ino\"",
+                "void setup();",
+                "#line 7 \"/s/Blink.ino\"",
+                "void loop();",
+                "#line 9 \"/s/Blink.ino\"",
+                "void blink(int times);",
+                "#line 3 \"/s/Blink.ino\"",
+                "void setup() {",
+                "  blink(3);",
+                "}",
+                "",
+                "void loop() {}",
+                "",
+                "void blink(int times) {",
+                "  digitalWrite(led, HIGH);",
+                "}"), Prototypes.insert(source));
+    }
+
+    @Test
+    public void keepsReturnTypesAndQualifiers() {
+        String result = Prototypes.insert(sketch(
+                "static unsigned long elapsed(const char *name, int &count)",
+                "{",
+                "  return 0;",
+                "}",
+                "char* name() { return 0; }"));
+
+        assertTrue(result, result.contains("\nstatic unsigned long elapsed(const char *name, int &count);\n"));
+        assertTrue(result, result.contains("\nchar* name();\n"));
+    }
+
+    @Test
+    public void skipsDeclaredFunctions() {
+        String source = sketch(
+                "void helper(int x);",
+                "void setup() { helper(1); }",
+                "void helper(int x) {}");
+
+        assertEquals(sketch(
+                "void helper(int x);",
+                "#line 2 \"/s/Blink.ino\"",
+                "void setup();",
+                "#line 2 \"/s/Blink.ino\"",
+                "void setup() { helper(1); }",
+                "void helper(int x) {}"), Prototypes.insert(source));
+    }
+
+    @Test
+    public void skipsWhatIsNoPlainFunction() {
+        String source = sketch(
+                "struct Point { int x; };",
+                "int table[] = { 1, 2 };",
+                "template<typename T> T twice(T v) { return v * 2; }",
+                "void withDefault(int a = 1) {}",
+                "ISR(TIMER1_COMPA_vect) {}",
+                "void Point2::move() {}",
+                "namespace util { void inner() {} }");
+
+        assertEquals(source, Prototypes.insert(source));
+    }
+
+    @Test
+    public void ignoresBracesInCommentsStringsAndDirectives() {
+        String result = Prototypes.insert(sketch(
+                "// void commented() {",
+                "/* { */ const char *text = \"}{\";",
+                "#define BLOCK {",
+                "void real() {}"));
+
+        assertTrue(result, result.contains("\nvoid real();\n"));
+        assertFalse(result, result.contains("commented();"));
+    }
+
+    @Test
+    public void followsLineDirectivesOfMergedFiles() {
+        String result = Prototypes.insert("#include <Arduino.h>\n"
+                + "#line 1 \"/s/Main.ino\"\n"
+                + "void setup() {}\n"
+                + "#line 1 \"/s/Other.ino\"\n"
+                + "\n"
+                + "void other() {}\n");
+
+        assertTrue(result, result.contains("#line 2 \"/s/Other.ino\"\nvoid other();\n"));
+        assertTrue(result, result.contains("void other();\n#line 1 \"/s/Main.ino\"\nvoid setup() {}"));
+    }
+}
@@ -0,0 +1,62 @@
+package it.sijmen.cluino.ext;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class SerialDeviceTest {
+
+    private static final List<SerialDevice> DEVICES = Arrays.asList(
+            new SerialDevice("/dev/ttyACM0", "2341", "0043", "7523031383335161E0E1", "Arduino Uno"),
+            new SerialDevice("/dev/ttyACM1", "2341", "0043", "95530343834351A0C1A1", "Arduino Uno"),
+            new SerialDevice("/dev/ttyUSB0", "1a86", "7523", null, "USB Serial"),
+            new SerialDevice("/dev/ttyS0", null, null, null, null));
+
+    @Test
+    public void selectsUsbDevicesByVendorAndProduct() {
+        assertEquals(Arrays.asList("/dev/ttyACM0", "/dev/ttyACM1"),
+                SerialDevice.resolve(Collections.singletonList("usb:2341:0043"), DEVICES));
+    }
+
+    @Test
+    public void productIdCanBeLeftOut() {
+        assertEquals(Collections.singletonList("/dev/ttyUSB0"),
+                SerialDevice.resolve(Collections.singletonList("usb:1A86"), DEVICES));
+        assertEquals(Collections.singletonList("/dev/ttyUSB0"),
+                SerialDevice.resolve(Collections.singletonList("usb:1a86:*"), DEVICES));
+    }
+
+    @Test
+    public void selectsDeviceBySerialNumber() {
+        assertEquals(Collections.singletonList("/dev/ttyACM1"),
+                SerialDevice.resolve(Collections.singletonList("serial:95530343834351A0C1A1"), DEVICES));
+    }
+
+    @Test
+    public void selectsPortsByGlob() {
+        assertEquals(Arrays.asList("/dev/ttyACM0", "/dev/ttyACM1"),
+                SerialDevice.resolve(Collections.singletonList("/dev/ttyACM*"), DEVICES));
+    }
+
+    @Test
+    public void keepsPlainPortsEvenWhenNotConnected() {
+        assertEquals(Collections.singletonList("/dev/ttyUSB9"),
+                SerialDevice.resolve(Collections.singletonList(" /dev/ttyUSB9 "), DEVICES));
+    }
+
+    @Test
+    public void keepsTheOrderOfThePatternsWithoutDuplicates() {
+        assertEquals(Arrays.asList("/dev/ttyUSB0", "/dev/ttyACM0", "/dev/ttyACM1"),
+                SerialDevice.resolve(Arrays.asList("/dev/ttyUSB0", "", "/dev/ttyACM*", "usb:2341", "/dev/ttyUSB0"), DEVICES));
+    }
+
+    @Test
+    public void matchesNothingForUnknownDevices() {
+        assertEquals(Collections.emptyList(),
+                SerialDevice.resolve(Arrays.asList("usb:dead:beef", "serial:missing", "/dev/ttyXYZ*"), DEVICES));
+    }
+}
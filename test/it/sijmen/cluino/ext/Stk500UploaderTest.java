@@ -0,0 +1,134 @@
+package it.sijmen.cluino.ext;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class Stk500UploaderTest {
+
+    private static final byte[] ATMEGA328P = {0x1e, (byte) 0x95, 0x0f};
+    private static final byte[] ATMEGA644P = {0x1e, (byte) 0x96, 0x0a};
+
+    private static final Stk500Uploader.Listener QUIET = new Stk500Uploader.Listener() {
+        @Override
+        public void info(String message) {
+        }
+
+        @Override
+        public void progress(String phase, int donePages, int totalPages) {
+        }
+    };
+
+    /**
+     * Resets the board, writes the image and verifies it, like an upload without delta.
+     */
+    private static Stk500Uploader upload(FakeBootloader device, byte[] image) throws Exception {
+        Stk500Uploader uploader = new Stk500Uploader(device, QUIET);
+        uploader.connect();
+        uploader.write(image, null);
+        return uploader;
+    }
+
+    private static byte[] image(int length, int seed) {
+        byte[] out = new byte[length];
+        for(int i = 0; i < length; i++)
+            out[i] = (byte) (i * 31 + seed);
+        return out;
+    }
+
+    @Test
+    public void syncsWithABootloaderThatStartsLate() throws Exception {
+        FakeBootloader device = new FakeBootloader(ATMEGA328P, 32 * 1024).ignoreSyncs(3);
+        Stk500Uploader uploader = new Stk500Uploader(device, QUIET);
+
+        assertArrayEquals(ATMEGA328P, uploader.connect());
+        assertEquals(128, uploader.getPageSize());
+    }
+
+    @Test
+    public void writesPageAlignedImage() throws Exception {
+        FakeBootloader device = new FakeBootloader(ATMEGA328P, 32 * 1024);
+        byte[] image = image(128 * 4, 1);
+
+        upload(device, image);
+
+        assertEquals(Arrays.asList(0, 128, 256, 384), device.getWrittenPages());
+        assertEquals(0, device.getEarlyWrites());
+        assertArrayEquals(image, Arrays.copyOf(device.getFlash(), image.length));
+        assertEquals((byte) 0xFF, device.getFlash()[image.length]);
+    }
+
+    @Test
+    public void fillsTheLastPageWithErasedBytes() throws Exception {
+        FakeBootloader device = new FakeBootloader(ATMEGA328P, 32 * 1024);
+        Arrays.fill(device.getFlash(), 0, 256, (byte) 0);
+        byte[] image = image(130, 2);
+
+        upload(device, image);
+
+        assertEquals(Arrays.asList(0, 128), device.getWrittenPages());
+        assertEquals((byte) 0xFF, device.getFlash()[130]);
+        assertEquals((byte) 0xFF, device.getFlash()[255]);
+    }
+
+    @Test
+    public void deltaWriteOnlyWritesChangedPages() throws Exception {
+        byte[] previous = image(128 * 4, 1);
+        FakeBootloader device = new FakeBootloader(ATMEGA328P, 32 * 1024);
+        System.arraycopy(previous, 0, device.getFlash(), 0, previous.length);
+        byte[] image = previous.clone();
+        image[300] ^= 0x55;
+
+        Stk500Uploader uploader = new Stk500Uploader(device, QUIET);
+        uploader.connect();
+        int written = uploader.write(image, previous);
+
+        assertEquals(1, written);
+        assertEquals(Collections.singletonList(256), device.getWrittenPages());
+        assertArrayEquals(image, Arrays.copyOf(device.getFlash(), image.length));
+    }
+
+    @Test
+    public void deltaWriteOfTheSameImageWritesNothing() throws Exception {
+        byte[] image = image(128 * 2, 3);
+        FakeBootloader device = new FakeBootloader(ATMEGA328P, 32 * 1024);
+        System.arraycopy(image, 0, device.getFlash(), 0, image.length);
+
+        Stk500Uploader uploader = new Stk500Uploader(device, QUIET);
+        uploader.connect();
+
+        assertEquals(0, uploader.write(image, image.clone()));
+        assertTrue(device.getWrittenPages().isEmpty());
+    }
+
+    @Test
+    public void verifyFailsWhenTheFlashDiffers() throws Exception {
+        FakeBootloader device = new FakeBootloader(ATMEGA328P, 32 * 1024).corrupt(200);
+
+        try {
+            upload(device, image(128 * 3, 4));
+            fail("expected the verification to fail");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Verification failed at 0x00c8"));
+        }
+    }
+
+    @Test
+    public void atmega644HasPagesOf256Bytes() throws Exception {
+        FakeBootloader device = new FakeBootloader(ATMEGA644P, 64 * 1024);
+        byte[] image = image(256 * 2, 5);
+
+        Stk500Uploader uploader = upload(device, image);
+
+        assertEquals(256, uploader.getPageSize());
+        assertEquals(Arrays.asList(0, 256), device.getWrittenPages());
+        assertArrayEquals(image, Arrays.copyOf(device.getFlash(), image.length));
+    }
+}